@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import com.openstat.utils.IpConvert;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Time to build an {@link IPv4RadixIntTree} from a region file, by the single-threaded
+ * loader, the parallel loader, and from parsed prefixes by puts and by buildSorted.
+ * <p>
+ * Run with {@code -prof gc}: gc.alloc.rate.norm is the number of bytes allocated per load,
+ * which bounds the memory the loaded tree takes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IPv4LoadBenchmark {
+    @Param({"data/ipv4/ipv4-region.txt", "data/ipv4/ip-prefix-nginx.txt"})
+    public String file;
+
+    private boolean nginxFormat;
+    private IPv4ParallelLoader parallelLoader;
+    private long[] keys;
+    private long[] masks;
+    private long[] values;
+    private int count;
+
+    @Setup
+    public void setUp() throws IOException {
+        nginxFormat = file.contains("nginx");
+        parallelLoader = new IPv4ParallelLoader(ForkJoinPool.commonPool(), nginxFormat);
+
+        List<String> lines = new ArrayList<String>();
+        BufferedReader br = new BufferedReader(new FileReader(file));
+        try {
+            String l;
+            while ((l = br.readLine()) != null) {
+                lines.add(l);
+            }
+        } finally {
+            br.close();
+        }
+
+        count = lines.size();
+        keys = new long[count];
+        masks = new long[count];
+        values = new long[count];
+        for (int i = 0; i < count; i++) {
+            String[] c = lines.get(i).split("\\s+", -1);
+            String[] net = c[0].split("/");
+            keys[i] = IpConvert.ipv4ToLong(net[0]);
+            masks[i] = ~((1L << (32 - Integer.parseInt(net[1]))) - 1) & 0xffffffffL;
+            // nginx geo values are hexadecimal and end with a semicolon
+            values[i] = nginxFormat
+                    ? Long.parseLong(c[1].substring(0, c[1].length() - 1), 16)
+                    : Long.parseLong(c[1]);
+        }
+    }
+
+    @Benchmark
+    public IPv4RadixIntTree loadFromLocalFile() throws IOException {
+        return IPv4RadixIntTree.loadFromLocalFile(file, nginxFormat);
+    }
+
+    @Benchmark
+    public IPv4RadixIntTree parallelLoad() throws IOException {
+        return parallelLoader.load(file);
+    }
+
+    @Benchmark
+    public IPv4RadixIntTree put() {
+        IPv4RadixIntTree tree = new IPv4RadixIntTree(count * 3);
+        for (int i = 0; i < count; i++) {
+            tree.put(keys[i], masks[i], values[i]);
+        }
+        return tree;
+    }
+
+    @Benchmark
+    public IPv4RadixIntTree buildSorted() {
+        return IPv4RadixIntTree.buildSorted(keys, masks, values, count);
+    }
+}
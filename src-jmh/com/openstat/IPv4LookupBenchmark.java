@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * IPv4 lookup throughput and latency of {@link IPv4RadixIntTree} loaded from a region file,
+ * for the scalar and the String overloads of selectValue.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IPv4LookupBenchmark {
+    // Keys looked up in a round, a power of two
+    private static final int KEYS = 1 << 20;
+    // Distinct addresses keys are picked from
+    private static final int POPULATION = 1 << 16;
+
+    @Param({"data/ipv4/ipv4-region.txt"})
+    public String file;
+
+    @Param({"UNIFORM", "ZIPF", "SORTED"})
+    public KeyDistribution distribution;
+
+    private final IPv4Entry entry = new IPv4Entry();
+    private IPv4RadixIntTree tree;
+    private long[] keys;
+    private String[] strings;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        tree = IPv4RadixIntTree.loadFromLocalFile(file);
+
+        Random rnd = new Random(42);
+        long[] population = new long[POPULATION];
+        for (int i = 0; i < POPULATION; i++) {
+            population[i] = rnd.nextInt() & 0xffffffffL;
+        }
+        Arrays.sort(population);
+
+        int[] indexes = distribution.indexes(KEYS, POPULATION, 43);
+        keys = new long[KEYS];
+        strings = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = population[indexes[i]];
+            strings[i] = toString(keys[i]);
+        }
+    }
+
+    static String toString(long ip) {
+        return (ip >>> 24) + "." + ((ip >>> 16) & 0xff) + "." + ((ip >>> 8) & 0xff) + "." + (ip & 0xff);
+    }
+
+    @Benchmark
+    public long selectValue() {
+        return tree.selectValue(keys[next++ & (KEYS - 1)]);
+    }
+
+    @Benchmark
+    public long selectEntry() {
+        return tree.selectEntry(keys[next++ & (KEYS - 1)], entry) ^ entry.network;
+    }
+
+    @Benchmark
+    public long selectValueString() throws UnknownHostException {
+        return tree.selectValue(strings[next++ & (KEYS - 1)]);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * How {@link IPv4RadixIntTree} build time and lookup speed scale with the size of a
+ * {@link RoutingTableGenerator} routing table.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class IPv4ScaleBenchmark {
+    // Lookups in a trace, a power of two
+    private static final int QUERIES = 1 << 22;
+
+    @Param({"1000000", "4000000", "10000000"})
+    public int prefixes;
+
+    @Param({"UNIFORM", "ZIPF"})
+    public KeyDistribution distribution;
+
+    private long[] keys;
+    private long[] masks;
+    private long[] values;
+    private IPv4RadixIntTree tree;
+    private long[] queries;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        RoutingTableGenerator generator = new RoutingTableGenerator(42);
+        long[] packed = generator.ipv4Prefixes(prefixes);
+        keys = new long[prefixes];
+        masks = new long[prefixes];
+        values = new long[prefixes];
+        for (int i = 0; i < prefixes; i++) {
+            keys[i] = RoutingTableGenerator.ipv4Key(packed[i]);
+            masks[i] = RoutingTableGenerator.ipv4Mask(RoutingTableGenerator.ipv4Length(packed[i]));
+            values[i] = i + 1;
+        }
+        tree = IPv4RadixIntTree.buildSorted(keys, masks, values, prefixes);
+        queries = generator.ipv4Queries(packed, QUERIES, distribution);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public IPv4RadixIntTree put() {
+        IPv4RadixIntTree tree = new IPv4RadixIntTree(prefixes * 3);
+        for (int i = 0; i < prefixes; i++) {
+            tree.put(keys[i], masks[i], values[i]);
+        }
+        return tree;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public IPv4RadixIntTree buildSorted() {
+        return IPv4RadixIntTree.buildSorted(keys, masks, values, prefixes);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long selectValue() {
+        return tree.selectValue(queries[next++ & (QUERIES - 1)]);
+    }
+}
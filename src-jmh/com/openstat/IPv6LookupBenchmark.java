@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import com.openstat.utils.IpConvert;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * IPv6 lookup throughput and latency of {@link IPv6RadixBigIntegerTree}, with
+ * {@link IPv6RadixLongTree} on the same prefixes as a primitive baseline. The bundled IPv6
+ * region file has a few lines only, so trees hold random global unicast prefixes from /16
+ * to /64, and keys are random addresses inside them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IPv6LookupBenchmark {
+    // Keys looked up in a round, a power of two
+    private static final int KEYS = 1 << 18;
+    // Distinct addresses keys are picked from
+    private static final int POPULATION = 1 << 16;
+
+    private static final BigInteger ALL_ONES = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE);
+
+    @Param({"100000"})
+    public int prefixes;
+
+    @Param({"UNIFORM", "ZIPF", "SORTED"})
+    public KeyDistribution distribution;
+
+    private final IPv6Entry entry = new IPv6Entry();
+    private IPv6RadixBigIntegerTree tree;
+    private IPv6RadixLongTree longTree;
+    private BigInteger[] keys;
+    private long[] his;
+    private long[] los;
+    private String[] strings;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random rnd = new Random(42);
+        tree = new IPv6RadixBigIntegerTree();
+        longTree = new IPv6RadixLongTree();
+        BigInteger[] nets = new BigInteger[prefixes];
+        int[] cidrs = new int[prefixes];
+        for (int i = 0; i < prefixes; i++) {
+            cidrs[i] = 16 + rnd.nextInt(49);
+            BigInteger mask = ALL_ONES.xor(BigInteger.ONE.shiftLeft(128 - cidrs[i]).subtract(BigInteger.ONE));
+            nets[i] = address(rnd).and(mask);
+            tree.put(nets[i], mask, BigInteger.valueOf(i));
+            longTree.put(nets[i], mask, i);
+        }
+
+        // Addresses inside the prefixes, global unicast like the prefixes themselves
+        BigInteger[] population = new BigInteger[POPULATION];
+        for (int i = 0; i < POPULATION; i++) {
+            int p = rnd.nextInt(prefixes);
+            BigInteger host = address(rnd).and(BigInteger.ONE.shiftLeft(128 - cidrs[p]).subtract(BigInteger.ONE));
+            population[i] = nets[p].or(host);
+        }
+        Arrays.sort(population);
+
+        int[] indexes = distribution.indexes(KEYS, POPULATION, 43);
+        keys = new BigInteger[KEYS];
+        his = new long[KEYS];
+        los = new long[KEYS];
+        strings = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = population[indexes[i]];
+            his[i] = keys[i].shiftRight(64).longValue();
+            los[i] = keys[i].longValue();
+            strings[i] = IpConvert.bigIntToString(keys[i]);
+        }
+    }
+
+    // Random address in 2000::/3
+    private static BigInteger address(Random rnd) {
+        return new BigInteger(125, rnd).setBit(125);
+    }
+
+    @Benchmark
+    public BigInteger selectValue() {
+        return tree.selectValue(keys[next++ & (KEYS - 1)]);
+    }
+
+    @Benchmark
+    public BigInteger selectEntry() {
+        return tree.selectEntry(keys[next++ & (KEYS - 1)], entry);
+    }
+
+    @Benchmark
+    public BigInteger selectValueString() throws Exception {
+        return tree.selectValue(strings[next++ & (KEYS - 1)]);
+    }
+
+    @Benchmark
+    public long selectValueLongTree() {
+        int i = next++ & (KEYS - 1);
+        return longTree.selectValue(his[i], los[i]);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * How {@link IPv6RadixBigIntegerTree} build time and lookup speed scale with the size of a
+ * {@link RoutingTableGenerator} routing table.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class IPv6ScaleBenchmark {
+    // Lookups in a trace, a power of two
+    private static final int QUERIES = 1 << 20;
+
+    @Param({"100000", "1000000"})
+    public int prefixes;
+
+    @Param({"UNIFORM", "ZIPF"})
+    public KeyDistribution distribution;
+
+    private BigInteger[] keys;
+    private BigInteger[] masks;
+    private BigInteger[] values;
+    private IPv6RadixBigIntegerTree tree;
+    private BigInteger[] queries;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        RoutingTableGenerator generator = new RoutingTableGenerator(42);
+        long[] packed = generator.ipv6Prefixes(prefixes);
+        keys = new BigInteger[prefixes];
+        masks = new BigInteger[prefixes];
+        values = new BigInteger[prefixes];
+        for (int i = 0; i < prefixes; i++) {
+            int length = RoutingTableGenerator.ipv6Length(packed[i]);
+            keys[i] = RoutingTableGenerator.ipv6Address(RoutingTableGenerator.ipv6Hi(packed[i]), 0);
+            masks[i] = RoutingTableGenerator.ipv6Address(RoutingTableGenerator.ipv6Mask(length), 0);
+            values[i] = BigInteger.valueOf(i + 1);
+        }
+        tree = put();
+        queries = generator.ipv6Queries(packed, QUERIES, distribution);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public IPv6RadixBigIntegerTree put() {
+        IPv6RadixBigIntegerTree tree = new IPv6RadixBigIntegerTree();
+        for (int i = 0; i < prefixes; i++) {
+            tree.put(keys[i], masks[i], values[i]);
+        }
+        return tree;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public BigInteger selectValue() {
+        return tree.selectValue(queries[next++ & (QUERIES - 1)]);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import com.openstat.utils.IPv6Address;
+import com.openstat.utils.IpConvert;
+import com.openstat.utils.IpParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigInteger;
+import java.net.UnknownHostException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Cost of parsing addresses: {@link IpConvert} as used by the String overloads of the trees,
+ * against the allocation-free {@link IpParser}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IpParserBenchmark {
+    // Addresses parsed in a round, a power of two
+    private static final int ADDRESSES = 1 << 14;
+
+    private final IPv6Address parsed = new IPv6Address();
+    private String[] ipv4;
+    private String[] ipv6;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random rnd = new Random(42);
+        ipv4 = new String[ADDRESSES];
+        ipv6 = new String[ADDRESSES];
+        for (int i = 0; i < ADDRESSES; i++) {
+            ipv4[i] = IPv4LookupBenchmark.toString(rnd.nextInt() & 0xffffffffL);
+            // Global unicast, so that bigIntToString gets 16 bytes
+            ipv6[i] = IpConvert.bigIntToString(new BigInteger(125, rnd).setBit(125));
+        }
+    }
+
+    @Benchmark
+    public long ipConvertIpv4() throws UnknownHostException {
+        return IpConvert.ipv4ToLong(ipv4[next++ & (ADDRESSES - 1)]);
+    }
+
+    @Benchmark
+    public long ipParserIpv4() {
+        return IpParser.parseIpv4(ipv4[next++ & (ADDRESSES - 1)]);
+    }
+
+    @Benchmark
+    public BigInteger ipConvertIpv6() {
+        return IpConvert.stringToBigInt(ipv6[next++ & (ADDRESSES - 1)]);
+    }
+
+    @Benchmark
+    public long ipParserIpv6() {
+        IpParser.parseIpv6(ipv6[next++ & (ADDRESSES - 1)], parsed);
+        return parsed.hi ^ parsed.lo;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * Order in which benchmarks pick lookup keys out of a population of addresses. The population
+ * must be sorted in ascending order, so that {@link #SORTED} walks addresses in order.
+ */
+public enum KeyDistribution {
+    /**
+     * Every address is equally likely, in random order.
+     */
+    UNIFORM,
+    /**
+     * Address of rank k is picked with probability proportional to 1/k, as in skewed
+     * production traffic where a few addresses make most of the lookups.
+     */
+    ZIPF,
+    /**
+     * Uniform picks in ascending order, the best case for caches and branch prediction.
+     */
+    SORTED;
+
+    /**
+     * Picks keys out of a population.
+     *
+     * @param count      number of keys to pick
+     * @param population number of addresses to pick from
+     * @param seed       random seed, the same seed gives the same keys
+     * @return indexes into the population
+     */
+    public int[] indexes(int count, int population, long seed) {
+        Random rnd = new Random(seed);
+        int[] indexes = new int[count];
+        if (this == ZIPF) {
+            double[] cdf = new double[population];
+            double sum = 0;
+            for (int k = 0; k < population; k++) {
+                sum += 1.0 / (k + 1);
+                cdf[k] = sum;
+            }
+            // Ranks are shuffled over the population, so that hot addresses are not the lowest ones
+            int[] ranks = new int[population];
+            for (int k = 0; k < population; k++) {
+                int j = rnd.nextInt(k + 1);
+                ranks[k] = ranks[j];
+                ranks[j] = k;
+            }
+            for (int i = 0; i < count; i++) {
+                int k = Arrays.binarySearch(cdf, rnd.nextDouble() * sum);
+                indexes[i] = ranks[Math.min(k < 0 ? -k - 1 : k, population - 1)];
+            }
+            return indexes;
+        }
+        for (int i = 0; i < count; i++) {
+            indexes[i] = rnd.nextInt(population);
+        }
+        if (this == SORTED) {
+            Arrays.sort(indexes);
+        }
+        return indexes;
+    }
+}
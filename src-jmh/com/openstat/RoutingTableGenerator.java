@@ -0,0 +1,478 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * Seeded generator of BGP-like routing tables and lookup traces, for benchmarks at production
+ * scale (1M-10M prefixes) that the bundled data files are far from.
+ * <p>
+ * Prefix lengths follow the shape of public routing tables: mostly /24 for IPv4 and /48 for
+ * IPv6, with /16-/23 and /29-/44 respectively behind them. About {@value #NESTED_PERCENT}%
+ * of the prefixes are more specifics of another generated prefix, as traffic-engineered
+ * announcements are, so trees get the nesting that makes longest-prefix match differ from
+ * an exact match. IPv6 prefixes are allocated from the RIR blocks in 2000::/3, so they share
+ * long paths near the root.
+ * <p>
+ * A prefix is packed in a long: its network bits, a marker 1 bit, then zeros. Packed prefixes
+ * sort in tree order and can't collide, so duplicates are dropped with a sort. Same seed and
+ * size give the same prefixes, traces and files.
+ * <p>
+ * Files are written in the formats loadFromLocalFile and the tests read: "net/len\tvalue"
+ * lines for prefixes and one address per line for traces.
+ * <pre>
+ * java -cp target/ip-radix-tree-benchmarks.jar com.openstat.RoutingTableGenerator \
+ *     ipv4 4000000 10000000 /tmp/tables [ZIPF] [seed]
+ * </pre>
+ */
+public class RoutingTableGenerator {
+    // Percentage of prefixes that are more specifics of another prefix
+    static final int NESTED_PERCENT = 45;
+    // Attempts to find a less specific parent for a nested prefix
+    private static final int PARENT_ATTEMPTS = 4;
+    // Percentage of trace addresses that fall inside a generated prefix
+    private static final int HIT_PERCENT = 90;
+    // Distinct trace addresses at most, traces repeat them following a KeyDistribution
+    private static final int MAX_TRACE_POPULATION = 1 << 20;
+
+    // Relative weights of IPv4 prefix lengths from /8 to /32
+    private static final int[] IPV4_LENGTH_WEIGHTS = {
+            1, 1, 3, 8, 25, 50, 100, 170,                   // /8 - /15
+            1400, 800, 1400, 2700, 4000, 4600, 10500, 9500, // /16 - /23
+            60000,                                          // /24
+            150, 150, 100, 100, 80, 60, 20, 50              // /25 - /32
+    };
+    private static final int IPV4_MIN_LENGTH = 8;
+
+    // Relative weights of IPv6 prefix lengths from /16 to /63
+    private static final int[] IPV6_LENGTH_WEIGHTS = new int[48];
+    private static final int IPV6_MIN_LENGTH = 16;
+
+    static {
+        int[][] weights = {
+                {16, 1}, {19, 2}, {20, 10}, {22, 10}, {24, 30}, {28, 200}, {29, 1200}, {30, 150},
+                {31, 100}, {32, 4500}, {33, 300}, {34, 300}, {35, 300}, {36, 1000}, {37, 250},
+                {38, 300}, {39, 200}, {40, 1800}, {41, 200}, {42, 600}, {43, 300}, {44, 2500},
+                {45, 500}, {46, 800}, {47, 600}, {48, 32000}, {52, 20}, {56, 50}, {60, 10}
+        };
+        for (int[] w : weights) {
+            IPV6_LENGTH_WEIGHTS[w[0] - IPV6_MIN_LENGTH] = w[1];
+        }
+    }
+
+    // Upper 16 bits of the RIR blocks fresh IPv6 prefixes are allocated from, and block lengths
+    private static final int[][] IPV6_BLOCKS = {
+            {0x2001, 16}, {0x2400, 12}, {0x2600, 12}, {0x2800, 12}, {0x2a00, 12}, {0x2c00, 12}
+    };
+
+    private final long seed;
+
+    /**
+     * Initializes a generator.
+     *
+     * @param seed random seed, the same seed gives the same tables and traces
+     */
+    public RoutingTableGenerator(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Generates distinct IPv4 prefixes.
+     *
+     * @param count number of prefixes
+     * @return packed prefixes, in random order
+     */
+    public long[] ipv4Prefixes(int count) {
+        Random rnd = new Random(seed);
+        int[] cumulative = cumulative(IPV4_LENGTH_WEIGHTS);
+        long[] prefixes = new long[0];
+        int n = 0;
+        while (n < count) {
+            // Generate what is missing, with a margin for duplicates
+            int target = count + (count - n) / 50 + 16;
+            prefixes = Arrays.copyOf(prefixes, target);
+            for (int i = n; i < target; i++) {
+                int length = IPV4_MIN_LENGTH + pick(cumulative, rnd);
+                long parent = nestedParent(prefixes, i, length, rnd, true);
+                long key;
+                if (parent != 0) {
+                    key = ipv4Key(parent) | (rnd.nextInt() & 0xffffffffL) & ~ipv4Mask(ipv4Length(parent));
+                } else {
+                    key = freeIpv4Address(rnd);
+                }
+                prefixes[i] = packIpv4(key, length);
+            }
+            n = dedupe(prefixes);
+        }
+        return shuffle(Arrays.copyOf(prefixes, count), rnd);
+    }
+
+    /**
+     * Generates distinct IPv6 prefixes. Prefixes are at most /63, so that the network fits in
+     * the upper 64 bits with the marker bit.
+     *
+     * @param count number of prefixes
+     * @return packed prefixes, in random order
+     */
+    public long[] ipv6Prefixes(int count) {
+        Random rnd = new Random(seed);
+        int[] cumulative = cumulative(IPV6_LENGTH_WEIGHTS);
+        long[] prefixes = new long[0];
+        int n = 0;
+        while (n < count) {
+            int target = count + (count - n) / 50 + 16;
+            prefixes = Arrays.copyOf(prefixes, target);
+            for (int i = n; i < target; i++) {
+                int length = IPV6_MIN_LENGTH + pick(cumulative, rnd);
+                long parent = nestedParent(prefixes, i, length, rnd, false);
+                long hi;
+                if (parent != 0) {
+                    hi = ipv6Hi(parent) | rnd.nextLong() & ~ipv6Mask(ipv6Length(parent));
+                } else {
+                    int[] block = IPV6_BLOCKS[rnd.nextInt(IPV6_BLOCKS.length)];
+                    if (length < block[1]) {
+                        length = block[1];
+                    }
+                    hi = ((long) block[0] << 48) | rnd.nextLong() & ~ipv6Mask(block[1]);
+                }
+                prefixes[i] = packIpv6(hi, length);
+            }
+            n = dedupe(prefixes);
+        }
+        return shuffle(Arrays.copyOf(prefixes, count), rnd);
+    }
+
+    /**
+     * Picks a random earlier prefix less specific than a given length.
+     *
+     * @return packed parent, or 0 if the prefix should not be nested
+     */
+    private static long nestedParent(long[] prefixes, int generated, int length, Random rnd, boolean ipv4) {
+        if (generated == 0 || rnd.nextInt(100) >= NESTED_PERCENT) {
+            return 0;
+        }
+        for (int attempt = 0; attempt < PARENT_ATTEMPTS; attempt++) {
+            long parent = prefixes[rnd.nextInt(generated)];
+            if (parent != 0 && (ipv4 ? ipv4Length(parent) : ipv6Length(parent)) < length) {
+                return parent;
+            }
+        }
+        return 0;
+    }
+
+    // Unicast address outside of 0/8, 10/8 and 127/8
+    private static long freeIpv4Address(Random rnd) {
+        long first;
+        do {
+            first = 1 + rnd.nextInt(223);
+        } while (first == 10 || first == 127);
+        return first << 24 | rnd.nextInt(1 << 24);
+    }
+
+    /**
+     * Generates a lookup trace: addresses inside random prefixes, and a few random ones, in
+     * the order of a key distribution.
+     *
+     * @param prefixes     packed IPv4 prefixes
+     * @param count        number of lookups
+     * @param distribution order of the lookups
+     * @return IPv4 addresses
+     */
+    public long[] ipv4Queries(long[] prefixes, int count, KeyDistribution distribution) {
+        Random rnd = new Random(seed + 1);
+        long[] population = new long[Math.min(count, MAX_TRACE_POPULATION)];
+        for (int i = 0; i < population.length; i++) {
+            if (rnd.nextInt(100) < HIT_PERCENT) {
+                long prefix = prefixes[rnd.nextInt(prefixes.length)];
+                population[i] = ipv4Key(prefix) | (rnd.nextInt() & 0xffffffffL) & ~ipv4Mask(ipv4Length(prefix));
+            } else {
+                population[i] = freeIpv4Address(rnd);
+            }
+        }
+        Arrays.sort(population);
+
+        int[] indexes = distribution.indexes(count, population.length, seed + 2);
+        long[] queries = new long[count];
+        for (int i = 0; i < count; i++) {
+            queries[i] = population[indexes[i]];
+        }
+        return queries;
+    }
+
+    /**
+     * Generates a lookup trace, see {@link #ipv4Queries(long[], int, KeyDistribution)}.
+     *
+     * @param prefixes     packed IPv6 prefixes
+     * @param count        number of lookups
+     * @param distribution order of the lookups
+     * @return IPv6 addresses
+     */
+    public BigInteger[] ipv6Queries(long[] prefixes, int count, KeyDistribution distribution) {
+        Random rnd = new Random(seed + 1);
+        BigInteger[] population = new BigInteger[Math.min(count, MAX_TRACE_POPULATION)];
+        for (int i = 0; i < population.length; i++) {
+            long hi;
+            if (rnd.nextInt(100) < HIT_PERCENT) {
+                long prefix = prefixes[rnd.nextInt(prefixes.length)];
+                hi = ipv6Hi(prefix) | rnd.nextLong() & ~ipv6Mask(ipv6Length(prefix));
+            } else {
+                hi = 0x2000000000000000L | rnd.nextLong() >>> 3;
+            }
+            population[i] = ipv6Address(hi, rnd.nextLong());
+        }
+        Arrays.sort(population);
+
+        int[] indexes = distribution.indexes(count, population.length, seed + 2);
+        BigInteger[] queries = new BigInteger[count];
+        for (int i = 0; i < count; i++) {
+            queries[i] = population[indexes[i]];
+        }
+        return queries;
+    }
+
+    static long packIpv4(long key, int length) {
+        return ((key >>> (32 - length)) << 1 | 1) << (32 - length);
+    }
+
+    static int ipv4Length(long packed) {
+        return 32 - Long.numberOfTrailingZeros(packed);
+    }
+
+    static long ipv4Key(long packed) {
+        return packed >>> 1 & ipv4Mask(ipv4Length(packed));
+    }
+
+    static long ipv4Mask(int length) {
+        return ~((1L << (32 - length)) - 1) & 0xffffffffL;
+    }
+
+    static long packIpv6(long hi, int length) {
+        return ((hi >>> (64 - length)) << 1 | 1) << (63 - length);
+    }
+
+    static int ipv6Length(long packed) {
+        return 63 - Long.numberOfTrailingZeros(packed);
+    }
+
+    static long ipv6Hi(long packed) {
+        return (packed >>> (63 - ipv6Length(packed)) >>> 1) << (64 - ipv6Length(packed));
+    }
+
+    static long ipv6Mask(int length) {
+        return length == 0 ? 0 : -1L << (64 - length);
+    }
+
+    static BigInteger ipv6Address(long hi, long lo) {
+        byte[] bytes = new byte[17];
+        for (int i = 0; i < 8; i++) {
+            bytes[1 + i] = (byte) (hi >>> (56 - 8 * i));
+            bytes[9 + i] = (byte) (lo >>> (56 - 8 * i));
+        }
+        return new BigInteger(bytes);
+    }
+
+    private static int[] cumulative(int[] weights) {
+        int[] cumulative = new int[weights.length];
+        int sum = 0;
+        for (int i = 0; i < weights.length; i++) {
+            sum += weights[i];
+            cumulative[i] = sum;
+        }
+        return cumulative;
+    }
+
+    private static int pick(int[] cumulative, Random rnd) {
+        int i = Arrays.binarySearch(cumulative, rnd.nextInt(cumulative[cumulative.length - 1]) + 1);
+        if (i < 0) {
+            return -i - 1;
+        }
+        // Lengths of zero weight repeat the sum before them, the first one with the sum wins
+        while (i > 0 && cumulative[i - 1] == cumulative[i]) {
+            i--;
+        }
+        return i;
+    }
+
+    // Sorts and drops duplicates, returns the number of distinct prefixes left at the front
+    private static int dedupe(long[] prefixes) {
+        Arrays.sort(prefixes);
+        int n = 0;
+        for (int i = 0; i < prefixes.length; i++) {
+            if (n == 0 || prefixes[i] != prefixes[n - 1]) {
+                prefixes[n++] = prefixes[i];
+            }
+        }
+        return n;
+    }
+
+    private static long[] shuffle(long[] a, Random rnd) {
+        for (int i = a.length - 1; i > 0; i--) {
+            int j = rnd.nextInt(i + 1);
+            long t = a[i];
+            a[i] = a[j];
+            a[j] = t;
+        }
+        return a;
+    }
+
+    /**
+     * Writes IPv4 prefixes as a region file, the value of a prefix is its line number.
+     *
+     * @param prefixes packed IPv4 prefixes
+     * @param filename file to write
+     * @throws IOException
+     */
+    public static void writeIpv4Prefixes(long[] prefixes, String filename) throws IOException {
+        Writer out = new BufferedWriter(new FileWriter(filename), 1 << 16);
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < prefixes.length; i++) {
+                sb.setLength(0);
+                appendIpv4(sb, ipv4Key(prefixes[i])).append('/').append(ipv4Length(prefixes[i]));
+                sb.append('\t').append(i + 1).append('\n');
+                out.append(sb);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes IPv6 prefixes as a region file, the value of a prefix is its line number.
+     *
+     * @param prefixes packed IPv6 prefixes
+     * @param filename file to write
+     * @throws IOException
+     */
+    public static void writeIpv6Prefixes(long[] prefixes, String filename) throws IOException {
+        Writer out = new BufferedWriter(new FileWriter(filename), 1 << 16);
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < prefixes.length; i++) {
+                sb.setLength(0);
+                appendIpv6(sb, ipv6Hi(prefixes[i]), 0).append('/').append(ipv6Length(prefixes[i]));
+                sb.append('\t').append(i + 1).append('\n');
+                out.append(sb);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes an IPv4 trace, one address per line.
+     *
+     * @param queries  IPv4 addresses
+     * @param filename file to write
+     * @throws IOException
+     */
+    public static void writeIpv4Queries(long[] queries, String filename) throws IOException {
+        Writer out = new BufferedWriter(new FileWriter(filename), 1 << 16);
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (long query : queries) {
+                sb.setLength(0);
+                appendIpv4(sb, query).append('\n');
+                out.append(sb);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes an IPv6 trace, one address per line.
+     *
+     * @param queries  IPv6 addresses
+     * @param filename file to write
+     * @throws IOException
+     */
+    public static void writeIpv6Queries(BigInteger[] queries, String filename) throws IOException {
+        Writer out = new BufferedWriter(new FileWriter(filename), 1 << 16);
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (BigInteger query : queries) {
+                sb.setLength(0);
+                appendIpv6(sb, query.shiftRight(64).longValue(), query.longValue()).append('\n');
+                out.append(sb);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static StringBuilder appendIpv4(StringBuilder sb, long ip) {
+        return sb.append(ip >>> 24).append('.').append((ip >>> 16) & 0xff).append('.')
+                .append((ip >>> 8) & 0xff).append('.').append(ip & 0xff);
+    }
+
+    // Full form without "::", as in the bundled IPv6 files
+    private static StringBuilder appendIpv6(StringBuilder sb, long hi, long lo) {
+        for (int i = 0; i < 8; i++) {
+            long half = i < 4 ? hi : lo;
+            if (i > 0) {
+                sb.append(':');
+            }
+            sb.append(Long.toHexString((half >>> (48 - 16 * (i & 3))) & 0xffff));
+        }
+        return sb;
+    }
+
+    /**
+     * Writes a routing table and a trace for it into a directory.
+     *
+     * @param args ipv4 or ipv6, number of prefixes, number of lookups, output directory,
+     *             optionally a key distribution (UNIFORM by default) and a seed (42 by default)
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4) {
+            System.err.println("Usage: RoutingTableGenerator ipv4|ipv6 prefixes lookups dir [distribution] [seed]");
+            System.exit(1);
+        }
+        boolean ipv4 = "ipv4".equals(args[0]);
+        int prefixCount = Integer.parseInt(args[1]);
+        int queryCount = Integer.parseInt(args[2]);
+        File dir = new File(args[3]);
+        KeyDistribution distribution = args.length > 4 ? KeyDistribution.valueOf(args[4]) : KeyDistribution.UNIFORM;
+        long seed = args.length > 5 ? Long.parseLong(args[5]) : 42;
+        dir.mkdirs();
+
+        RoutingTableGenerator generator = new RoutingTableGenerator(seed);
+        String prefixFile = new File(dir, args[0] + "-prefixes-" + prefixCount + ".txt").getPath();
+        String queryFile = new File(dir, args[0] + "-queries-" + queryCount + "-" + distribution + ".txt").getPath();
+        if (ipv4) {
+            long[] prefixes = generator.ipv4Prefixes(prefixCount);
+            writeIpv4Prefixes(prefixes, prefixFile);
+            writeIpv4Queries(generator.ipv4Queries(prefixes, queryCount, distribution), queryFile);
+        } else {
+            long[] prefixes = generator.ipv6Prefixes(prefixCount);
+            writeIpv6Prefixes(prefixes, prefixFile);
+            writeIpv6Queries(generator.ipv6Queries(prefixes, queryCount, distribution), queryFile);
+        }
+        System.out.println("Wrote " + prefixFile + " and " + queryFile);
+    }
+}
@@ -19,6 +19,7 @@ package com.openstat;
 import org.testng.annotations.Test;
 
 import java.io.IOException;
+import java.math.BigInteger;
 import java.util.Random;
 
 public class BenchmarkTest {
@@ -80,4 +81,265 @@ public class BenchmarkTest {
                 (double) (m1 - m2) / tr.size()
         );
     }
+
+    int LOOKUPS = 4000000;
+    int ROUNDS = 5;
+
+    @Test public void benchmarkBatchLookupTest() throws IOException {
+        // Region file fits in cache, the random tree does not
+        batchLookup("region", IPv4RadixIntTree.loadFromLocalFile("data/ipv4/ipv4-region.txt"));
+
+        Random rnd = new Random(42);
+        IPv4RadixIntTree tr = new IPv4RadixIntTree(500000);
+        for (int i = 0; i < N; i++) {
+            int cidr = 8 + rnd.nextInt(25);
+            long netmask = ((1L << (32 - cidr)) - 1L) ^ 0xffffffffL;
+            tr.put(rnd.nextLong() & 0xffffffffL, netmask, rnd.nextInt(N));
+        }
+        batchLookup("random", tr);
+    }
+
+    private void batchLookup(String name, IPv4RadixIntTree tr) {
+        Random rnd = new Random(42);
+        long[] keys = new long[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            keys[i] = rnd.nextLong() & 0xffffffffL;
+        }
+        long[] out = new long[LOOKUPS];
+
+        for (int r = 0; r < ROUNDS; r++) {
+            long t1 = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++) {
+                out[i] = tr.selectValue(keys[i]);
+            }
+            long t2 = System.nanoTime();
+            tr.selectValues(keys, out);
+            long t3 = System.nanoTime();
+            System.out.format(
+                    "IPv4 %s (%d nodes) round %d: scalar %.2f Mlookups/s, batch %.2f Mlookups/s\n",
+                    name, tr.size(), r,
+                    LOOKUPS * 1000.0 / (t2 - t1),
+                    LOOKUPS * 1000.0 / (t3 - t2)
+            );
+        }
+    }
+
+    @Test public void benchmarkIpv6BatchLookupTest() {
+        Random rnd = new Random(42);
+        BigInteger end = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE);
+        IPv6RadixBigIntegerTree tr = new IPv6RadixBigIntegerTree();
+        for (int i = 0; i < 100000; i++) {
+            int cidr = 16 + rnd.nextInt(49);
+            BigInteger mask = BigInteger.ONE.shiftLeft(128 - cidr).subtract(BigInteger.ONE).xor(end);
+            tr.put(new BigInteger(128, rnd).and(mask), mask, BigInteger.valueOf(i));
+        }
+
+        int n = LOOKUPS / 10;
+        BigInteger[] keys = new BigInteger[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = new BigInteger(128, rnd);
+        }
+        BigInteger[] out = new BigInteger[n];
+
+        for (int r = 0; r < ROUNDS; r++) {
+            long t1 = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                out[i] = tr.selectValue(keys[i]);
+            }
+            long t2 = System.nanoTime();
+            tr.selectValues(keys, out);
+            long t3 = System.nanoTime();
+            System.out.format(
+                    "IPv6 round %d: scalar %.2f Mlookups/s, batch %.2f Mlookups/s\n",
+                    r,
+                    n * 1000.0 / (t2 - t1),
+                    n * 1000.0 / (t3 - t2)
+            );
+        }
+    }
+
+    @Test public void benchmarkIpv6PrimitiveLookupTest() {
+        Random rnd = new Random(42);
+        BigInteger end = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE);
+        IPv6RadixBigIntegerTree tr = new IPv6RadixBigIntegerTree();
+        IPv6RadixTree pt = new IPv6RadixTree();
+        for (int i = 0; i < 100000; i++) {
+            int cidr = 16 + rnd.nextInt(49);
+            BigInteger mask = BigInteger.ONE.shiftLeft(128 - cidr).subtract(BigInteger.ONE).xor(end);
+            BigInteger key = new BigInteger(128, rnd).and(mask);
+            tr.put(key, mask, BigInteger.valueOf(i));
+            pt.put(key, mask, BigInteger.valueOf(i));
+        }
+
+        int n = LOOKUPS / 10;
+        BigInteger[] keys = new BigInteger[n];
+        long[] his = new long[n];
+        long[] los = new long[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = new BigInteger(128, rnd);
+            his[i] = keys[i].shiftRight(64).longValue();
+            los[i] = keys[i].longValue();
+        }
+        BigInteger[] out = new BigInteger[n];
+
+        for (int r = 0; r < ROUNDS; r++) {
+            long t1 = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                out[i] = tr.selectValue(keys[i]);
+            }
+            long t2 = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                out[i] = pt.selectValue(his[i], los[i]);
+            }
+            long t3 = System.nanoTime();
+            System.out.format(
+                    "IPv6 round %d: BigInteger %.2f Mlookups/s, hi/lo %.2f Mlookups/s\n",
+                    r,
+                    n * 1000.0 / (t2 - t1),
+                    n * 1000.0 / (t3 - t2)
+            );
+        }
+    }
+
+    @Test public void benchmarkParallelLoadTest() throws IOException {
+        String filename = "data/ipv4/ipv4-region.txt";
+        IPv4ParallelLoader loader = new IPv4ParallelLoader();
+        for (int r = 0; r < ROUNDS; r++) {
+            long t1 = System.nanoTime();
+            IPv4RadixIntTree.loadFromLocalFile(filename);
+            long t2 = System.nanoTime();
+            loader.load(filename);
+            long t3 = System.nanoTime();
+            System.out.format(
+                    "Load round %d: sequential %d ms, parallel %d ms (%s)\n",
+                    r,
+                    (t2 - t1) / 1000000,
+                    (t3 - t2) / 1000000,
+                    loader
+            );
+        }
+    }
+
+    @Test public void benchmarkBuildSortedTest() {
+        Random rnd = new Random(42);
+        int n = 500000;
+        long[] keys = new long[n];
+        long[] masks = new long[n];
+        long[] values = new long[n];
+        for (int i = 0; i < n; i++) {
+            int cidr = 8 + rnd.nextInt(25);
+            masks[i] = ((1L << (32 - cidr)) - 1L) ^ 0xffffffffL;
+            keys[i] = rnd.nextInt() & masks[i];
+            values[i] = i;
+        }
+        long[] lookups = new long[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            lookups[i] = rnd.nextInt() & 0xffffffffL;
+        }
+
+        for (int r = 0; r < ROUNDS; r++) {
+            long t1 = System.nanoTime();
+            IPv4RadixIntTree tr = new IPv4RadixIntTree(n);
+            for (int i = 0; i < n; i++) {
+                tr.put(keys[i], masks[i], values[i]);
+            }
+            long t2 = System.nanoTime();
+            IPv4RadixIntTree bt = IPv4RadixIntTree.buildSorted(keys, masks, values, n);
+            long t3 = System.nanoTime();
+            long sum = 0;
+            for (int i = 0; i < LOOKUPS; i++) {
+                sum += tr.selectValue(lookups[i]);
+            }
+            long t4 = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++) {
+                sum -= bt.selectValue(lookups[i]);
+            }
+            long t5 = System.nanoTime();
+            System.out.format(
+                    "Build round %d: put %d ms, buildSorted %d ms; lookups put %.2f Mlookups/s, "
+                            + "buildSorted %.2f Mlookups/s (%d)\n",
+                    r,
+                    (t2 - t1) / 1000000,
+                    (t3 - t2) / 1000000,
+                    LOOKUPS * 1000.0 / (t4 - t3),
+                    LOOKUPS * 1000.0 / (t5 - t4),
+                    sum
+            );
+        }
+    }
+
+    @Test public void benchmarkLookupCacheTest() {
+        Random rnd = new Random(42);
+        IPv4RadixIntTree tr = new IPv4RadixIntTree();
+        for (int i = 0; i < N; i++) {
+            tr.put(rnd.nextInt() & 0xffffffffL, 0xffffff00L, i);
+        }
+        IPv4LookupCache cache = new IPv4LookupCache(tr, 8192);
+
+        // 90% of the lookups hit 4000 hot addresses
+        long[] hot = new long[4000];
+        for (int i = 0; i < hot.length; i++) {
+            hot[i] = rnd.nextInt() & 0xffffffffL;
+        }
+        long[] keys = new long[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            keys[i] = rnd.nextInt(10) < 9 ? hot[rnd.nextInt(hot.length)] : rnd.nextInt() & 0xffffffffL;
+        }
+
+        for (int r = 0; r < ROUNDS; r++) {
+            long sum = 0;
+            long t1 = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++) {
+                sum += tr.selectValue(keys[i]);
+            }
+            long t2 = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++) {
+                sum -= cache.selectValue(keys[i]);
+            }
+            long t3 = System.nanoTime();
+            System.out.format(
+                    "Cache round %d: tree %.2f Mlookups/s, cached %.2f Mlookups/s, hit ratio %.2f (%d)\n",
+                    r,
+                    LOOKUPS * 1000.0 / (t2 - t1),
+                    LOOKUPS * 1000.0 / (t3 - t2),
+                    (double) cache.getHits() / (cache.getHits() + cache.getMisses()),
+                    sum
+            );
+        }
+    }
+
+    @Test public void benchmarkMeteredLookupTest() {
+        Random rnd = new Random(42);
+        IPv4RadixIntTree tr = new IPv4RadixIntTree();
+        for (int i = 0; i < N; i++) {
+            tr.put(rnd.nextInt() & 0xffffffffL, 0xffffff00L, i);
+        }
+        IPv4MeteredTree metered = new IPv4MeteredTree(tr, 1024);
+
+        long[] keys = new long[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            keys[i] = rnd.nextInt() & 0xffffffffL;
+        }
+
+        for (int r = 0; r < ROUNDS; r++) {
+            long sum = 0;
+            long t1 = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++) {
+                sum += tr.selectValue(keys[i]);
+            }
+            long t2 = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++) {
+                sum -= metered.selectValue(keys[i]);
+            }
+            long t3 = System.nanoTime();
+            System.out.format(
+                    "Metered round %d: tree %.2f Mlookups/s, metered %.2f Mlookups/s (%d)\n",
+                    r,
+                    LOOKUPS * 1000.0 / (t2 - t1),
+                    LOOKUPS * 1000.0 / (t3 - t2),
+                    sum
+            );
+        }
+        System.out.println(metered.metrics().snapshot());
+    }
 }
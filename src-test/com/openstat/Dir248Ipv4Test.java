@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import org.testng.annotations.Test;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+
+
+public class Dir248Ipv4Test {
+    @Test
+    public void testCidrInclusion() {
+        IPv4RadixIntTree tr = new IPv4RadixIntTree(100);
+        tr.put(0x0a000000, 0xffffff00L, 42);
+        tr.put(0x0a000000, 0xff000000L, 69);
+        tr.put(0x0a000080, 0xffffff80L, 5);
+        tr.put(0x0a000081, 0xffffffffL, 7);
+
+        IPv4Lookup dt = new IPv4Dir248Table(tr);
+        assertEquals(dt.selectValue(0x0a202020), 69);
+        assertEquals(dt.selectValue(0x0a000020), 42);
+        assertEquals(dt.selectValue(0x0a000080), 5);
+        assertEquals(dt.selectValue(0x0a000081), 7);
+        assertEquals(dt.selectValue(0x0a0000ff), 5);
+        assertEquals(dt.selectValue(0x0b010203), IPv4RadixIntTree.NO_VALUE);
+        assertEquals(dt.selectValue(0xffffffffL), IPv4RadixIntTree.NO_VALUE);
+    }
+
+    @Test
+    public void testRegionFile() throws IOException {
+        IPv4RadixIntTree tr = IPv4RadixIntTree.loadFromLocalFile("data/ipv4/ipv4-region.txt");
+        IPv4Dir248Table dt = new IPv4Dir248Table(tr);
+
+        Random rnd = new Random(42);
+        for (int i = 0; i < 1000000; i++) {
+            long key = rnd.nextLong() & 0xffffffffL;
+            assertEquals(dt.selectValue(key), tr.selectValue(key), "Mismatch for key " + key);
+        }
+        BufferedReader br = new BufferedReader(new FileReader("data/ipv4/ipv4-list.txt"));
+        String l;
+        while ((l = br.readLine()) != null) {
+            assertEquals(dt.selectValue(l), tr.selectValue(l), "Mismatch for " + l);
+        }
+        System.out.println(dt.overflowBlocks() + " overflow blocks");
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import com.openstat.utils.IPv6Address;
+import com.openstat.utils.IpParser;
+import org.testng.annotations.Test;
+
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+
+public class IpParserTest {
+    @Test
+    public void testIpv4() {
+        assertEquals(IpParser.parseIpv4("0.0.0.0"), 0L);
+        assertEquals(IpParser.parseIpv4("255.255.255.255"), 0xffffffffL);
+        assertEquals(IpParser.parseIpv4("120.52.73.1"), 0x78344901L);
+        assertEquals(IpParser.parseIpv4("010.001.000.1"), 0x0a010001L);
+
+        String[] invalid = {"", "1", "1.2.3", "1.2.3.4.5", "256.0.0.0", "1.2.3.4 ", " 1.2.3.4",
+                "1..3.4", "1.2.3.", ".1.2.3", "1.2.3.0004", "a.b.c.d", "1.2.3.4/24", "localhost"};
+        for (String s : invalid) {
+            assertEquals(IpParser.parseIpv4(s), IpParser.INVALID, s);
+        }
+    }
+
+    @Test
+    public void testIpv6() {
+        assertIpv6("::", BigInteger.ZERO);
+        assertIpv6("::1", BigInteger.ONE);
+        assertIpv6("1::", BigInteger.ONE.shiftLeft(112));
+        assertIpv6("aa::", new BigInteger("aa", 16).shiftLeft(112));
+        assertIpv6("aa:0:0:0:0:0:0:0", new BigInteger("aa", 16).shiftLeft(112));
+        assertIpv6("1:2:3:4:5:6:7:8", new BigInteger("00010002000300040005000600070008", 16));
+        assertIpv6("1:2:3::6:7:8", new BigInteger("00010002000300000000000600070008", 16));
+        assertIpv6("1::8", new BigInteger("00010000000000000000000000000008", 16));
+        assertIpv6("FFFF:ffff:FFFF:ffff:FFFF:ffff:FFFF:ffff", BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE));
+        assertIpv6("::1.2.3.4", new BigInteger("01020304", 16));
+        assertIpv6("::ffff:10.0.0.1", new BigInteger("ffff0a000001", 16));
+        assertIpv6("1:2:3:4:5:6:1.2.3.4", new BigInteger("00010002000300040005000601020304", 16));
+
+        String[] invalid = {"", ":", ":::", "1:::2", "1::2::3", "1:2:3:4:5:6:7", "1:2:3:4:5:6:7:8:9",
+                "1:2:3:4:5:6:7::8", "1:2:3:4:5:6:7:8::", "12345::", "1:2:3:4:5:6:7:", ":1:2:3:4:5:6:7",
+                "g::", "1.2.3.4", "::1.2.3", "::1.2.3.4:5", "1:2:3:4:5:6:7:1.2.3.4", "::1 ", "fe80::1%eth0"};
+        for (String s : invalid) {
+            assertFalse(IpParser.parseIpv6(s, new IPv6Address()), s);
+        }
+    }
+
+    @Test
+    public void testRanges() {
+        byte[] line = "x 120.52.73.0/24 aa::/16".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(IpParser.parseIpv4(line, 2, 11), 0x78344900L);
+        assertEquals(IpParser.parseIpv4(line, 2, 12), IpParser.INVALID);
+        assertEquals(IpParser.parseIpv4("x 120.52.73.0/24", 2, 13), 0x78344900L);
+
+        IPv6Address address = new IPv6Address();
+        assertTrue(IpParser.parseIpv6(line, 17, 4, address));
+        assertEquals(address.hi, 0xaaL << 48);
+        assertEquals(address.lo, 0L);
+        assertTrue(IpParser.parseIpv6("x aa::/16", 2, 6, address));
+        assertEquals(address.hi, 0xaaL << 48);
+        assertFalse(IpParser.parseIpv6(line, 17, 5, null));
+    }
+
+    @Test
+    public void testVersion() {
+        assertEquals(IpParser.version("120.52.73.0/24"), 4);
+        assertEquals(IpParser.version("120.52.73.1"), 4);
+        assertEquals(IpParser.version("2001:db8::/32"), 6);
+        assertEquals(IpParser.version("::ffff:1.2.3.4"), 6);
+        assertEquals(IpParser.version("cidr"), 0);
+        assertEquals(IpParser.version("120.52.73/24"), 0);
+        assertEquals(IpParser.version(""), 0);
+    }
+
+    @Test
+    public void testAgainstInetAddress() throws Exception {
+        Random random = new Random(1);
+        IPv6Address address = new IPv6Address();
+
+        for (int i = 0; i < 10000; i++) {
+            byte[] bytes = new byte[16];
+            random.nextBytes(bytes);
+            // Runs of zero groups, so that "::" shows up in the string form
+            for (int g = random.nextInt(8); g < 8 && random.nextBoolean(); g++) {
+                bytes[2 * g] = 0;
+                bytes[2 * g + 1] = 0;
+            }
+            InetAddress v6 = InetAddress.getByAddress(bytes);
+            String s = v6.getHostAddress();
+            assertTrue(IpParser.parseIpv6(s, address), s);
+            assertEquals(address.toBigInteger(), new BigInteger(1, bytes), s);
+
+            InetAddress v4 = InetAddress.getByAddress(new byte[]{bytes[0], bytes[1], bytes[2], bytes[3]});
+            assertEquals(IpParser.parseIpv4(v4.getHostAddress()),
+                    new BigInteger(1, v4.getAddress()).longValue(), v4.getHostAddress());
+        }
+    }
+
+    private static void assertIpv6(String s, BigInteger expected) {
+        IPv6Address address = new IPv6Address();
+        assertTrue(IpParser.parseIpv6(s, address), s);
+        assertEquals(address.toBigInteger(), expected, s);
+        assertEquals(address.hi, expected.shiftRight(64).longValue(), s);
+        assertEquals(address.lo, expected.longValue(), s);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+
+public class LookupCacheTest {
+    @Test
+    public void testIpv4SkewedTraffic() throws IOException {
+        IPv4RadixIntTree tr = IPv4RadixIntTree.loadFromLocalFile("data/ipv4/ipv4-region.txt");
+        IPv4LookupCache cache = new IPv4LookupCache(tr, 10000);
+        assertEquals(cache.capacity(), 16384);
+
+        Random rnd = new Random(17);
+        long[] hot = new long[2000];
+        for (int i = 0; i < hot.length; i++) {
+            hot[i] = rnd.nextInt() & 0xffffffffL;
+        }
+        int n = 200000;
+        for (int i = 0; i < n; i++) {
+            long key = rnd.nextInt(10) < 8 ? hot[rnd.nextInt(hot.length)] : rnd.nextInt() & 0xffffffffL;
+            assertEquals(cache.selectValue(key), tr.selectValue(key));
+        }
+        assertEquals(cache.getHits() + cache.getMisses(), n);
+        assertTrue(cache.getHits() > n * 7 / 10, "Hits " + cache.getHits());
+
+        assertEquals(cache.selectValue("120.52.73.1"), tr.selectValue("120.52.73.1"));
+    }
+
+    @Test
+    public void testIpv4Concurrent() throws Exception {
+        // Every address of 10.0.0.0/24 is its own network, valued with its last byte
+        IPv4RadixIntTree tr = new IPv4RadixIntTree();
+        for (int i = 0; i < 256; i++) {
+            tr.put(0x0a000000L | i, 0xffffffffL, i);
+        }
+        // Few sets for many addresses, so threads keep rewriting the slots others read
+        final IPv4LookupCache cache = new IPv4LookupCache(tr, 8);
+        final AtomicInteger torn = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final Random rnd = new Random(t);
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 200000; i++) {
+                        int last = rnd.nextInt(16);
+                        if (cache.selectValue(0x0a000000L | last) != last) {
+                            torn.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(torn.get(), 0);
+        assertEquals(cache.getHits() + cache.getMisses(), 800000);
+    }
+
+    @Test
+    public void testIpv4Invalidation() throws IOException {
+        IPv4RadixIntTree tr = new IPv4RadixIntTree();
+        tr.put(0x0a000000L, 0xff000000L, 1);
+        IPv4LookupCache cache = new IPv4LookupCache(tr, 2);
+
+        assertEquals(cache.selectValue(0x0a010101L), 1);
+        assertEquals(cache.selectValue(0x0a010101L), 1);
+        assertEquals(cache.getHits(), 1);
+
+        tr.put(0x0a010000L, 0xffff0000L, 2);
+        assertEquals(cache.selectValue(0x0a010101L), 2);
+        tr.remove(0x0a010000L, 0xffff0000L);
+        assertEquals(cache.selectValue(0x0a010101L), 1);
+        assertEquals(cache.getMisses(), 3);
+
+        // Both ways of the only set
+        assertEquals(cache.selectValue(0x0b000000L), IPv4RadixIntTree.NO_VALUE);
+        assertEquals(cache.selectValue(0x0a010101L), 1);
+        assertEquals(cache.selectValue(0x0b000000L), IPv4RadixIntTree.NO_VALUE);
+        assertEquals(cache.getHits(), 3);
+        cache.clear();
+        assertEquals(cache.selectValue(0x0b000000L), IPv4RadixIntTree.NO_VALUE);
+        assertEquals(cache.getMisses(), 5);
+
+        try {
+            new IPv4LookupCache(tr, 1);
+            fail("Expected a capacity out of range");
+        } catch (IllegalArgumentException e) {
+            assertEquals(e.getMessage(), "Capacity 1 is out of range 2..1073741824");
+        }
+    }
+
+    @Test
+    public void testIpv6() throws Exception {
+        IPv6RadixBigIntegerTree tr = IPv6RadixBigIntegerTree.loadFromLocalFile("data/ipv6/ipv6-region.txt");
+        IPv6LookupCache cache = new IPv6LookupCache(tr, 64);
+
+        String[] keys = {"bbbb:dd:0:0:0:0:0:1", "1:0:0:0:0:0:10:0", "bbbb:0:0:0:0:0:10:1", "2:0:0:0:0:0:0:0"};
+        for (int r = 0; r < 3; r++) {
+            for (String key : keys) {
+                assertEquals(cache.selectValue(key), tr.selectValue(key));
+            }
+        }
+        assertEquals(cache.getMisses(), keys.length);
+        assertEquals(cache.getHits(), 2 * keys.length);
+
+        tr.put("2:0:0:0:0:0:0:0/16", new BigInteger("7"));
+        assertEquals(cache.selectValue("2:0:0:0:0:0:0:0"), new BigInteger("7"));
+        assertEquals(cache.selectValue(BigInteger.ONE.shiftLeft(113)), new BigInteger("7"));
+        assertEquals(cache.getMisses(), keys.length + 1);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+
+public class LookupMetricsTest {
+    @Test
+    public void testIpv4() throws IOException {
+        IPv4MeteredTree tr = new IPv4MeteredTree(new IPv4RadixIntTree(), 1);
+        tr.put(0x0a000000L, 0xff000000L, 1);
+        tr.put("10.1.0.0/16", 2);
+
+        assertEquals(tr.selectValue(0x0a010101L), 2);
+        assertEquals(tr.selectValue("10.2.0.1"), 1);
+        assertEquals(tr.selectValue(0x0b000000L), IPv4RadixIntTree.NO_VALUE);
+
+        LookupMetrics.Snapshot s = tr.metrics().snapshot();
+        assertEquals(s.getLookups(), 3);
+        assertEquals(s.getHits(), 2);
+        assertEquals(s.getMisses(), 1);
+        assertEquals(s.getPuts(), 2);
+
+        long[] prefixLengths = s.getPrefixLengths();
+        assertEquals(prefixLengths.length, 33);
+        assertEquals(prefixLengths[8], 1);
+        assertEquals(prefixLengths[16], 1);
+
+        // 10.1.1.1 walks down to the /16 node and one step past it, 10.2.0.1 follows the
+        // path to 10.1/16 until its 15th bit, 11.0.0.0 leaves the tree at its 8th bit
+        long[] depths = s.getDepths();
+        assertEquals(depths[17], 1);
+        assertEquals(depths[15], 1);
+        assertEquals(depths[8], 1);
+
+        long sampled = 0;
+        for (long count : s.getLookupLatencies()) {
+            sampled += count;
+        }
+        assertEquals(sampled, 3);
+        assertTrue(s.getLookupLatencyPercentile(99) > 0);
+        sampled = 0;
+        for (long count : s.getPutLatencies()) {
+            sampled += count;
+        }
+        assertEquals(sampled, 2);
+
+        // Snapshots don't change with the metrics
+        tr.selectValue(0x0a010101L);
+        assertEquals(s.getLookups(), 3);
+        assertEquals(tr.metrics().snapshot().getLookups(), 4);
+    }
+
+    @Test
+    public void testIpv4Sampling() throws IOException {
+        IPv4RadixIntTree plain = IPv4RadixIntTree.loadFromLocalFile("data/ipv4/ipv4-region.txt");
+        IPv4MeteredTree tr = new IPv4MeteredTree(plain, 100);
+        Random rnd = new Random(5);
+        int n = 100000;
+        for (int i = 0; i < n; i++) {
+            long key = rnd.nextInt() & 0xffffffffL;
+            assertEquals(tr.selectValue(key), plain.selectValue(key));
+        }
+
+        LookupMetrics.Snapshot s = tr.metrics().snapshot();
+        assertEquals(s.getLookups(), n);
+        assertEquals(s.getHits() + s.getMisses(), n);
+        long hits = 0;
+        for (long count : s.getPrefixLengths()) {
+            hits += count;
+        }
+        assertEquals(hits, s.getHits());
+
+        long sampled = 0;
+        for (long count : s.getLookupLatencies()) {
+            sampled += count;
+        }
+        assertTrue(sampled > n / 200 && sampled < n / 50, "Sampled " + sampled);
+
+        try {
+            new IPv4MeteredTree(plain, 0);
+            fail("Expected a sample rate out of range");
+        } catch (IllegalArgumentException e) {
+            assertEquals(e.getMessage(), "Sample rate 0 is less than 1");
+        }
+    }
+
+    @Test
+    public void testIpv6() throws Exception {
+        IPv6RadixBigIntegerTree plain = IPv6RadixBigIntegerTree.loadFromLocalFile("data/ipv6/ipv6-region.txt");
+        IPv6MeteredTree tr = new IPv6MeteredTree(plain, 1);
+
+        String[] keys = {"bbbb:dd:0:0:0:0:0:1", "1:0:0:0:0:0:10:0", "bbbb:0:0:0:0:0:10:1", "2:0:0:0:0:0:0:0"};
+        for (String key : keys) {
+            assertEquals(tr.selectValue(key), plain.selectValue(key));
+        }
+        tr.put("2:0:0:0:0:0:0:0/16", new BigInteger("7"));
+        assertEquals(tr.selectValue("2:0:0:0:0:0:0:0"), new BigInteger("7"));
+
+        LookupMetrics.Snapshot s = tr.metrics().snapshot();
+        assertEquals(s.getMaxPrefixLength(), 128);
+        assertEquals(s.getLookups(), keys.length + 1);
+        assertEquals(s.getHits() + s.getMisses(), keys.length + 1);
+        assertEquals(s.getPuts(), 1);
+        assertTrue(s.getPrefixLengths()[16] >= 1);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import org.testng.annotations.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+
+public class MappedTreeTest {
+    private static File tempImage(String prefix) throws IOException {
+        File image = File.createTempFile(prefix, ".img");
+        image.deleteOnExit();
+        return image;
+    }
+
+    @Test
+    public void testIpv4RegionFile() throws IOException {
+        IPv4RadixIntTree tr = IPv4RadixIntTree.loadFromLocalFile("data/ipv4/ipv4-region.txt");
+        File image = tempImage("ipv4-region");
+        tr.save(image.getPath());
+
+        IPv4MappedTree mt = IPv4MappedTree.open(image.getPath(), true);
+        assertEquals(mt.size(), tr.size());
+        Random rnd = new Random(42);
+        for (int i = 0; i < 1000000; i++) {
+            long key = rnd.nextLong() & 0xffffffffL;
+            assertEquals(mt.selectValue(key), tr.selectValue(key), "Mismatch for key " + key);
+        }
+    }
+
+    @Test
+    public void testIpv4CorruptedImage() throws IOException {
+        IPv4RadixIntTree tr = new IPv4RadixIntTree(100);
+        tr.put(0x0a000000, 0xffffff00L, 42);
+        File image = tempImage("ipv4-corrupted");
+        tr.save(image.getPath());
+        RandomAccessFile raf = new RandomAccessFile(image, "rw");
+        raf.seek(TreeImage.HEADER_LENGTH);
+        raf.writeInt(7);
+        raf.close();
+
+        try {
+            IPv4MappedTree.open(image.getPath(), true);
+            fail("Corrupted image was opened");
+        } catch (IOException e) {
+            assertEquals(e.getMessage(), "Tree image checksum mismatch");
+        }
+    }
+
+    @Test
+    public void testIpv6RegionFile() throws Exception {
+        IPv6RadixBigIntegerTree tr = IPv6RadixBigIntegerTree.loadFromLocalFile("data/ipv6/ipv6-region.txt");
+        File image = tempImage("ipv6-region");
+        tr.save(image.getPath());
+
+        IPv6MappedTree mt = IPv6MappedTree.open(image.getPath(), true);
+        assertEquals(mt.size(), tr.size());
+        BufferedReader br = new BufferedReader(new FileReader("data/ipv6/ipv6-list.txt"));
+        String l;
+        while ((l = br.readLine()) != null) {
+            assertEquals(mt.selectValue(l), tr.selectValue(l), "Mismatch for " + l);
+        }
+        assertEquals(mt.selectValue("bbbb::10:1"), tr.selectValue("bbbb::10:1"));
+    }
+}
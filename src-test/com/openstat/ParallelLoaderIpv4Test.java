@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+
+public class ParallelLoaderIpv4Test {
+    @Test
+    public void testRegionFile() throws IOException {
+        String filename = "data/ipv4/ipv4-region.txt";
+        IPv4RadixIntTree tr = IPv4RadixIntTree.loadFromLocalFile(filename);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            // Small ranges, so that many of them end in the middle of a line
+            IPv4ParallelLoader loader = new IPv4ParallelLoader(pool, false, 4096);
+            IPv4RadixIntTree pt = loader.load(filename);
+            System.out.println(loader);
+
+            assertEquals(loader.getChunkCount(), 16);
+            assertEquals(loader.getLineCount(), 30432);
+            assertEquals(pt.size(), tr.size());
+            assertSameLookups(pt, tr);
+        } finally {
+            pool.shutdown();
+        }
+
+        IPv4ParallelLoader loader = new IPv4ParallelLoader();
+        assertSameLookups(loader.load(filename), tr);
+        assertEquals(loader.getChunkCount(), 1);
+    }
+
+    @Test
+    public void testNginx() throws IOException {
+        String filename = "data/ipv4/ip-prefix-nginx.txt";
+        IPv4RadixIntTree tr = IPv4RadixIntTree.loadFromLocalFile(filename, true);
+
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            IPv4RadixIntTree pt = new IPv4ParallelLoader(pool, true, 1024).load(filename);
+            assertEquals(pt.size(), tr.size());
+            assertSameLookups(pt, tr);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testLines() throws IOException {
+        File file = File.createTempFile("ipv4-parallel", ".txt");
+        file.deleteOnExit();
+        write(file, "10.0.0.0/8\t1\r\n\n  \naa:0:0:0:0:0:0:0/16\t2\n10.0.0.0/8 3\n10.1.0.0/16   4");
+
+        IPv4ParallelLoader loader = new IPv4ParallelLoader(ForkJoinPool.commonPool(), false, 8);
+        IPv4RadixIntTree tr = loader.load(file.getPath());
+        assertTrue(loader.getChunkCount() > 1);
+        assertEquals(loader.getLineCount(), 6);
+        assertEquals(loader.getPrefixCount(), 3);
+        assertEquals(tr.selectValue(0x0a020304L), 3);
+        assertEquals(tr.selectValue(0x0a010203L), 4);
+        assertEquals(tr.selectValue(0x0b000000L), IPv4RadixIntTree.NO_VALUE);
+
+        write(file, "10.0.0.0/8\t1\n10.0.0.0/33\t2\n");
+        try {
+            loader.load(file.getPath());
+            fail("Expected a malformed line");
+        } catch (IOException e) {
+            assertEquals(e.getMessage(), "Malformed line at offset 13");
+        }
+    }
+
+    private static void assertSameLookups(IPv4RadixIntTree actual, IPv4RadixIntTree expected) {
+        Random rnd = new Random(11);
+        for (int i = 0; i < 100000; i++) {
+            long key = rnd.nextInt() & 0xffffffffL;
+            assertEquals(actual.selectValue(key), expected.selectValue(key));
+        }
+    }
+
+    private static void write(File file, String text) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(text.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+    }
+}
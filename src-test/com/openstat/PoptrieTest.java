@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+
+
+public class PoptrieTest {
+    private static final BigInteger IPV6_END_VALUE = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE);
+
+    @Test
+    public void testIpv4CidrInclusion() {
+        IPv4RadixIntTree tr = new IPv4RadixIntTree(100);
+        tr.put(0x0a000000, 0xffffff00L, 42);
+        tr.put(0x0a000000, 0xff000000L, 69);
+        tr.put(0x0a000003, 0xffffffffL, 7);
+
+        IPv4Poptrie pt = new IPv4Poptrie(tr);
+        assertEquals(pt.selectValue(0x0a202020), 69);
+        assertEquals(pt.selectValue(0x0a000020), 42);
+        assertEquals(pt.selectValue(0x0a000003), 7);
+        assertEquals(pt.selectValue(0x0a000002), 42);
+        assertEquals(pt.selectValue(0x0b010203), IPv4RadixIntTree.NO_VALUE);
+    }
+
+    @Test
+    public void testIpv4RegionFile() throws IOException {
+        IPv4RadixIntTree tr = IPv4RadixIntTree.loadFromLocalFile("data/ipv4/ipv4-region.txt");
+        IPv4Poptrie pt = new IPv4Poptrie(tr);
+
+        Random rnd = new Random(42);
+        for (int i = 0; i < 1000000; i++) {
+            long key = rnd.nextLong() & 0xffffffffL;
+            assertEquals(pt.selectValue(key), tr.selectValue(key), "Mismatch for key " + key);
+        }
+        System.out.println(tr.size() + " nodes compiled to " + pt.size() + " Poptrie nodes");
+    }
+
+    @Test
+    public void testIpv6CidrInclusion() throws Exception {
+        IPv6RadixBigIntegerTree tr = new IPv6RadixBigIntegerTree(128);
+        tr.put("aa:0:10:0:0:0:10:0/126", new BigInteger("12345"));
+        tr.put("bbbb:0:0:0:0:0:10:0/127", new BigInteger("12346"));
+        tr.put("cc:0:10:10:0:0:10:0/128", new BigInteger("12347"));
+
+        IPv6Poptrie pt = new IPv6Poptrie(tr);
+        assertEquals(pt.selectValue("aa:0:10:0:0:0:10:3"), new BigInteger("12345"));
+        assertEquals(pt.selectValue("bbbb::10:0"), new BigInteger("12346"));
+        assertEquals(pt.selectValue("cc:0:10:10:0:0:10:0"), new BigInteger("12347"));
+        assertEquals(pt.selectValue("bbbb:bbb:0:0:0:0:10:0"), IPv6RadixBigIntegerTree.NO_VALUE);
+    }
+
+    @Test
+    public void testIpv6Random() {
+        Random rnd = new Random(42);
+        IPv6RadixBigIntegerTree tr = new IPv6RadixBigIntegerTree();
+        BigInteger[] prefixes = new BigInteger[2000];
+        for (int i = 0; i < prefixes.length; i++) {
+            int cidr = rnd.nextInt(129);
+            BigInteger mask = BigInteger.ONE.shiftLeft(128 - cidr).subtract(BigInteger.ONE).xor(IPV6_END_VALUE);
+            // Share the upper bits between prefixes so that they nest
+            prefixes[i] = new BigInteger(128, rnd).and(mask).or(BigInteger.valueOf(rnd.nextInt(4)).shiftLeft(126));
+            tr.put(prefixes[i].and(mask), mask, BigInteger.valueOf(i));
+        }
+
+        IPv6Poptrie pt = new IPv6Poptrie(tr);
+        for (int i = 0; i < 100000; i++) {
+            BigInteger key = prefixes[rnd.nextInt(prefixes.length)].xor(new BigInteger(rnd.nextInt(128), rnd));
+            assertEquals(pt.selectValue(key), tr.selectValue(key), "Mismatch for key " + key.toString(16));
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+
+public class RadixTreeCompressedIpv4Test {
+    @Test
+    public void testCidrInclusion() {
+        IPv4RadixIntTree tr = new IPv4RadixIntTree(100);
+        tr.put(0x0a000000, 0xffffff00L, 42);
+        tr.put(0x0a000000, 0xff000000L, 69);
+        tr.put(0x0a000001, 0xffffffffL, 7);
+
+        IPv4RadixCompressedTree ct = new IPv4RadixCompressedTree(tr);
+        assertEquals(ct.selectValue(0x0a202020), 69);
+        assertEquals(ct.selectValue(0x0a000020), 42);
+        assertEquals(ct.selectValue(0x0a000001), 7);
+        assertEquals(ct.selectValue(0x0b010203), IPv4RadixIntTree.NO_VALUE);
+        assertEquals(ct.size(), 3);
+    }
+
+    @Test
+    public void testDefaultRoute() {
+        IPv4RadixIntTree tr = new IPv4RadixIntTree();
+        assertEquals(new IPv4RadixCompressedTree(tr).selectValue(0x01020304), IPv4RadixIntTree.NO_VALUE);
+
+        tr.put(0, 0, 1);
+        tr.put(0xc0a80000L, 0xffff0000L, 2);
+        IPv4RadixCompressedTree ct = new IPv4RadixCompressedTree(tr);
+        assertEquals(ct.selectValue(0x01020304), 1);
+        assertEquals(ct.selectValue(0xc0a80101L), 2);
+    }
+
+    @Test
+    public void testRegionFile() throws IOException {
+        IPv4RadixIntTree tr = IPv4RadixIntTree.loadFromLocalFile("data/ipv4/ipv4-region.txt");
+        IPv4RadixCompressedTree ct = new IPv4RadixCompressedTree(tr);
+        assertTrue(ct.size() < tr.size());
+
+        Random rnd = new Random(42);
+        for (int i = 0; i < 1000000; i++) {
+            long key = rnd.nextLong() & 0xffffffffL;
+            assertEquals(ct.selectValue(key), tr.selectValue(key), "Mismatch for key " + key);
+        }
+        System.out.println(tr.size() + " nodes compressed to " + ct.size());
+    }
+}
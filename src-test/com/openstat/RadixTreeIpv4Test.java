@@ -18,11 +18,23 @@ package com.openstat;
 
 import org.testng.annotations.Test;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.CRC32;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 
 public class RadixTreeIpv4Test {
@@ -64,4 +76,382 @@ public class RadixTreeIpv4Test {
         }
         System.out.println(tr.size());
     }
+
+    @Test
+    public void testBuildSorted() {
+        Random rnd = new Random(5);
+        int n = 50000;
+        long[] keys = new long[n];
+        long[] masks = new long[n];
+        long[] values = new long[n];
+        for (int i = 0; i < n; i++) {
+            // Duplicates and host bits beyond the mask
+            keys[i] = i % 10 == 9 ? keys[rnd.nextInt(i)] : rnd.nextInt() & 0xffffffffL;
+            int cidr = rnd.nextInt(33);
+            masks[i] = ((1L << (32 - cidr)) - 1L) ^ 0xffffffffL;
+            values[i] = i;
+        }
+        masks[0] = 0;
+
+        IPv4RadixIntTree tr = new IPv4RadixIntTree();
+        for (int i = 0; i < n; i++) {
+            tr.put(keys[i], masks[i], values[i]);
+        }
+        IPv4RadixIntTree bt = IPv4RadixIntTree.buildSorted(keys, masks, values, n);
+        assertEquals(bt.size(), tr.size());
+        for (int i = 0; i < 100000; i++) {
+            long key = i < n ? keys[i] : rnd.nextInt() & 0xffffffffL;
+            assertEquals(bt.selectValue(key), tr.selectValue(key));
+        }
+
+        // Sorted input and a partial count
+        long[] sortedKeys = {0x0a000000L, 0x0a000000L, 0x0a010000L, 0x0b000000L, 0x0c000000L};
+        long[] sortedMasks = {0xff000000L, 0xffffff00L, 0xffff0000L, 0xff000000L, 0xff000000L};
+        long[] sortedValues = {1, 2, 3, 4, 5};
+        IPv4RadixIntTree st = IPv4RadixIntTree.buildSorted(sortedKeys, sortedMasks, sortedValues, 4);
+        assertEquals(st.selectValue(0x0a000001L), 2);
+        assertEquals(st.selectValue(0x0a000101L), 1);
+        assertEquals(st.selectValue(0x0a010101L), 3);
+        assertEquals(st.selectValue(0x0b010101L), 4);
+        assertEquals(st.selectValue(0x0c010101L), IPv4RadixIntTree.NO_VALUE);
+        assertEquals(IPv4RadixIntTree.buildSorted(keys, masks, values, 0).size(), 1);
+    }
+
+    @Test
+    public void testLoadSizeHint() throws IOException {
+        String filename = "data/ipv4/ipv4-region.txt";
+        IPv4RadixIntTree tr = IPv4RadixIntTree.loadFromLocalFile(filename);
+        IPv4RadixIntTree hinted = IPv4RadixIntTree.loadFromLocalFile(filename, false, tr.size());
+        IPv4RadixIntTree small = IPv4RadixIntTree.loadFromLocalFile(filename, false, 1);
+
+        // The guess from the file length covers the tree without a resize
+        assertTrue(IPv4RadixIntTree.estimateSize(new File(filename).length()) >= tr.size());
+        assertEquals(hinted.size(), tr.size());
+        assertEquals(small.size(), tr.size());
+
+        Random rnd = new Random(7);
+        for (int i = 0; i < 100000; i++) {
+            long key = rnd.nextInt() & 0xffffffffL;
+            assertEquals(hinted.selectValue(key), tr.selectValue(key));
+            assertEquals(small.selectValue(key), tr.selectValue(key));
+        }
+    }
+
+    @Test
+    public void testSelectValues() throws IOException {
+        IPv4RadixIntTree tr = IPv4RadixIntTree.loadFromLocalFile("data/ipv4/ipv4-region.txt");
+        Random rnd = new Random(42);
+        long[] keys = new long[100003];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = rnd.nextLong() & 0xffffffffL;
+        }
+
+        long[] out = new long[keys.length];
+        tr.selectValues(keys, out);
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(out[i], tr.selectValue(keys[i]), "Mismatch in key #" + i);
+        }
+    }
+
+    @Test
+    public void testFreeze() throws IOException {
+        IPv4RadixIntTree tr = IPv4RadixIntTree.loadFromLocalFile("data/ipv4/ipv4-region.txt");
+        IPv4FrozenTree ft = tr.freeze();
+        assertEquals(ft.size(), tr.size());
+
+        Random rnd = new Random(42);
+        for (int i = 0; i < 1000000; i++) {
+            long key = rnd.nextLong() & 0xffffffffL;
+            assertEquals(ft.selectValue(key), tr.selectValue(key), "Mismatch for key " + key);
+        }
+
+        tr.put("1.2.3.0/24", 5);
+        assertEquals(tr.selectValue("1.2.3.4"), 5);
+        assertEquals(ft.selectValue("1.2.3.4"), IPv4RadixIntTree.NO_VALUE);
+    }
+
+    @Test
+    public void testSaveLoad() throws IOException {
+        IPv4RadixIntTree tr = IPv4RadixIntTree.loadFromLocalFile("data/ipv4/ipv4-region.txt");
+        File image = File.createTempFile("ipv4-region", ".img");
+        image.deleteOnExit();
+        tr.save(image.getPath());
+
+        IPv4RadixIntTree loaded = IPv4RadixIntTree.load(image.getPath());
+        assertEquals(loaded.size(), tr.size());
+        Random rnd = new Random(42);
+        for (int i = 0; i < 1000000; i++) {
+            long key = rnd.nextLong() & 0xffffffffL;
+            assertEquals(loaded.selectValue(key), tr.selectValue(key), "Mismatch for key " + key);
+        }
+
+        // A loaded tree stays writable
+        loaded.put("1.2.3.0/24", 5);
+        assertEquals(loaded.selectValue("1.2.3.4"), 5);
+    }
+
+    @Test
+    public void testLoadCorruptedImage() throws IOException {
+        IPv4RadixIntTree tr = new IPv4RadixIntTree(100);
+        tr.put(0x0a000000, 0xffffff00L, 42);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tr.save(out);
+        byte[] bytes = out.toByteArray();
+        bytes[bytes.length / 2] ^= 1;
+
+        try {
+            IPv4RadixIntTree.load(new ByteArrayInputStream(bytes));
+            fail("Corrupted image was loaded");
+        } catch (IOException e) {
+            assertEquals(e.getMessage(), "Tree image checksum mismatch");
+        }
+    }
+
+    @Test
+    public void testLoadCorruptedLinks() throws IOException {
+        IPv4RadixIntTree tr = new IPv4RadixIntTree(100);
+        tr.put(0x0a000000, 0xffffff00L, 42);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tr.save(out);
+        byte[] bytes = out.toByteArray();
+
+        // Root left pointer back to the root, with a checksum that matches again
+        ByteBuffer image = ByteBuffer.wrap(bytes);
+        image.putInt(TreeImage.HEADER_LENGTH, 0);
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - TreeImage.CHECKSUM_LENGTH);
+        image.putLong(bytes.length - TreeImage.CHECKSUM_LENGTH, crc.getValue());
+        try {
+            IPv4RadixIntTree.load(new ByteArrayInputStream(bytes));
+            fail("Corrupted image was loaded");
+        } catch (IOException e) {
+            assertEquals(e.getMessage(), "Corrupt image");
+        }
+    }
+
+    @Test
+    public void testSaveLoadReusedNodes() throws IOException {
+        IPv4RadixIntTree tr = new IPv4RadixIntTree(100);
+        tr.put(0x0a000000, 0xfffe0000L, 10);
+        tr.put(0x0b000000, 0xffffff00L, 11);
+        tr.remove(0x0a000000, 0xfffe0000L);
+        // Takes all 8 nodes freed by 10.0.0.0/15, below the last node of 11.0.0.0/24
+        tr.put(0x0b000001, 0xffffffffL, 12);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tr.save(out);
+        IPv4RadixIntTree loaded = IPv4RadixIntTree.load(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(loaded.size(), tr.size());
+        assertEquals(loaded.selectValue(0x0b000001), 12);
+        assertEquals(loaded.selectValue(0x0b000002), 11);
+        assertEquals(loaded.selectValue(0x0a000001), IPv4RadixIntTree.NO_VALUE);
+    }
+
+    @Test
+    public void testLoadCorruptedNodeCount() throws IOException {
+        IPv4RadixIntTree tr = new IPv4RadixIntTree(100);
+        tr.put(0x0a000000, 0xffffff00L, 42);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tr.save(out);
+        byte[] bytes = out.toByteArray();
+
+        // Node count is the last int of the header, rejected before any array is allocated
+        bytes[TreeImage.HEADER_LENGTH - 4] = 0x7f;
+        try {
+            IPv4RadixIntTree.load(new BufferedInputStream(new ByteArrayInputStream(bytes)));
+            fail("Corrupted image was loaded");
+        } catch (IOException e) {
+            assertEquals(e.getMessage(), "Invalid node count " + (0x7f000000 | tr.size()));
+        }
+
+        bytes[TreeImage.HEADER_LENGTH - 4] = 0;
+        bytes[TreeImage.HEADER_LENGTH - 2] = 1;
+        try {
+            IPv4RadixIntTree.load(new ByteArrayInputStream(bytes));
+            fail("Corrupted image was loaded");
+        } catch (IOException e) {
+            assertEquals(e.getMessage(), "Tree image of " + bytes.length + " bytes cannot hold "
+                    + (0x100 | tr.size()) + " nodes");
+        }
+    }
+
+    @Test
+    public void testRemove() throws IOException {
+        IPv4RadixIntTree tr = new IPv4RadixIntTree(100);
+        tr.put("10.0.0.0/8", 69);
+        tr.put("10.0.0.0/24", 42);
+        tr.put("10.0.0.129/32", 7);
+
+        assertEquals(tr.remove("10.0.0.129/32"), true);
+        assertEquals(tr.selectValue("10.0.0.129"), 42);
+        assertEquals(tr.remove("10.0.0.0/24"), true);
+        assertEquals(tr.selectValue("10.0.0.129"), 69);
+
+        // Prefixes without a value of their own are not removed
+        assertEquals(tr.remove("10.0.0.0/16"), false);
+        assertEquals(tr.remove("11.0.0.0/8"), false);
+        assertEquals(tr.remove("10.0.0.0/24"), false);
+        assertEquals(tr.selectValue("10.1.2.3"), 69);
+
+        assertEquals(tr.remove("10.0.0.0/8"), true);
+        assertEquals(tr.selectValue("10.1.2.3"), IPv4RadixIntTree.NO_VALUE);
+    }
+
+    @Test
+    public void testApplyDelta() throws IOException {
+        IPv4RadixIntTree tr = IPv4RadixIntTree.loadFromLocalFile("data/ipv4/ipv4-region.txt");
+        IPv4RadixIntTree updated = tr.copy();
+
+        // "delete 5.6.7.0/24" targets a prefix that is not in the tree
+        assertEquals(updated.applyDeltaFromLocalFile("data/ipv4/ipv4-region-delta.txt"), 3);
+        assertEquals(updated.selectValue("1.2.3.4"), 971659862299999999L);
+        assertEquals(updated.selectValue("111.40.240.1"), 971659862259799999L);
+        // Falls back to the covering 120.52.0.0/17
+        assertEquals(updated.selectValue("120.52.73.1"), 971659863203512669L);
+
+        // The source of the copy is left untouched
+        assertEquals(tr.selectValue("1.2.3.4"), IPv4RadixIntTree.NO_VALUE);
+        assertEquals(tr.selectValue("111.40.240.1"), 971659862259793920L);
+        assertEquals(tr.selectValue("120.52.73.1"), 971659862255599616L);
+
+        Random rnd = new Random(42);
+        for (int i = 0; i < 1000000; i++) {
+            long key = rnd.nextLong() & 0xffffffffL;
+            if ((key & 0xffffff00L) != 0x01020300L && (key & 0xfffffff0L) != 0x6f28f000L
+                    && (key & 0xffffff00L) != 0x78344900L) {
+                assertEquals(updated.selectValue(key), tr.selectValue(key), "Mismatch for key " + key);
+            }
+        }
+    }
+
+    @Test
+    public void testApplyMalformedDelta() {
+        String[] lines = {"delete", "add\t1.2.3.0/24", "add\t1.2.3.0\t42", "add\t1.2.3.0/33\t42",
+                "add\t1.2.3.0/24\tx", "delete\t1.2.3.0/y"};
+        for (String line : lines) {
+            IPv4RadixIntTree tr = new IPv4RadixIntTree(100);
+            tr.put(0x0a000000, 0xff000000L, 69);
+            int size = tr.size();
+            try {
+                tr.applyDelta(new BufferedReader(new StringReader("delete\t10.0.0.0/8\n" + line + "\n")));
+                fail("Accepted '" + line + "'");
+            } catch (IOException e) {
+                assertEquals(e.getMessage(), "Malformed delta line #2");
+            }
+            // Nothing is applied, not even the valid first line
+            assertEquals(tr.selectValue(0x0a010203), 69);
+            assertEquals(tr.size(), size);
+        }
+    }
+
+    @Test
+    public void testRemoveReusesNodes() {
+        IPv4RadixIntTree tr = new IPv4RadixIntTree(100);
+        tr.put(0x0a000000, 0xff000000L, 69);
+        int size = tr.size();
+
+        for (int i = 0; i < 1000; i++) {
+            tr.put(0x0a000000 | (i << 8), 0xffffff00L, i);
+            assertEquals(tr.remove(0x0a000000 | (i << 8), 0xffffff00L), true);
+            assertEquals(tr.size(), size);
+        }
+        assertEquals(tr.selectValue(0x0a010203), 69);
+    }
+
+    @Test
+    public void testCompact() throws IOException {
+        IPv4RadixIntTree tr = new IPv4RadixIntTree(1024);
+        IPv4RadixIntTree half = new IPv4RadixIntTree(1024);
+        Random rnd = new Random(42);
+        long[] nets = new long[20000];
+        long[] masks = new long[nets.length];
+        Set<Long> distinct = new HashSet<Long>();
+        for (int i = 0; i < nets.length; i++) {
+            do {
+                masks[i] = (0xffffffffL << (32 - 8 - rnd.nextInt(25))) & 0xffffffffL;
+                nets[i] = rnd.nextLong() & masks[i];
+            } while (!distinct.add(nets[i] << 32 | masks[i]));
+            tr.put(nets[i], masks[i], i);
+        }
+        int full = tr.size();
+
+        // Remove every other prefix, the reference tree only holds the others
+        for (int i = 0; i < nets.length; i++) {
+            if (i % 2 == 0) {
+                tr.remove(nets[i], masks[i]);
+            }
+        }
+        for (int i = 1; i < nets.length; i += 2) {
+            half.put(nets[i], masks[i], i);
+        }
+        assertEquals(tr.size(), half.size());
+        assertEquals(full > tr.size(), true);
+
+        long[] keys = new long[1000000];
+        for (int k = 0; k < keys.length; k++) {
+            keys[k] = rnd.nextLong() & 0xffffffffL;
+            assertEquals(tr.selectValue(keys[k]), half.selectValue(keys[k]), "Mismatch for key " + keys[k]);
+        }
+        IPv4FrozenTree ft = tr.freeze();
+        assertEquals(ft.size(), tr.size());
+
+        // Removed nodes are left out of images
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tr.save(out);
+        IPv4RadixIntTree loaded = IPv4RadixIntTree.load(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(loaded.size(), tr.size());
+
+        tr.compact();
+        assertEquals(tr.size(), half.size());
+        for (long key : keys) {
+            assertEquals(tr.selectValue(key), half.selectValue(key), "Mismatch for key " + key);
+            assertEquals(ft.selectValue(key), half.selectValue(key), "Mismatch for key " + key);
+            assertEquals(loaded.selectValue(key), half.selectValue(key), "Mismatch for key " + key);
+        }
+
+        // A compacted tree still grows
+        tr.put(0x01020300, 0xffffff00L, 5);
+        assertEquals(tr.selectValue(0x01020304), 5);
+    }
+
+    @Test
+    public void testSelectEntry() throws IOException {
+        IPv4RadixIntTree tr = new IPv4RadixIntTree();
+        tr.put(0x0a000000L, 0xff000000L, 1);
+        tr.put("10.1.0.0/16", 2);
+        tr.put("0.0.0.0/0", 3);
+
+        IPv4Entry entry = new IPv4Entry();
+        assertEquals(tr.selectEntry(0x0a010101L, entry), 2);
+        assertEquals(entry.network, 0x0a010000L);
+        assertEquals(entry.prefixLength, 16);
+        assertEquals(entry.value, 2);
+        assertEquals(entry.depth, 17);
+        assertEquals(entry.toString(), "10.1.0.0/16 => 2, depth 17");
+
+        assertEquals(tr.selectEntry(0x0a020304L, entry), 1);
+        assertEquals(entry.network, 0x0a000000L);
+        assertEquals(entry.prefixLength, 8);
+
+        assertEquals(tr.selectEntry(0xc0a80001L, entry), 3);
+        assertEquals(entry.network, 0L);
+        assertEquals(entry.prefixLength, 0);
+
+        tr.remove("0.0.0.0/0");
+        assertEquals(tr.selectEntry(0xc0a80001L, entry), IPv4RadixIntTree.NO_VALUE);
+        assertEquals(entry.prefixLength, -1);
+        assertEquals(entry.found(), false);
+
+        tr = IPv4RadixIntTree.loadFromLocalFile("data/ipv4/ipv4-region.txt");
+        Random rnd = new Random(11);
+        for (int i = 0; i < 100000; i++) {
+            long key = rnd.nextInt() & 0xffffffffL;
+            long value = tr.selectEntry(key, entry);
+            assertEquals(value, tr.selectValue(key));
+            if (entry.found()) {
+                long mask = ~((1L << (32 - entry.prefixLength)) - 1) & 0xffffffffL;
+                assertEquals(entry.network, key & mask);
+            }
+        }
+    }
 }
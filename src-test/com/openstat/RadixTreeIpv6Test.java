@@ -20,11 +20,15 @@ import com.openstat.utils.IpConvert;
 import org.testng.annotations.Test;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.StringReader;
 import java.math.BigInteger;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
 
 
 public class RadixTreeIpv6Test {
@@ -54,5 +58,161 @@ public class RadixTreeIpv6Test {
         assertEquals(tr.selectValue(IpConvert.stringToBigInt("bbbb:bbb:0:0:0:0:10:0")), IPv6RadixBigIntegerTree.NO_VALUE);
     }
 
+    @Test
+    public void testSelectValues() throws Exception {
+        IPv6RadixBigIntegerTree tr = new IPv6RadixBigIntegerTree(128);
+        tr.put("aa:0:10:0:0:0:10:0/126", new BigInteger("12345"));
+        tr.put("bbbb:0:0:0:0:0:10:0/127", new BigInteger("12346"));
+        tr.put("cc:0:10:10:0:0:10:0/128", new BigInteger("12347"));
+        tr.put("aa::/16", new BigInteger("12348"));
+
+        String[] ips = {"aa:0:10:0:0:0:10:0", "aa:0:10:0:0:0:10:3", "bbbb::10:0", "cc:0:10:10:0:0:10:0",
+                "bbbb:bbb:0:0:0:0:10:0", "aa:1::1", "::1"};
+        BigInteger[] keys = new BigInteger[ips.length];
+        for (int i = 0; i < ips.length; i++) {
+            keys[i] = IpConvert.stringToBigInt(ips[i]);
+        }
+
+        BigInteger[] out = new BigInteger[keys.length];
+        tr.selectValues(keys, out);
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(out[i], tr.selectValue(keys[i]), "Mismatch for " + ips[i]);
+        }
+    }
+
+    @Test
+    public void testSaveLoad() throws Exception {
+        IPv6RadixBigIntegerTree tr = IPv6RadixBigIntegerTree.loadFromLocalFile("data/ipv6/ipv6-region.txt");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tr.save(out);
+
+        IPv6RadixBigIntegerTree loaded = IPv6RadixBigIntegerTree.load(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(loaded.size(), tr.size());
+        BufferedReader br = new BufferedReader(new FileReader("data/ipv6/ipv6-list.txt"));
+        String l;
+        while ((l = br.readLine()) != null) {
+            assertEquals(loaded.selectValue(l), tr.selectValue(l), "Mismatch for " + l);
+        }
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        IPv6RadixBigIntegerTree tr = new IPv6RadixBigIntegerTree(128);
+        tr.put("aa:0:0:0:0:0:0:0/16", new BigInteger("12348"));
+        tr.put("aa:0:10:0:0:0:10:0/126", new BigInteger("12345"));
+
+        assertEquals(tr.remove("aa:0:10:0:0:0:10:0/126"), true);
+        assertEquals(tr.selectValue("aa:0:10:0:0:0:10:1"), new BigInteger("12348"));
+        assertEquals(tr.remove("aa:0:10:0:0:0:10:0/126"), false);
+        assertEquals(tr.remove("aa:0:0:0:0:0:0:0/32"), false);
+        assertEquals(tr.remove("aa:0:0:0:0:0:0:0/16"), true);
+        assertEquals(tr.selectValue("aa:0:10:0:0:0:10:1"), IPv6RadixBigIntegerTree.NO_VALUE);
+    }
+
+    @Test
+    public void testApplyDelta() throws Exception {
+        IPv6RadixBigIntegerTree tr = IPv6RadixBigIntegerTree.loadFromLocalFile("data/ipv6/ipv6-region.txt");
+        IPv6RadixBigIntegerTree updated = tr.copy();
+
+        assertEquals(updated.applyDeltaFromLocalFile("data/ipv6/ipv6-region-delta.txt"), 3);
+        assertEquals(updated.selectValue("aaaa::1"), new BigInteger("951745140559446099"));
+        assertEquals(updated.selectValue("1:0:0:0:0:0:10:1"), new BigInteger("951745140559446098"));
+        assertEquals(updated.selectValue("bbbb::10:0"), IPv6RadixBigIntegerTree.NO_VALUE);
 
+        // The source of the copy is left untouched
+        assertEquals(tr.selectValue("aaaa::1"), IPv6RadixBigIntegerTree.NO_VALUE);
+        assertEquals(tr.selectValue("1:0:0:0:0:0:10:1"), new BigInteger("951745140559446017"));
+        assertEquals(tr.selectValue("bbbb::10:0"), new BigInteger("951745140559446018"));
+    }
+
+    @Test
+    public void testApplyMalformedDelta() throws Exception {
+        String[] lines = {"delete", "add\taa::/16", "add\taa::\t42", "add\taa::/129\t42",
+                "add\taa::/16\tx", "delete\taa::/y"};
+        for (String line : lines) {
+            IPv6RadixBigIntegerTree tr = new IPv6RadixBigIntegerTree(128);
+            tr.put("aa:0:0:0:0:0:0:0/16", new BigInteger("12348"));
+            int size = tr.size();
+            try {
+                tr.applyDelta(new BufferedReader(new StringReader("delete\taa::/16\n" + line + "\n")));
+                fail("Accepted '" + line + "'");
+            } catch (IOException e) {
+                assertEquals(e.getMessage(), "Malformed delta line #2");
+            }
+            // Nothing is applied, not even the valid first line
+            assertEquals(tr.selectValue("aa:0:10:0:0:0:10:1"), new BigInteger("12348"));
+            assertEquals(tr.size(), size);
+        }
+    }
+
+    @Test
+    public void testRemoveReusesNodes() throws Exception {
+        IPv6RadixBigIntegerTree tr = new IPv6RadixBigIntegerTree(128);
+        tr.put("aa:0:0:0:0:0:0:0/16", new BigInteger("12348"));
+        int size = tr.size();
+
+        for (int i = 0; i < 1000; i++) {
+            String net = "aa:" + Integer.toHexString(i) + ":0:0:0:0:0:0/64";
+            tr.put(net, BigInteger.valueOf(i));
+            assertEquals(tr.remove(net), true);
+            assertEquals(tr.size(), size);
+        }
+        assertEquals(tr.selectValue("aa:0:10:0:0:0:10:1"), new BigInteger("12348"));
+
+        // A null value counts as no value and is pruned like one
+        tr.put("aa:1:0:0:0:0:0:0/32", null);
+        assertEquals(tr.remove("aa:1:0:0:0:0:0:0/32"), false);
+    }
+
+    @Test
+    public void testSaveCompacts() throws Exception {
+        IPv6RadixBigIntegerTree tr = IPv6RadixBigIntegerTree.loadFromLocalFile("data/ipv6/ipv6-region.txt");
+        IPv6RadixBigIntegerTree churned = tr.copy();
+        for (int i = 0; i < 100; i++) {
+            churned.put("dead:" + Integer.toHexString(i) + ":0:0:0:0:0:0/64", BigInteger.valueOf(i));
+        }
+        for (int i = 0; i < 100; i++) {
+            churned.remove("dead:" + Integer.toHexString(i) + ":0:0:0:0:0:0/64");
+        }
+        assertEquals(churned.size(), tr.size());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        churned.save(out);
+        IPv6RadixBigIntegerTree loaded = IPv6RadixBigIntegerTree.load(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(loaded.size(), tr.size());
+        BufferedReader br = new BufferedReader(new FileReader("data/ipv6/ipv6-list.txt"));
+        String l;
+        while ((l = br.readLine()) != null) {
+            assertEquals(loaded.selectValue(l), tr.selectValue(l), "Mismatch for " + l);
+        }
+    }
+
+    @Test
+    public void testSelectEntry() throws Exception {
+        IPv6RadixBigIntegerTree tr = IPv6RadixBigIntegerTree.loadFromLocalFile("data/ipv6/ipv6-region.txt");
+        IPv6Entry entry = new IPv6Entry();
+
+        BigInteger key = IpConvert.stringToBigInt("bbbb:dd:0:0:0:0:0:1");
+        assertEquals(tr.selectEntry(key, entry), tr.selectValue(key));
+        assertEquals(entry.prefixLength, 26);
+        assertEquals(entry.network.toBigInteger(), IpConvert.stringToBigInt("bbbb:c0:0:0:0:0:0:0"));
+        assertEquals(entry.value, new BigInteger("951745140559446016"));
+        assertEquals(entry.toString(), "bbbb:c0:0:0:0:0:0:0/26 => 951745140559446016, depth " + entry.depth);
+
+        key = IpConvert.stringToBigInt("bbbb:0:0:0:0:0:10:1");
+        assertEquals(tr.selectEntry(key, entry), new BigInteger("951745140559446018"));
+        assertEquals(entry.prefixLength, 127);
+        assertEquals(entry.network.toBigInteger(), IpConvert.stringToBigInt("bbbb:0:0:0:0:0:10:0"));
+
+        tr.put("bbbb:0:0:0:0:0:10:1/128", new BigInteger("5"));
+        assertEquals(tr.selectEntry(key, entry), new BigInteger("5"));
+        assertEquals(entry.prefixLength, 128);
+        assertEquals(entry.network.toBigInteger(), key);
+
+        key = IpConvert.stringToBigInt("2:0:0:0:0:0:0:0");
+        assertEquals(tr.selectEntry(key, entry), IPv6RadixBigIntegerTree.NO_VALUE);
+        assertEquals(entry.prefixLength, -1);
+        assertEquals(entry.network.hi, 0L);
+        assertEquals(entry.network.lo, 0L);
+    }
 }
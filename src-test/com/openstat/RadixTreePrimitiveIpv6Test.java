@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import org.testng.annotations.Test;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+
+public class RadixTreePrimitiveIpv6Test {
+    private static final BigInteger IPV6_END_VALUE = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE);
+
+    @Test
+    public void testCidrInclusion() {
+        IPv6RadixTree tr = new IPv6RadixTree(4);
+        tr.put("aa:0:10:0:0:0:10:0/126", new BigInteger("12345"));
+        tr.put("bbbb:0:0:0:0:0:10:0/127", new BigInteger("12346"));
+        tr.put("cc:0:10:10:0:0:10:0/128", new BigInteger("12347"));
+        tr.put("aa:0:0:0:0:0:0:0/16", new BigInteger("12348"));
+        tr.put("dd:0:0:0:0:0:0:0/64", new BigInteger("12349"));
+
+        assertEquals(tr.selectValue("aa:0:10:0:0:0:10:0"), new BigInteger("12345"));
+        assertEquals(tr.selectValue("aa:0:10:0:0:0:10:3"), new BigInteger("12345"));
+        assertEquals(tr.selectValue("aa:0:10:0:0:0:10:4"), new BigInteger("12348"));
+        assertEquals(tr.selectValue("bbbb:0:0:0:0:0:10:1"), new BigInteger("12346"));
+        assertEquals(tr.selectValue("cc:0:10:10:0:0:10:0"), new BigInteger("12347"));
+        assertEquals(tr.selectValue("cc:0:10:10:0:0:10:1"), IPv6RadixTree.NO_VALUE);
+        assertEquals(tr.selectValue("dd:0:0:0:ffff:0:0:1"), new BigInteger("12349"));
+        assertEquals(tr.selectValue("dd:0:0:1:0:0:0:0"), IPv6RadixTree.NO_VALUE);
+        assertEquals(tr.selectValue("bbbb:bbb:0:0:0:0:10:0"), IPv6RadixTree.NO_VALUE);
+
+        // Default route
+        tr.put(0, 0, 0, 0, new BigInteger("1"));
+        assertEquals(tr.selectValue(-1L, -1L), new BigInteger("1"));
+    }
+
+    @Test
+    public void testPutNoValue() {
+        IPv6RadixTree tr = new IPv6RadixTree(4);
+        tr.put("aa:0:0:0:0:0:0:0/16", new BigInteger("12348"));
+        tr.put("aa:0:10:0:0:0:10:0/126", new BigInteger("12345"));
+        tr.put("aa:0:10:0:0:0:10:0/126", IPv6RadixTree.NO_VALUE);
+        tr.put("bb:0:0:0:0:0:0:0/16", IPv6RadixTree.NO_VALUE);
+        assertEquals(tr.selectValue("aa:0:10:0:0:0:10:1"), new BigInteger("12348"));
+        assertEquals(tr.selectValue("bb:0:10:0:0:0:10:1"), IPv6RadixTree.NO_VALUE);
+        tr.put("aa:0:10:0:0:0:10:0/126", new BigInteger("12346"));
+        assertEquals(tr.selectValue("aa:0:10:0:0:0:10:1"), new BigInteger("12346"));
+
+        IPv6RadixLongTree lt = new IPv6RadixLongTree(4);
+        lt.put("aa:0:0:0:0:0:0:0/16", 12348L);
+        lt.put("aa:0:10:0:0:0:10:0/126", 12345L);
+        lt.put("aa:0:10:0:0:0:10:0/126", IPv6RadixLongTree.NO_VALUE);
+        assertEquals(lt.selectValue("aa:0:10:0:0:0:10:1"), 12348L);
+        lt.put("aa:0:10:0:0:0:10:0/126", 12346L);
+        assertEquals(lt.selectValue("aa:0:10:0:0:0:10:1"), 12346L);
+    }
+
+    @Test
+    public void testMalformedNetwork() {
+        String[] nets = {"2001:db9::/abc", "2001:db9::/129", "2001:db9::/-1", "2001:db9::"};
+        for (String net : nets) {
+            IPv6RadixTree tr = new IPv6RadixTree(4);
+            try {
+                tr.put(net, new BigInteger("7"));
+                fail("Accepted '" + net + "'");
+            } catch (NumberFormatException e) {
+                assertEquals(e.getMessage(), "Invalid IPv6 network: " + net);
+            }
+            IPv6RadixLongTree lt = new IPv6RadixLongTree(4);
+            try {
+                lt.put(net, 7L);
+                fail("Accepted '" + net + "'");
+            } catch (NumberFormatException e) {
+                assertEquals(e.getMessage(), "Invalid IPv6 network: " + net);
+            }
+            assertEquals(tr.selectValue("3000::"), IPv6RadixTree.NO_VALUE);
+            assertEquals(tr.size(), 1);
+            assertEquals(lt.size(), 1);
+        }
+    }
+
+    @Test
+    public void testRegionFile() throws Exception {
+        IPv6RadixBigIntegerTree tr = IPv6RadixBigIntegerTree.loadFromLocalFile("data/ipv6/ipv6-region.txt");
+        IPv6RadixTree pt = IPv6RadixTree.loadFromLocalFile("data/ipv6/ipv6-region.txt");
+        assertEquals(pt.size(), tr.size());
+
+        BufferedReader br = new BufferedReader(new FileReader("data/ipv6/ipv6-list.txt"));
+        String l;
+        while ((l = br.readLine()) != null) {
+            assertEquals(pt.selectValue(l), tr.selectValue(l), "Mismatch for " + l);
+        }
+        br.close();
+    }
+
+    @Test
+    public void testRandom() {
+        Random rnd = new Random(42);
+        IPv6RadixBigIntegerTree tr = new IPv6RadixBigIntegerTree();
+        IPv6RadixTree pt = new IPv6RadixTree();
+        BigInteger[] prefixes = new BigInteger[2000];
+        for (int i = 0; i < prefixes.length; i++) {
+            int cidr = rnd.nextInt(129);
+            BigInteger mask = BigInteger.ONE.shiftLeft(128 - cidr).subtract(BigInteger.ONE).xor(IPV6_END_VALUE);
+            // Share the upper bits between prefixes so that they nest
+            prefixes[i] = new BigInteger(128, rnd).and(mask).or(BigInteger.valueOf(rnd.nextInt(4)).shiftLeft(126));
+            tr.put(prefixes[i].and(mask), mask, BigInteger.valueOf(i));
+            pt.put(prefixes[i].and(mask), mask, BigInteger.valueOf(i));
+        }
+        assertEquals(pt.size(), tr.size());
+
+        for (int i = 0; i < 100000; i++) {
+            BigInteger key = prefixes[rnd.nextInt(prefixes.length)].xor(new BigInteger(rnd.nextInt(128), rnd));
+            assertEquals(pt.selectValue(key), tr.selectValue(key), "Mismatch for key " + key.toString(16));
+        }
+    }
+
+    @Test
+    public void testLongValues() throws Exception {
+        IPv6RadixLongTree lt = new IPv6RadixLongTree(4);
+        lt.put("aa:0:10:0:0:0:10:0/126", 951745140559446016L);
+        lt.put("aa:0:0:0:0:0:0:0/16", 12348L);
+        assertEquals(lt.selectValue("aa:0:10:0:0:0:10:3"), 951745140559446016L);
+        assertEquals(lt.selectValue("aa:0:10:0:0:0:10:4"), 12348L);
+        assertEquals(lt.selectValue("bb:0:10:0:0:0:10:4"), IPv6RadixLongTree.NO_VALUE);
+
+        IPv6RadixBigIntegerTree tr = IPv6RadixBigIntegerTree.loadFromLocalFile("data/ipv6/ipv6-region.txt");
+        lt = IPv6RadixLongTree.loadFromLocalFile("data/ipv6/ipv6-region.txt");
+        assertEquals(lt.size(), tr.size());
+
+        BufferedReader br = new BufferedReader(new FileReader("data/ipv6/ipv6-list.txt"));
+        String l;
+        while ((l = br.readLine()) != null) {
+            assertEquals(lt.selectValue(l), tr.selectValue(l).longValue(), "Mismatch for " + l);
+        }
+        br.close();
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import org.testng.annotations.Test;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+
+public class RadixTreeValueWidthIpv4Test {
+    @Test
+    public void testCidrInclusion() {
+        IPv4RadixByteTree bt = new IPv4RadixByteTree(4);
+        IPv4RadixShortTree st = new IPv4RadixShortTree(4);
+        IPv4RadixInt32Tree it = new IPv4RadixInt32Tree(4);
+        IPv4Lookup[] trees = {bt, st, it};
+        bt.put(0x0a000000, 0xffffff00L, 42);
+        bt.put(0x0a000000, 0xff000000L, 255);
+        bt.put(0x0a000081, 0xffffffffL, 0);
+        st.put(0x0a000000, 0xffffff00L, 42);
+        st.put(0x0a000000, 0xff000000L, 255);
+        st.put(0x0a000081, 0xffffffffL, 0);
+        it.put(0x0a000000, 0xffffff00L, 42);
+        it.put(0x0a000000, 0xff000000L, 255);
+        it.put(0x0a000081, 0xffffffffL, 0);
+
+        for (IPv4Lookup tr : trees) {
+            assertEquals(tr.selectValue(0x0a202020), 255);
+            assertEquals(tr.selectValue(0x0a000020), 42);
+            assertEquals(tr.selectValue(0x0a000081), 0);
+            assertEquals(tr.selectValue(0x0b010203), IPv4RadixIntTree.NO_VALUE);
+        }
+    }
+
+    @Test
+    public void testValueOutOfRange() {
+        try {
+            new IPv4RadixByteTree().put(0x0a000000, 0xff000000L, 256);
+            fail("Out of range value was stored");
+        } catch (IllegalArgumentException e) {
+            assertEquals(e.getMessage(), "Value 256 is out of range 0..255");
+        }
+        try {
+            new IPv4RadixShortTree().put(0x0a000000, 0xff000000L, -1);
+            fail("Out of range value was stored");
+        } catch (IllegalArgumentException e) {
+            assertEquals(e.getMessage(), "Value -1 is out of range 0..65535");
+        }
+        try {
+            new IPv4RadixInt32Tree().put(0x0a000000, 0xff000000L, Integer.MIN_VALUE);
+            fail("Out of range value was stored");
+        } catch (IllegalArgumentException e) {
+            assertEquals(e.getMessage(), "Value -2147483648 is out of range 0..2147483647");
+        }
+    }
+
+    @Test
+    public void testMalformedNetwork() throws UnknownHostException {
+        IPv4RadixByteTree tr = new IPv4RadixByteTree();
+        for (String ipNet : new String[]{"10.0.0.0/x", "10.0.0.0/33", "10.0.0.0/-1", "10.0.0.0"}) {
+            try {
+                tr.put(ipNet, 1);
+                fail("Malformed network was stored: " + ipNet);
+            } catch (UnknownHostException e) {
+                assertEquals(e.getMessage(), ipNet + ": not an IPv4 network");
+            }
+        }
+        // Nothing was written at the root
+        assertEquals(tr.selectValue(0x0b000000L), IPv4RadixIntTree.NO_VALUE);
+    }
+
+    @Test
+    public void testRegionFile() throws IOException {
+        // Region level and region id columns
+        IPv4RadixByteTree bt = IPv4RadixByteTree.loadFromLocalFile("data/ipv4/ipv4-region.txt", 4);
+        IPv4RadixShortTree st = IPv4RadixShortTree.loadFromLocalFile("data/ipv4/ipv4-region.txt", 3);
+        IPv4RadixInt32Tree it = IPv4RadixInt32Tree.loadFromLocalFile("data/ipv4/ipv4-region.txt", 3);
+        IPv4RadixIntTree levels = new IPv4RadixIntTree();
+        IPv4RadixIntTree regions = new IPv4RadixIntTree();
+
+        BufferedReader br = new BufferedReader(new FileReader("data/ipv4/ipv4-region.txt"));
+        String l;
+        while ((l = br.readLine()) != null) {
+            String[] c = l.split("\\s+", -1);
+            levels.put(c[0], Long.parseLong(c[4]));
+            regions.put(c[0], Long.parseLong(c[3]));
+        }
+        br.close();
+        assertEquals(bt.size(), levels.size());
+
+        Random rnd = new Random(42);
+        for (int i = 0; i < 1000000; i++) {
+            long key = rnd.nextLong() & 0xffffffffL;
+            assertEquals(bt.selectValue(key), levels.selectValue(key), "Mismatch for key " + key);
+            assertEquals(st.selectValue(key), regions.selectValue(key), "Mismatch for key " + key);
+            assertEquals(it.selectValue(key), regions.selectValue(key), "Mismatch for key " + key);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import com.openstat.utils.IPv6Address;
+import com.openstat.utils.IpParser;
+import org.testng.annotations.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+
+public class RegionFileReaderTest {
+    @Test
+    public void testRegionFile() throws IOException {
+        String filename = "data/ipv4/ipv4-region.txt";
+        IPv4RadixIntTree expected = new IPv4RadixIntTree();
+        BufferedReader br = new BufferedReader(new FileReader(filename));
+        String l;
+        while ((l = br.readLine()) != null) {
+            String[] c = l.split("\\s+", -1);
+            expected.put(c[0], Long.parseLong(c[1]));
+        }
+        br.close();
+
+        IPv4RadixIntTree tr = IPv4RadixIntTree.loadFromLocalFile(filename);
+        assertEquals(tr.size(), expected.size());
+        Random rnd = new Random(3);
+        for (int i = 0; i < 100000; i++) {
+            long key = rnd.nextInt() & 0xffffffffL;
+            assertEquals(tr.selectValue(key), expected.selectValue(key));
+        }
+
+        // Windows much smaller than the file, so that lines straddle them
+        RegionFileReader r = RegionFileReader.open(filename, 100);
+        br = new BufferedReader(new FileReader(filename));
+        try {
+            while (r.next()) {
+                String[] c = br.readLine().split("\\s+", -1);
+                String[] net = c[0].split("/");
+                assertEquals(r.ipv4(), IpParser.parseIpv4(net[0]), "Mismatch in line #" + r.lineNumber());
+                assertEquals(r.ipv4Mask(), ((1L << (32 - Integer.parseInt(net[1]))) - 1) ^ 0xffffffffL);
+                assertEquals(r.longValue(false), Long.parseLong(c[1]));
+            }
+            assertEquals(r.lineNumber(), 30432);
+            assertEquals(br.readLine(), null);
+        } finally {
+            r.close();
+            br.close();
+        }
+    }
+
+    @Test
+    public void testLines() throws IOException {
+        File file = write("10.0.0.0/8 \t 1\r\n\n1:0:0:0:0:0:10:0/38\t 99999999999999999999\n"
+                + "24.224.0.0/17\t5553;\n10.1.0.0/16\t-4");
+        RegionFileReader r = RegionFileReader.open(file.getPath(), 64);
+        IPv6Address address = new IPv6Address();
+        try {
+            assertTrue(r.next());
+            assertEquals(r.ipv4(), 0x0a000000L);
+            assertEquals(r.ipv4Mask(), 0xff000000L);
+            assertEquals(r.longValue(false), 1);
+
+            assertTrue(r.next());
+            assertEquals(r.ipv4(), IpParser.INVALID);
+            assertFalse(r.ipv6(address));
+
+            assertTrue(r.next());
+            assertEquals(r.ipv4(), IpParser.INVALID);
+            assertTrue(r.ipv6(address));
+            assertEquals(address.hi, 0x0001000000000000L);
+            assertEquals(address.lo, 0x100000L);
+            assertEquals(r.ipv6Cidr(), 38);
+            assertEquals(r.bigValue(false), new BigInteger("99999999999999999999"));
+
+            assertTrue(r.next());
+            assertEquals(r.longValue(true), 0x5553);
+            assertEquals(r.bigValue(true), BigInteger.valueOf(0x5553));
+
+            assertTrue(r.next());
+            assertEquals(r.longValue(false), -4);
+            assertEquals(r.lineNumber(), 5);
+            assertFalse(r.next());
+        } finally {
+            r.close();
+        }
+
+        file = write("10.0.0.0/8\t1\n10.0.0.0/33\t2\n10.0.0.0/8\tx\n");
+        r = RegionFileReader.open(file.getPath());
+        try {
+            assertTrue(r.next());
+            assertTrue(r.next());
+            try {
+                r.ipv4Mask();
+                fail("Expected a malformed prefix length");
+            } catch (IOException e) {
+                assertEquals(e.getMessage(), "Malformed line #2");
+            }
+            assertTrue(r.next());
+            try {
+                r.longValue(false);
+                fail("Expected a malformed value");
+            } catch (IOException e) {
+                assertEquals(e.getMessage(), "Malformed line #3");
+            }
+        } finally {
+            r.close();
+        }
+
+        r = RegionFileReader.open(write("").getPath());
+        assertFalse(r.next());
+        r.close();
+    }
+
+    private static File write(String text) throws IOException {
+        File file = File.createTempFile("region", ".txt");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(text.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
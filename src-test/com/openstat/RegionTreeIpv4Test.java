@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import org.testng.annotations.Test;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+
+public class RegionTreeIpv4Test {
+    @Test
+    public void testAttributes() throws IOException {
+        IPv4RegionTree tr = new IPv4RegionTree();
+        tr.put("10.0.0.0/8", 100L, 2, 30, 3, 2, 0);
+        tr.put("10.0.0.0/24", 101L, 3, 23, 4, 3, 0);
+        tr.put("11.0.0.0/8", 102L, 2, 30, 3, 2, 0);
+
+        int record = tr.selectRecord("10.0.0.1");
+        assertEquals(tr.getId(record), 101L);
+        assertEquals(tr.getIspId(record), 3);
+        assertEquals(tr.getRegionId(record), 23);
+        assertEquals(tr.getRegionLevel(record), 4);
+        assertEquals(tr.getRegionType(record), 3);
+        assertEquals(tr.getNetworkType(record), 0);
+
+        record = tr.selectRecord("11.1.2.3");
+        assertEquals(tr.getId(record), 102L);
+        assertEquals(tr.getRegionId(record), 30);
+
+        assertEquals(tr.selectRecord("12.0.0.1"), IPv4RegionTree.NO_RECORD);
+        assertEquals(tr.recordCount(), 3);
+        assertEquals(tr.tupleCount(), 2);
+    }
+
+    @Test
+    public void testAttributeOutOfRange() throws IOException {
+        try {
+            new IPv4RegionTree().put("10.0.0.0/8", 100L, 2, 30, 300, 2, 0);
+            fail("Out of range attribute was stored");
+        } catch (IllegalArgumentException e) {
+            assertEquals(e.getMessage(), "Attribute value 300 does not fit in a byte");
+        }
+    }
+
+    @Test
+    public void testRegionFile() throws IOException {
+        IPv4RadixIntTree ids = IPv4RadixIntTree.loadFromLocalFile("data/ipv4/ipv4-region.txt");
+        IPv4RegionTree tr = IPv4RegionTree.loadFromLocalFile("data/ipv4/ipv4-region.txt");
+        assertEquals(tr.size(), ids.size());
+
+        Random rnd = new Random(42);
+        for (int i = 0; i < 1000000; i++) {
+            long key = rnd.nextLong() & 0xffffffffL;
+            assertEquals(tr.selectValue(key), ids.selectValue(key), "Mismatch for key " + key);
+        }
+
+        int record = tr.selectRecord("120.52.73.1");
+        assertEquals(tr.getId(record), 971659862255599616L);
+        assertEquals(tr.getIspId(record), 3);
+        assertEquals(tr.getRegionId(record), 23);
+        assertEquals(tr.getRegionLevel(record), 4);
+        assertEquals(tr.getRegionType(record), 3);
+        assertEquals(tr.getNetworkType(record), 0);
+
+        BufferedReader br = new BufferedReader(new FileReader("data/ipv4/ipv4-list.txt"));
+        String l;
+        while ((l = br.readLine()) != null) {
+            assertEquals(tr.selectValue(l), ids.selectValue(l), "Mismatch for " + l);
+        }
+        System.out.println(tr.recordCount() + " records share " + tr.tupleCount() + " attribute tuples");
+    }
+}
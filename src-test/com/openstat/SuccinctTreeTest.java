@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import org.testng.annotations.Test;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+
+
+public class SuccinctTreeTest {
+    private static final BigInteger IPV6_END_VALUE = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE);
+
+    @Test
+    public void testIpv4CidrInclusion() {
+        IPv4RadixIntTree tr = new IPv4RadixIntTree(100);
+        tr.put(0x0a000000, 0xffffff00L, 42);
+        tr.put(0x0a000000, 0xff000000L, 69);
+        tr.put(0x0a000003, 0xffffffffL, 7);
+        tr.put(0, 0, 1);
+
+        IPv4SuccinctTree st = new IPv4SuccinctTree(tr);
+        assertEquals(st.size(), tr.size());
+        assertEquals(st.selectValue(0x0a202020), 69);
+        assertEquals(st.selectValue(0x0a000020), 42);
+        assertEquals(st.selectValue(0x0a000003), 7);
+        assertEquals(st.selectValue(0x0a000002), 42);
+        assertEquals(st.selectValue(0x0b010203), 1);
+    }
+
+    @Test
+    public void testIpv4RegionFile() throws IOException {
+        IPv4RadixIntTree tr = IPv4RadixIntTree.loadFromLocalFile("data/ipv4/ipv4-region.txt");
+        IPv4SuccinctTree st = new IPv4SuccinctTree(tr);
+        assertEquals(st.size(), tr.size());
+
+        Random rnd = new Random(42);
+        for (int i = 0; i < 1000000; i++) {
+            long key = rnd.nextLong() & 0xffffffffL;
+            assertEquals(st.selectValue(key), tr.selectValue(key), "Mismatch for key " + key);
+        }
+        BufferedReader br = new BufferedReader(new FileReader("data/ipv4/ipv4-list.txt"));
+        String l;
+        while ((l = br.readLine()) != null) {
+            assertEquals(st.selectValue(l), tr.selectValue(l), "Mismatch for " + l);
+        }
+        System.out.println(tr.size() + " nodes encoded in " + st.sizeInBytes() + " bytes instead of " + tr.size() * 16L);
+    }
+
+    @Test
+    public void testIpv6RegionFile() throws Exception {
+        IPv6RadixBigIntegerTree tr = IPv6RadixBigIntegerTree.loadFromLocalFile("data/ipv6/ipv6-region.txt");
+        IPv6SuccinctTree st = new IPv6SuccinctTree(tr);
+        assertEquals(st.size(), tr.size());
+
+        BufferedReader br = new BufferedReader(new FileReader("data/ipv6/ipv6-list.txt"));
+        String l;
+        while ((l = br.readLine()) != null) {
+            assertEquals(st.selectValue(l), tr.selectValue(l), "Mismatch for " + l);
+        }
+    }
+
+    @Test
+    public void testIpv6Random() {
+        Random rnd = new Random(42);
+        IPv6RadixBigIntegerTree tr = new IPv6RadixBigIntegerTree();
+        BigInteger[] prefixes = new BigInteger[2000];
+        for (int i = 0; i < prefixes.length; i++) {
+            int cidr = rnd.nextInt(129);
+            BigInteger mask = BigInteger.ONE.shiftLeft(128 - cidr).subtract(BigInteger.ONE).xor(IPV6_END_VALUE);
+            // Share the upper bits between prefixes so that they nest
+            prefixes[i] = new BigInteger(128, rnd).and(mask).or(BigInteger.valueOf(rnd.nextInt(4)).shiftLeft(126));
+            tr.put(prefixes[i].and(mask), mask, BigInteger.valueOf(i));
+        }
+
+        IPv6SuccinctTree st = new IPv6SuccinctTree(tr);
+        for (int i = 0; i < 100000; i++) {
+            BigInteger key = prefixes[rnd.nextInt(prefixes.length)].xor(new BigInteger(rnd.nextInt(128), rnd));
+            assertEquals(st.selectValue(key), tr.selectValue(key), "Mismatch for key " + key.toString(16));
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+
+public class TreeHolderTest {
+    private static IPv4Lookup tree(long value) {
+        IPv4RadixIntTree tr = new IPv4RadixIntTree(100);
+        tr.put(0x0a000000, 0xff000000L, value);
+        tr.put(0x0a010000, 0xffff0000L, value);
+        return tr.freeze();
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        TreeHolder<IPv4Lookup> holder = new TreeHolder<IPv4Lookup>(tree(1));
+        assertEquals(holder.get().selectValue(0x0a010101), 1);
+
+        IPv4Lookup previous = holder.reload(new Callable<IPv4Lookup>() {
+            public IPv4Lookup call() {
+                return tree(2);
+            }
+        });
+        assertEquals(previous.selectValue(0x0a010101), 1);
+        assertEquals(holder.get().selectValue(0x0a010101), 2);
+        assertEquals(holder.getReloadCount(), 1);
+        assertTrue(holder.getLastReloadNanos() > 0);
+    }
+
+    @Test
+    public void testFailedReloadKeepsTree() throws Exception {
+        TreeHolder<IPv4Lookup> holder = new TreeHolder<IPv4Lookup>(tree(1));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            holder.reloadAsync(new Callable<IPv4Lookup>() {
+                public IPv4Lookup call() throws IOException {
+                    throw new IOException("missing file");
+                }
+            }, executor).get();
+            fail("Reload did not fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(holder.get().selectValue(0x0a010101), 1);
+        assertEquals(holder.getReloadCount(), 0);
+    }
+
+    @Test
+    public void testConcurrentReaders() throws Exception {
+        final TreeHolder<IPv4Lookup> holder = new TreeHolder<IPv4Lookup>(tree(0));
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger errors = new AtomicInteger();
+        Thread[] readers = new Thread[4];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread(new Runnable() {
+                public void run() {
+                    while (!done.get()) {
+                        // Both prefixes of a snapshot always carry the same value
+                        IPv4Lookup snapshot = holder.get();
+                        if (snapshot.selectValue(0x0a020202) != snapshot.selectValue(0x0a010101)) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            readers[i].start();
+        }
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        for (int i = 1; i <= 100; i++) {
+            final int value = i;
+            holder.reloadAsync(new Callable<IPv4Lookup>() {
+                public IPv4Lookup call() {
+                    return tree(value);
+                }
+            }, executor);
+        }
+        executor.shutdown();
+        while (!executor.isTerminated()) {
+            Thread.sleep(10);
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertEquals(errors.get(), 0);
+        assertEquals(holder.get().selectValue(0x0a010101), 100);
+        assertEquals(holder.getReloadCount(), 100);
+    }
+}
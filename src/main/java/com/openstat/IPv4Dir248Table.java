@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import com.openstat.utils.IpConvert;
+
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * A read-only DIR-24-8 direct-index lookup table compiled from {@link IPv4RadixIntTree}.
+ * <p>
+ * The first level holds one entry per /24 network (2^24 ints, 64 megabytes). An entry
+ * either refers to the value of the most specific prefix covering the whole /24, or, if
+ * longer prefixes exist inside it, to a 256-entry overflow block indexed by the last
+ * octet. A lookup is therefore at most two table reads instead of up to 33 dependent
+ * node reads, followed by a read from the small table of distinct values.
+ * <p>
+ * Lookups return exactly the same values as the source tree, including
+ * {@link IPv4RadixIntTree#NO_VALUE} for unmatched addresses. Later changes to the source
+ * tree are not reflected; build a new instance instead.
+ */
+public class IPv4Dir248Table implements IPv4Lookup {
+    private static final int NULL_PTR = IPv4RadixIntTree.NULL_PTR;
+
+    // First level covers /0 - /24, overflow blocks cover /25 - /32
+    private static final int TBL24_BITS = 24;
+    private static final int CIDR_MAX_LENGTH = 32;
+    private static final int BLOCK_SIZE = 1 << (CIDR_MAX_LENGTH - TBL24_BITS);
+
+    // High bit of a first level entry marks an overflow block index
+    private static final int OVERFLOW_FLAG = 0x80000000;
+    private static final int MAX_BLOCKS = Integer.MAX_VALUE / BLOCK_SIZE;
+
+    // Index of NO_VALUE in the value table
+    private static final int NO_VALUE_INDEX = 0;
+
+    private final int[] tbl24;
+    private int[] tblLong;
+    private int blocks;
+    private long[] values;
+    private int valueCount;
+
+    /**
+     * Builds a DIR-24-8 table from a given tree.
+     *
+     * @param tree source tree
+     */
+    public IPv4Dir248Table(IPv4RadixIntTree tree) {
+        tbl24 = new int[1 << TBL24_BITS];
+        tblLong = new int[BLOCK_SIZE * 16];
+        blocks = 0;
+        values = new long[16];
+        values[NO_VALUE_INDEX] = IPv4RadixIntTree.NO_VALUE;
+        valueCount = 1;
+
+        fill24(tree, IPv4RadixIntTree.ROOT_PTR, 0, 0, NO_VALUE_INDEX, new HashMap<Long, Integer>());
+
+        tblLong = Arrays.copyOf(tblLong, blocks * BLOCK_SIZE);
+        values = Arrays.copyOf(values, valueCount);
+    }
+
+    /**
+     * Returns the value table index of a node value, adding it if it is new.
+     */
+    private int valueIndex(long value, Map<Long, Integer> index) {
+        Integer i = index.get(value);
+        if (i == null) {
+            if (valueCount == values.length) {
+                values = Arrays.copyOf(values, valueCount * 2);
+            }
+            i = valueCount++;
+            values[i] = value;
+            index.put(value, i);
+        }
+        return i;
+    }
+
+    /**
+     * Fills first level entries covered by a given node.
+     *
+     * @param tree   source tree
+     * @param node   source node index
+     * @param depth  prefix length of the node, at most 24
+     * @param prefix prefix bits of the node, right aligned
+     * @param best   value index of the most specific prefix above the node
+     * @param index  distinct value index
+     */
+    private void fill24(IPv4RadixIntTree tree, int node, int depth, int prefix, int best,
+                        Map<Long, Integer> index) {
+        if (tree.valueOf(node) != IPv4RadixIntTree.NO_VALUE) {
+            best = valueIndex(tree.valueOf(node), index);
+        }
+        int left = tree.leftOf(node);
+        int right = tree.rightOf(node);
+
+        if (depth == TBL24_BITS) {
+            if (left == NULL_PTR && right == NULL_PTR) {
+                tbl24[prefix] = best;
+            } else {
+                int block = newBlock();
+                tbl24[prefix] = OVERFLOW_FLAG | block;
+                fillLong(tree, node, depth, 0, best, block * BLOCK_SIZE, index);
+            }
+            return;
+        }
+
+        int half = 1 << (TBL24_BITS - 1 - depth);
+        int base = prefix << (TBL24_BITS - depth);
+        if (left == NULL_PTR) {
+            Arrays.fill(tbl24, base, base + half, best);
+        } else {
+            fill24(tree, left, depth + 1, prefix << 1, best, index);
+        }
+        if (right == NULL_PTR) {
+            Arrays.fill(tbl24, base + half, base + 2 * half, best);
+        } else {
+            fill24(tree, right, depth + 1, (prefix << 1) | 1, best, index);
+        }
+    }
+
+    /**
+     * Fills overflow block entries covered by a given node.
+     *
+     * @param tree      source tree
+     * @param node      source node index
+     * @param depth     prefix length of the node, 24 to 32
+     * @param prefix    prefix bits of the node below the /24, right aligned
+     * @param best      value index of the most specific prefix covering the node
+     * @param blockBase offset of the overflow block
+     * @param index     distinct value index
+     */
+    private void fillLong(IPv4RadixIntTree tree, int node, int depth, int prefix, int best, int blockBase,
+                          Map<Long, Integer> index) {
+        if (tree.valueOf(node) != IPv4RadixIntTree.NO_VALUE) {
+            best = valueIndex(tree.valueOf(node), index);
+        }
+        if (depth == CIDR_MAX_LENGTH) {
+            tblLong[blockBase + prefix] = best;
+            return;
+        }
+
+        int half = 1 << (CIDR_MAX_LENGTH - 1 - depth);
+        int base = blockBase + (prefix << (CIDR_MAX_LENGTH - depth));
+        int left = tree.leftOf(node);
+        int right = tree.rightOf(node);
+        if (left == NULL_PTR) {
+            Arrays.fill(tblLong, base, base + half, best);
+        } else {
+            fillLong(tree, left, depth + 1, prefix << 1, best, blockBase, index);
+        }
+        if (right == NULL_PTR) {
+            Arrays.fill(tblLong, base + half, base + 2 * half, best);
+        } else {
+            fillLong(tree, right, depth + 1, (prefix << 1) | 1, best, blockBase, index);
+        }
+    }
+
+    /**
+     * Allocates a new overflow block.
+     *
+     * @return block number
+     */
+    private int newBlock() {
+        if (blocks == MAX_BLOCKS) {
+            throw new IllegalStateException("Too many prefixes longer than /24: " + blocks + " overflow blocks");
+        }
+        if ((blocks + 1) * BLOCK_SIZE > tblLong.length) {
+            tblLong = Arrays.copyOf(tblLong, (int) Math.min(2L * tblLong.length, (long) MAX_BLOCKS * BLOCK_SIZE));
+        }
+        return blocks++;
+    }
+
+    /**
+     * Selects a value for a given IPv4 address, choosing most specific value available
+     * for a given address.
+     *
+     * @param key IPv4 address to look up
+     * @return value at most specific IPv4 network for a given IPv4 address
+     */
+    public long selectValue(long key) {
+        int entry = tbl24[(int) (key >>> (CIDR_MAX_LENGTH - TBL24_BITS)) & ((1 << TBL24_BITS) - 1)];
+        if (entry < 0) {
+            entry = tblLong[((entry & ~OVERFLOW_FLAG) << (CIDR_MAX_LENGTH - TBL24_BITS)) | ((int) key & (BLOCK_SIZE - 1))];
+        }
+        return values[entry];
+    }
+
+    /**
+     * Selects a value for a given IPv4 address, choosing most specific value available
+     * for a given address.
+     *
+     * @param ipStr IPv4 address to look up, in string form (i.e. "a.b.c.d")
+     * @return value at most specific IPv4 network for a given IPv4 address
+     * @throws UnknownHostException
+     */
+    public long selectValue(String ipStr) throws UnknownHostException {
+        return selectValue(IpConvert.ipv4ToLong(ipStr));
+    }
+
+    /**
+     * Returns the number of 256-entry overflow blocks allocated for prefixes longer than /24.
+     *
+     * @return a number of overflow blocks
+     */
+    public int overflowBlocks() {
+        return blocks;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+
+/**
+ * Mutable result of a longest-prefix match in an {@link IPv4RadixIntTree}, filled by
+ * {@link IPv4RadixIntTree#selectEntry(long, IPv4Entry)}. One instance can be reused for any
+ * number of lookups, so that getting the matched network costs no allocation.
+ */
+public final class IPv4Entry {
+    /**
+     * Matched IPv4 network prefix, 0 if no network matched.
+     */
+    public long network;
+
+    /**
+     * Length of the matched prefix in CIDR notation, -1 if no network matched.
+     */
+    public int prefixLength;
+
+    /**
+     * Value of the matched network, {@link IPv4RadixIntTree#NO_VALUE} if no network matched.
+     */
+    public long value;
+
+    /**
+     * Number of tree nodes visited by the lookup.
+     */
+    public int depth;
+
+    /**
+     * Tells whether the lookup matched a network.
+     *
+     * @return true if a network matched
+     */
+    public boolean found() {
+        return prefixLength >= 0;
+    }
+
+    @Override
+    public String toString() {
+        if (!found()) {
+            return "no match, depth " + depth;
+        }
+        return (network >>> 24) + "." + ((network >>> 16) & 0xff) + "." + ((network >>> 8) & 0xff) + "."
+                + (network & 0xff) + "/" + prefixLength + " => " + value + ", depth " + depth;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import com.openstat.utils.IpConvert;
+
+import java.net.UnknownHostException;
+
+
+/**
+ * An immutable, cache-friendly snapshot of {@link IPv4RadixIntTree}, created by
+ * {@link IPv4RadixIntTree#freeze()}.
+ * <p>
+ * Nodes are renumbered in fixed-height blocks in BFS order: the tree is cut into subtrees
+ * of two levels, each subtree is stored contiguously and subtrees follow each other in
+ * breadth-first order. A block of at most three nodes takes 48 bytes, so a parent and the
+ * child a lookup takes next usually share a cache line, while in a plain breadth-first
+ * layout they grow further apart at every level. Blocks are not aligned to cache lines
+ * and some of them straddle two. The upper levels that every lookup goes through are
+ * packed together at the start.
+ * <p>
+ * Each node is stored as two adjacent longs in a single array: both branch pointers
+ * packed into the first one and the value in the second, instead of three reads from
+ * three separate arrays. The array is allocated to the exact node count.
+ */
+public class IPv4FrozenTree implements IPv4Lookup {
+    private static final int NULL_PTR = IPv4RadixIntTree.NULL_PTR;
+    private static final int ROOT_PTR = IPv4RadixIntTree.ROOT_PTR;
+
+    // 10000000000000000000000000000000 --> 32 bit
+    private static final long START_IPV4_BIT = 0x80000000L;
+
+    // Levels kept together in one block: 3 nodes, 48 bytes, less than a 64 byte cache line
+    private static final int CLUSTER_HEIGHT = 2;
+
+    // Longs per node: (left << 32 | right), value
+    private static final int NODE_LENGTH = 2;
+
+    private final long[] nodes;
+    private final int size;
+
+    /**
+     * Builds a frozen copy of a given tree.
+     *
+     * @param tree source tree
+     */
+    IPv4FrozenTree(IPv4RadixIntTree tree) {
+        int capacity = tree.size();
+        int[] order = new int[capacity];
+        int[] renumbered = new int[tree.slots()];
+
+        // Breadth-first traversal over subtrees of CLUSTER_HEIGHT levels, each subtree
+        // being laid out breadth-first in turn
+        int[] roots = new int[capacity];
+        int rootHead = 0;
+        int rootTail = 0;
+        roots[rootTail++] = ROOT_PTR;
+        int tail = 0;
+        while (rootHead < rootTail) {
+            int first = tail;
+            order[tail++] = roots[rootHead++];
+            int levelEnd = tail;
+            for (int level = 1; level <= CLUSTER_HEIGHT; level++) {
+                for (int i = first; i < levelEnd; i++) {
+                    int node = order[i];
+                    int left = tree.leftOf(node);
+                    int right = tree.rightOf(node);
+                    if (level < CLUSTER_HEIGHT) {
+                        if (left != NULL_PTR) {
+                            order[tail++] = left;
+                        }
+                        if (right != NULL_PTR) {
+                            order[tail++] = right;
+                        }
+                    } else {
+                        if (left != NULL_PTR) {
+                            roots[rootTail++] = left;
+                        }
+                        if (right != NULL_PTR) {
+                            roots[rootTail++] = right;
+                        }
+                    }
+                }
+                first = levelEnd;
+                levelEnd = tail;
+            }
+        }
+        for (int i = 0; i < tail; i++) {
+            renumbered[order[i]] = i;
+        }
+
+        size = tail;
+        nodes = new long[size * NODE_LENGTH];
+        for (int i = 0; i < size; i++) {
+            int node = order[i];
+            int left = tree.leftOf(node);
+            int right = tree.rightOf(node);
+            left = left == NULL_PTR ? NULL_PTR : renumbered[left];
+            right = right == NULL_PTR ? NULL_PTR : renumbered[right];
+            nodes[i * NODE_LENGTH] = ((long) left << 32) | (right & 0xffffffffL);
+            nodes[i * NODE_LENGTH + 1] = tree.valueOf(node);
+        }
+    }
+
+    /**
+     * Selects a value for a given IPv4 address, traversing tree and choosing
+     * most specific value available for a given address.
+     *
+     * @param key IPv4 address to look up
+     * @return value at most specific IPv4 network in a tree for a given IPv4
+     * address
+     */
+    public long selectValue(long key) {
+        long bit = START_IPV4_BIT;
+        long value = IPv4RadixIntTree.NO_VALUE;
+        int node = ROOT_PTR;
+
+        while (node != NULL_PTR) {
+            int i = node * NODE_LENGTH;
+            long links = nodes[i];
+            if (nodes[i + 1] != IPv4RadixIntTree.NO_VALUE) {
+                value = nodes[i + 1];
+            }
+            node = ((key & bit) != 0) ? (int) links : (int) (links >> 32);
+            bit >>= 1;
+        }
+
+        return value;
+    }
+
+    /**
+     * Selects a value for a given IPv4 address, traversing tree and choosing
+     * most specific value available for a given address.
+     *
+     * @param ipStr IPv4 address to look up, in string form (i.e. "a.b.c.d")
+     * @return value at most specific IPv4 network in a tree for a given IPv4
+     * address
+     * @throws UnknownHostException
+     */
+    public long selectValue(String ipStr) throws UnknownHostException {
+        return selectValue(IpConvert.ipv4ToLong(ipStr));
+    }
+
+    /**
+     * Returns a size of tree in number of nodes (not number of prefixes stored).
+     *
+     * @return a number of nodes in current tree
+     */
+    public int size() {
+        return size;
+    }
+}
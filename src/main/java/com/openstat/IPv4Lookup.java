@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import java.net.UnknownHostException;
+
+
+/**
+ * Longest-prefix-match lookup contract shared by {@link IPv4RadixIntTree} and the read-only
+ * structures compiled from it, so callers can switch implementations without code changes.
+ * <p>
+ * Every implementation returns {@link IPv4RadixIntTree#NO_VALUE} when no stored network
+ * contains the address.
+ */
+public interface IPv4Lookup {
+
+    /**
+     * Selects a value for a given IPv4 address, choosing most specific value available
+     * for a given address.
+     *
+     * @param key IPv4 address to look up
+     * @return value at most specific IPv4 network for a given IPv4 address
+     */
+    long selectValue(long key);
+
+    /**
+     * Selects a value for a given IPv4 address, choosing most specific value available
+     * for a given address.
+     *
+     * @param ipStr IPv4 address to look up, in string form (i.e. "a.b.c.d")
+     * @return value at most specific IPv4 network for a given IPv4 address
+     * @throws UnknownHostException
+     */
+    long selectValue(String ipStr) throws UnknownHostException;
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import com.openstat.utils.IpParser;
+
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Fixed-size cache of recent lookups in front of an {@link IPv4RadixIntTree}, for skewed
+ * traffic where a few thousand addresses (proxies, carrier NATs) make most of the lookups.
+ * <p>
+ * The cache is 2-way set-associative: an address hashes to a set of two slots, a hit in the
+ * second slot swaps it to the first one and a miss evicts the second one, which approximates
+ * LRU per set. Slots are kept in parallel primitive arrays (address, value, tag), so neither
+ * hits nor misses allocate. Each set has a seqlock stamp: a thread changing the set makes
+ * the stamp odd and bumps it again when done, a reader discards what it read if the stamp
+ * moved meanwhile, so it never returns a torn slot. Writers don't wait either: a thread
+ * that finds the set busy just leaves the result uncached. Every slot tag holds the tree
+ * modification count it was read at, so a put or remove on the tree invalidates the whole
+ * cache at once.
+ * <p>
+ * Lookups may run from several threads, changes to the tree still need the usual care,
+ * see {@link TreeHolder}.
+ */
+public class IPv4LookupCache implements IPv4Lookup {
+    // Slots per set
+    private static final int WAYS = 2;
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    // Fibonacci hashing multiplier
+    private static final long HASH_MULTIPLIER = 0x9e3779b97f4a7c15L;
+
+    // Tag bit of a filled slot, the low 32 bits hold the tree modification count
+    private static final long VALID = 1L << 32;
+
+    private final IPv4RadixIntTree tree;
+    private final AtomicIntegerArray stamps;
+    private final AtomicLongArray keys;
+    private final AtomicLongArray values;
+    private final AtomicLongArray tags;
+    private final int setMask;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Initializes a cache in front of a tree.
+     *
+     * @param tree     tree to look up on a miss
+     * @param capacity number of cached addresses, rounded up to a power of two
+     */
+    public IPv4LookupCache(IPv4RadixIntTree tree, int capacity) {
+        if (capacity < WAYS || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Capacity " + capacity + " is out of range " + WAYS + ".." + MAX_CAPACITY);
+        }
+        int slots = Integer.highestOneBit(capacity - 1) << 1;
+        this.tree = tree;
+        this.stamps = new AtomicIntegerArray(slots / WAYS);
+        this.keys = new AtomicLongArray(slots);
+        this.values = new AtomicLongArray(slots);
+        this.tags = new AtomicLongArray(slots);
+        this.setMask = slots / WAYS - 1;
+    }
+
+    /**
+     * Selects a value for a given IPv4 address, from the cache if it is there.
+     *
+     * @param key IPv4 address to look up
+     * @return value at most specific IPv4 network for a given IPv4 address
+     */
+    @Override
+    public long selectValue(long key) {
+        long tag = VALID | (tree.modCount() & 0xffffffffL);
+        int set = set(key);
+        int slot = set * WAYS;
+
+        int stamp = stamps.get(set);
+        if ((stamp & 1) == 0) {
+            if (keys.get(slot) == key && tags.get(slot) == tag) {
+                long value = values.get(slot);
+                if (stamps.get(set) == stamp) {
+                    hits.increment();
+                    return value;
+                }
+            } else if (keys.get(slot + 1) == key && tags.get(slot + 1) == tag) {
+                long value = values.get(slot + 1);
+                if (stamps.get(set) == stamp) {
+                    hits.increment();
+                    if (stamps.compareAndSet(set, stamp, stamp + 1)) {
+                        move(slot + 1, keys.get(slot), values.get(slot), tags.get(slot));
+                        move(slot, key, value, tag);
+                        stamps.lazySet(set, stamp + 2);
+                    }
+                    return value;
+                }
+            }
+        }
+
+        misses.increment();
+        long value = tree.selectValue(key);
+        if ((stamp & 1) == 0 && stamps.compareAndSet(set, stamp, stamp + 1)) {
+            if (keys.get(slot) != key) {
+                move(slot + 1, keys.get(slot), values.get(slot), tags.get(slot));
+            }
+            move(slot, key, value, tag);
+            stamps.lazySet(set, stamp + 2);
+        }
+        return value;
+    }
+
+    // Called with the set stamp odd, ordered stores are enough: a reader that sees any of
+    // them also sees the odd stamp
+    private void move(int slot, long key, long value, long tag) {
+        keys.lazySet(slot, key);
+        values.lazySet(slot, value);
+        tags.lazySet(slot, tag);
+    }
+
+    /**
+     * Selects a value for a given IPv4 address, from the cache if it is there.
+     *
+     * @param ipStr IPv4 address to look up, in string form (i.e. "a.b.c.d")
+     * @return value at most specific IPv4 network for a given IPv4 address
+     * @throws UnknownHostException
+     */
+    @Override
+    public long selectValue(String ipStr) throws UnknownHostException {
+        long key = IpParser.parseIpv4(ipStr);
+        if (key == IpParser.INVALID) {
+            throw new UnknownHostException(ipStr + ": not an IPv4 address");
+        }
+        return selectValue(key);
+    }
+
+    private int set(long key) {
+        return (int) ((key * HASH_MULTIPLIER) >>> Integer.SIZE) & setMask;
+    }
+
+    /**
+     * Drops every cached entry, counters are kept.
+     */
+    public void clear() {
+        for (int i = 0; i < tags.length(); i++) {
+            tags.set(i, 0);
+        }
+    }
+
+    /**
+     * Returns the number of lookups answered from the cache.
+     *
+     * @return a number of hits
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of lookups that went to the tree.
+     *
+     * @return a number of misses
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of cached addresses.
+     *
+     * @return capacity
+     */
+    public int capacity() {
+        return keys.length();
+    }
+}
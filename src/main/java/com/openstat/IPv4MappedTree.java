@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import com.openstat.utils.IpConvert;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * A read-only IPv4 radix tree backed by a memory-mapped image file written by
+ * {@link IPv4RadixIntTree#save(String)}.
+ * <p>
+ * Node arrays are read in place through {@link IntBuffer}/{@link LongBuffer} views of the
+ * mapping, nothing is copied to the heap. Opening is instant whatever the tree size, and
+ * all processes mapping the same file share a single copy in the page cache. Lookups
+ * return the same values as the tree that was saved.
+ * <p>
+ * Images are limited to 2 gigabytes (about 130 million nodes).
+ */
+public class IPv4MappedTree implements IPv4Lookup {
+    private static final int NULL_PTR = IPv4RadixIntTree.NULL_PTR;
+    private static final int ROOT_PTR = IPv4RadixIntTree.ROOT_PTR;
+
+    // 10000000000000000000000000000000 --> 32 bit
+    private static final long START_IPV4_BIT = 0x80000000L;
+
+    // Bytes per node in the image: left, right, value
+    private static final int NODE_LENGTH = 4 + 4 + 8;
+
+    private final IntBuffer lefts;
+    private final IntBuffer rights;
+    private final LongBuffer values;
+    private final int size;
+
+    private IPv4MappedTree(ByteBuffer image, int size) {
+        this.size = size;
+        lefts = TreeImage.slice(image, TreeImage.HEADER_LENGTH, size * 4).asIntBuffer();
+        rights = TreeImage.slice(image, TreeImage.HEADER_LENGTH + size * 4, size * 4).asIntBuffer();
+        values = TreeImage.slice(image, TreeImage.HEADER_LENGTH + size * 8, size * 8).asLongBuffer();
+    }
+
+    /**
+     * Maps a local image file without verifying its checksum.
+     *
+     * @param filename name of a local image file
+     * @return a tree reading that file
+     * @throws IOException if the file is not an IPv4 tree image
+     */
+    public static IPv4MappedTree open(String filename) throws IOException {
+        return open(filename, false);
+    }
+
+    /**
+     * Maps a local image file.
+     *
+     * @param filename name of a local image file
+     * @param verify   whether to verify the image checksum and child pointers, which reads
+     *                 the whole file once
+     * @return a tree reading that file
+     * @throws IOException if the file is not a valid IPv4 tree image
+     */
+    public static IPv4MappedTree open(String filename, boolean verify) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            ByteBuffer image = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int size = TreeImage.checkMapped(image, TreeImage.KIND_IPV4, NODE_LENGTH, verify);
+            long expected = TreeImage.HEADER_LENGTH + (long) size * NODE_LENGTH + TreeImage.CHECKSUM_LENGTH;
+            if (image.limit() != expected) {
+                throw new IOException("Tree image of " + size + " nodes should be " + expected + " bytes long");
+            }
+            IPv4MappedTree tree = new IPv4MappedTree(image, size);
+            if (verify) {
+                TreeImage.checkLinks(tree.lefts, tree.rights, size);
+            }
+            return tree;
+        }
+    }
+
+    /**
+     * Selects a value for a given IPv4 address, traversing tree and choosing
+     * most specific value available for a given address.
+     *
+     * @param key IPv4 address to look up
+     * @return value at most specific IPv4 network in a tree for a given IPv4
+     * address
+     */
+    public long selectValue(long key) {
+        long bit = START_IPV4_BIT;
+        long value = IPv4RadixIntTree.NO_VALUE;
+        int node = ROOT_PTR;
+
+        while (node != NULL_PTR) {
+            long v = values.get(node);
+            if (v != IPv4RadixIntTree.NO_VALUE) {
+                value = v;
+            }
+            node = ((key & bit) != 0) ? rights.get(node) : lefts.get(node);
+            bit >>= 1;
+        }
+
+        return value;
+    }
+
+    /**
+     * Selects a value for a given IPv4 address, traversing tree and choosing
+     * most specific value available for a given address.
+     *
+     * @param ipStr IPv4 address to look up, in string form (i.e. "a.b.c.d")
+     * @return value at most specific IPv4 network in a tree for a given IPv4
+     * address
+     * @throws UnknownHostException
+     */
+    public long selectValue(String ipStr) throws UnknownHostException {
+        return selectValue(IpConvert.ipv4ToLong(ipStr));
+    }
+
+    /**
+     * Returns a size of tree in number of nodes (not number of prefixes stored).
+     *
+     * @return a number of nodes in current tree
+     */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import com.openstat.utils.IpParser;
+
+import java.net.UnknownHostException;
+
+
+/**
+ * {@link IPv4RadixIntTree} wrapper that records lookups and puts into {@link LookupMetrics}.
+ * Metrics are opt-in: code that looks up through the tree itself doesn't pay for them, code
+ * that wants them looks up through this wrapper instead.
+ */
+public class IPv4MeteredTree implements IPv4Lookup {
+    private final IPv4RadixIntTree tree;
+    private final LookupMetrics metrics;
+
+    /**
+     * Initializes a wrapper that times one operation in {@code sampleRate}.
+     *
+     * @param tree       tree to look up and put into
+     * @param sampleRate time one operation in that many, 1 to time all of them
+     */
+    public IPv4MeteredTree(IPv4RadixIntTree tree, int sampleRate) {
+        this.tree = tree;
+        this.metrics = new LookupMetrics(32, sampleRate);
+    }
+
+    /**
+     * Selects a value for a given IPv4 address and records the lookup.
+     *
+     * @param key IPv4 address to look up
+     * @return value at most specific IPv4 network in a tree for a given IPv4
+     * address
+     */
+    @Override
+    public long selectValue(long key) {
+        if (!metrics.sample()) {
+            return tree.selectValue(key, metrics);
+        }
+        long start = System.nanoTime();
+        long value = tree.selectValue(key, metrics);
+        metrics.recordLookupLatency(System.nanoTime() - start);
+        return value;
+    }
+
+    /**
+     * Selects a value for a given IPv4 address and records the lookup.
+     *
+     * @param ipStr IPv4 address to look up, in string form (i.e. "a.b.c.d")
+     * @return value at most specific IPv4 network in a tree for a given IPv4
+     * address
+     * @throws UnknownHostException
+     */
+    @Override
+    public long selectValue(String ipStr) throws UnknownHostException {
+        long key = IpParser.parseIpv4(ipStr);
+        if (key == IpParser.INVALID) {
+            throw new UnknownHostException(ipStr + ": not an IPv4 address");
+        }
+        return selectValue(key);
+    }
+
+    /**
+     * Puts a key-value pair in the tree and records the put.
+     *
+     * @param key   IPv4 network prefix
+     * @param mask  IPv4 netmask in networked byte order format (for example,
+     *              0xffffff00L = 4294967040L corresponds to 255.255.255.0 AKA /24 network
+     *              bitmask)
+     * @param value an arbitrary value that would be stored under a given key
+     */
+    public void put(long key, long mask, long value) {
+        metrics.recordPut();
+        if (!metrics.sample()) {
+            tree.put(key, mask, value);
+            return;
+        }
+        long start = System.nanoTime();
+        tree.put(key, mask, value);
+        metrics.recordPutLatency(System.nanoTime() - start);
+    }
+
+    /**
+     * Puts a key-value pair in the tree and records the put.
+     *
+     * @param ipNet IPv4 network as a string in form of "a.b.c.d/e"
+     * @param value an arbitrary value that would be stored under a given key
+     * @throws UnknownHostException
+     */
+    public void put(String ipNet, long value) throws UnknownHostException {
+        metrics.recordPut();
+        if (!metrics.sample()) {
+            tree.put(ipNet, value);
+            return;
+        }
+        long start = System.nanoTime();
+        tree.put(ipNet, value);
+        metrics.recordPutLatency(System.nanoTime() - start);
+    }
+
+    /**
+     * Returns the wrapped tree, lookups made on it directly are not recorded.
+     *
+     * @return the tree
+     */
+    public IPv4RadixIntTree tree() {
+        return tree;
+    }
+
+    /**
+     * Returns the live metrics of this wrapper.
+     *
+     * @return the metrics
+     */
+    public LookupMetrics metrics() {
+        return metrics;
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import com.openstat.utils.IpParser;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+
+/**
+ * Loads an IPv4 radix tree from a large local region file using several cores.
+ * <p>
+ * The file is cut into byte ranges aligned to line boundaries. Each range is read and parsed
+ * on a {@link ForkJoinPool} straight from bytes into primitive prefix, mask and value
+ * arrays, then the batches are joined in file order and the tree is built by
+ * {@link IPv4RadixIntTree#buildSorted}, so a prefix listed twice keeps its last value as
+ * with {@link IPv4RadixIntTree#loadFromLocalFile(String)}. Only
+ * the first two columns are read and non IPv4 lines are skipped.
+ * <p>
+ * Timings of the last load are kept per phase:
+ * <pre>
+ * IPv4ParallelLoader loader = new IPv4ParallelLoader();
+ * IPv4RadixIntTree tree = loader.load("ipv4-region.txt");
+ * System.out.println(loader);
+ * </pre>
+ * A loader instance is not thread-safe, use one per concurrent load.
+ */
+public class IPv4ParallelLoader {
+    // Range sizes, a range is read into a single array
+    private static final int MIN_CHUNK_SIZE = 1 << 20;
+    private static final int MAX_CHUNK_SIZE = 1 << 26;
+    // Ranges per pool thread, so that uneven ranges even out
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    // Bytes scanned at once to find a line boundary
+    private static final int SCAN_SIZE = 256;
+
+    // cidr max
+    private static final int CIDR_MAX_LENGTH = 32;
+
+    private final ForkJoinPool pool;
+    private final boolean nginxFormat;
+    private final int minChunkSize;
+
+    private long splitNanos;
+    private long parseNanos;
+    private long mergeNanos;
+    private int chunkCount;
+    private long lineCount;
+    private long prefixCount;
+
+    /**
+     * Initializes a loader of region files running on the common pool.
+     */
+    public IPv4ParallelLoader() {
+        this(ForkJoinPool.commonPool(), false);
+    }
+
+    /**
+     * Initializes a loader running on a given pool.
+     *
+     * @param pool        pool parsing the ranges
+     * @param nginxFormat if true, then file would be parsed as nginx web server configuration file:
+     *                    "value" would be treated as hex and last symbol at EOL would be stripped
+     */
+    public IPv4ParallelLoader(ForkJoinPool pool, boolean nginxFormat) {
+        this(pool, nginxFormat, MIN_CHUNK_SIZE);
+    }
+
+    IPv4ParallelLoader(ForkJoinPool pool, boolean nginxFormat, int minChunkSize) {
+        this.pool = pool;
+        this.nginxFormat = nginxFormat;
+        this.minChunkSize = minChunkSize;
+    }
+
+    /**
+     * Reads an IPv4 radix tree from a local file in tab-separated format: (IPv4 net => value).
+     *
+     * @param filename name of a local file to read
+     * @return a fully constructed IPv4 radix tree from that file
+     * @throws IOException if the file can't be read, or a line has a malformed network or value
+     */
+    public IPv4RadixIntTree load(String filename) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long length = channel.size();
+
+            long started = System.nanoTime();
+            long[] bounds = split(channel, length);
+            chunkCount = bounds.length - 1;
+
+            long parsed = System.nanoTime();
+            splitNanos = parsed - started;
+            List<ForkJoinTask<Batch>> tasks = new ArrayList<ForkJoinTask<Batch>>(chunkCount);
+            for (int i = 0; i < chunkCount; i++) {
+                tasks.add(pool.submit(new ParseTask(channel, bounds[i], bounds[i + 1])));
+            }
+            Batch[] batches = new Batch[chunkCount];
+            for (int i = 0; i < chunkCount; i++) {
+                batches[i] = join(tasks.get(i));
+            }
+
+            long merged = System.nanoTime();
+            parseNanos = merged - parsed;
+            lineCount = 0;
+            prefixCount = 0;
+            for (Batch batch : batches) {
+                lineCount += batch.lines;
+                prefixCount += batch.count;
+            }
+            long[] keys = new long[(int) prefixCount];
+            long[] masks = new long[keys.length];
+            long[] values = new long[keys.length];
+            int count = 0;
+            for (Batch batch : batches) {
+                System.arraycopy(batch.keys, 0, keys, count, batch.count);
+                System.arraycopy(batch.masks, 0, masks, count, batch.count);
+                System.arraycopy(batch.values, 0, values, count, batch.count);
+                count += batch.count;
+            }
+            IPv4RadixIntTree tr = IPv4RadixIntTree.buildSorted(keys, masks, values, count);
+            mergeNanos = System.nanoTime() - merged;
+
+            return tr;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Cuts a file into ranges that start right after a line end.
+     *
+     * @return range bounds, range i being [bounds[i], bounds[i + 1])
+     */
+    private long[] split(FileChannel channel, long length) throws IOException {
+        int threads = Math.max(1, pool.getParallelism());
+        long chunks = Math.max(1, Math.min(length / minChunkSize, (long) threads * CHUNKS_PER_THREAD));
+        chunks = Math.max(chunks, (length + MAX_CHUNK_SIZE - 1) / MAX_CHUNK_SIZE);
+
+        long[] bounds = new long[(int) chunks + 1];
+        int n = 1;
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_SIZE);
+        for (long i = 1; i < chunks; i++) {
+            long bound = lineStart(channel, length, length * i / chunks, buffer);
+            if (bound > bounds[n - 1] && bound < length) {
+                bounds[n++] = bound;
+            }
+        }
+        bounds[n++] = length;
+        return Arrays.copyOf(bounds, n);
+    }
+
+    /**
+     * Finds the start of the first line beginning at or after a given position.
+     */
+    private static long lineStart(FileChannel channel, long length, long pos, ByteBuffer buffer)
+            throws IOException {
+        // Position pos starts a line if the byte before it ends one
+        long scan = pos - 1;
+        while (scan < length) {
+            buffer.clear();
+            int read = channel.read(buffer, scan);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return scan + i + 1;
+                }
+            }
+            scan += read;
+        }
+        return length;
+    }
+
+    private static Batch join(ForkJoinTask<Batch> task) throws IOException {
+        try {
+            return task.join();
+        } catch (RuntimeException e) {
+            // The pool wraps checked exceptions, possibly more than once
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Reads a range of the file and parses its lines.
+     */
+    private final class ParseTask implements Callable<Batch> {
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+
+        ParseTask(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public Batch call() throws IOException {
+            byte[] b = new byte[(int) (end - start)];
+            ByteBuffer buffer = ByteBuffer.wrap(b);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, start + buffer.position()) < 0) {
+                    throw new EOFException("File truncated while loading at offset " + start);
+                }
+            }
+            return parse(b, start);
+        }
+    }
+
+    /**
+     * Parses region file lines held in a byte array.
+     *
+     * @param b      lines
+     * @param offset file offset of the first byte, for error messages
+     * @return parsed IPv4 prefixes
+     * @throws IOException if an IPv4 line has a malformed network or value
+     */
+    private Batch parse(byte[] b, long offset) throws IOException {
+        Batch batch = new Batch(Math.max(16, b.length / 32));
+        int i = 0;
+        while (i < b.length) {
+            int lineEnd = i;
+            while (lineEnd < b.length && b[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            batch.lines++;
+
+            // First column: network
+            int netEnd = RegionFileReader.skipToken(b, i, lineEnd);
+            int slash = i;
+            while (slash < netEnd && b[slash] != '/') {
+                slash++;
+            }
+            long key = IpParser.parseIpv4(b, i, slash - i);
+
+            if (key != IpParser.INVALID) {
+                int cidr = RegionFileReader.parseCidr(b, slash + 1, netEnd, CIDR_MAX_LENGTH);
+                if (cidr < 0) {
+                    throw new IOException("Malformed line at offset " + (offset + i));
+                }
+                // Second column: value
+                int valueStart = RegionFileReader.skipSpaces(b, netEnd, lineEnd);
+                int valueEnd = RegionFileReader.skipToken(b, valueStart, lineEnd);
+
+                long value;
+                try {
+                    value = RegionFileReader.parseValue(b, valueStart, valueEnd, nginxFormat);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed value at offset " + (offset + valueStart), e);
+                }
+                batch.add(key, RegionFileReader.ipv4Mask(cidr), value);
+            }
+
+            i = lineEnd + 1;
+        }
+        return batch;
+    }
+
+    /**
+     * Returns the time spent cutting the file into ranges in the last load.
+     *
+     * @return nanoseconds
+     */
+    public long getSplitNanos() {
+        return splitNanos;
+    }
+
+    /**
+     * Returns the time spent reading and parsing the ranges in the last load.
+     *
+     * @return nanoseconds
+     */
+    public long getParseNanos() {
+        return parseNanos;
+    }
+
+    /**
+     * Returns the time spent building the tree from the parsed prefixes in the last load.
+     *
+     * @return nanoseconds
+     */
+    public long getMergeNanos() {
+        return mergeNanos;
+    }
+
+    /**
+     * Returns the number of ranges the file was cut into in the last load.
+     *
+     * @return a number of ranges
+     */
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * Returns the number of lines read in the last load.
+     *
+     * @return a number of lines
+     */
+    public long getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * Returns the number of IPv4 prefixes put in the last load.
+     *
+     * @return a number of prefixes
+     */
+    public long getPrefixCount() {
+        return prefixCount;
+    }
+
+    @Override
+    public String toString() {
+        return "split " + splitNanos / 1000000 + " ms, parse " + parseNanos / 1000000
+                + " ms, merge " + mergeNanos / 1000000 + " ms, " + chunkCount + " chunks, "
+                + lineCount + " lines, " + prefixCount + " prefixes";
+    }
+
+    /**
+     * Parsed prefixes of one range.
+     */
+    private static final class Batch {
+        long[] keys;
+        long[] masks;
+        long[] values;
+        int count;
+        int lines;
+
+        Batch(int capacity) {
+            keys = new long[capacity];
+            masks = new long[capacity];
+            values = new long[capacity];
+        }
+
+        void add(long key, long mask, long value) {
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, count * 2);
+                masks = Arrays.copyOf(masks, count * 2);
+                values = Arrays.copyOf(values, count * 2);
+            }
+            keys[count] = key;
+            masks[count] = mask;
+            values[count] = value;
+            count++;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import com.openstat.utils.IpConvert;
+
+import java.net.UnknownHostException;
+
+
+/**
+ * A read-only multibit-stride trie (Poptrie) compiled from {@link IPv4RadixIntTree}.
+ * <p>
+ * Each level consumes 6 bits of the address, so a lookup visits at most 6 nodes instead
+ * of up to 33, and each node is 24 bytes. Children and leaves are located with a popcount
+ * over a 64-bit bitmap, which keeps the whole structure a small fraction of the binary
+ * tree and of a DIR-24-8 table. The 32-bit address is padded with zero bits to 36 bits.
+ * <p>
+ * Lookups return exactly the same values as the source tree, including
+ * {@link IPv4RadixIntTree#NO_VALUE} for unmatched addresses. Later changes to the source
+ * tree are not reflected; build a new instance instead.
+ */
+public class IPv4Poptrie implements IPv4Lookup {
+    // Address padded to a multiple of the stride
+    private static final int PADDED_BITS = 36;
+    private static final int CIDR_MAX_LENGTH = 32;
+    private static final int CHUNK_MASK = (1 << Poptrie.STRIDE) - 1;
+
+    private final Poptrie trie;
+    private final long[] leafValues;
+
+    /**
+     * Builds a Poptrie from a given tree.
+     *
+     * @param tree source tree
+     */
+    public IPv4Poptrie(final IPv4RadixIntTree tree) {
+        trie = new Poptrie(new Poptrie.Source() {
+            int left(int node) {
+                return tree.leftOf(node);
+            }
+
+            int right(int node) {
+                return tree.rightOf(node);
+            }
+
+            boolean hasValue(int node) {
+                return tree.valueOf(node) != IPv4RadixIntTree.NO_VALUE;
+            }
+        }, IPv4RadixIntTree.ROOT_PTR);
+
+        leafValues = new long[trie.leafCount()];
+        for (int i = 0; i < leafValues.length; i++) {
+            int node = trie.leaves[i];
+            leafValues[i] = node == Poptrie.NULL_PTR ? IPv4RadixIntTree.NO_VALUE : tree.valueOf(node);
+        }
+        // Source node indexes are not needed once values are resolved
+        trie.leaves = null;
+    }
+
+    /**
+     * Selects a value for a given IPv4 address, choosing most specific value available
+     * for a given address.
+     *
+     * @param key IPv4 address to look up
+     * @return value at most specific IPv4 network for a given IPv4 address
+     */
+    public long selectValue(long key) {
+        long k = (key & 0xffffffffL) << (PADDED_BITS - CIDR_MAX_LENGTH);
+        int shift = PADDED_BITS - Poptrie.STRIDE;
+        int chunk = (int) (k >>> shift) & CHUNK_MASK;
+        int index = 0;
+        int child;
+
+        while ((child = trie.child(index, chunk)) >= 0) {
+            index = child;
+            shift -= Poptrie.STRIDE;
+            chunk = (int) (k >>> shift) & CHUNK_MASK;
+        }
+
+        return leafValues[trie.leaf(index, chunk)];
+    }
+
+    /**
+     * Selects a value for a given IPv4 address, choosing most specific value available
+     * for a given address.
+     *
+     * @param ipStr IPv4 address to look up, in string form (i.e. "a.b.c.d")
+     * @return value at most specific IPv4 network for a given IPv4 address
+     * @throws UnknownHostException
+     */
+    public long selectValue(String ipStr) throws UnknownHostException {
+        return selectValue(IpConvert.ipv4ToLong(ipStr));
+    }
+
+    /**
+     * Returns a size of the trie in number of internal nodes.
+     *
+     * @return a number of nodes
+     */
+    public int size() {
+        return trie.size();
+    }
+}
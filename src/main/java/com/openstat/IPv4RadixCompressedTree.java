@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import com.openstat.utils.IpConvert;
+
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+
+/**
+ * A path-compressed (true Patricia) read-only copy of {@link IPv4RadixIntTree}.
+ * <p>
+ * The source tree allocates one node per bit, so a single /32 prefix may cost up to 32
+ * nodes. Here every chain of value-less single-child nodes is collapsed into the node
+ * below it: a node stores its prefix length and prefix bits, and the skipped bits are
+ * verified with a single masked compare instead of one node per bit. Only the root,
+ * nodes carrying a value and branching nodes survive, so the tree has at most two nodes
+ * per stored prefix and a lookup performs one dependent load chain per surviving node.
+ * <p>
+ * Lookups return exactly the same values as the source tree, including
+ * {@link IPv4RadixIntTree#NO_VALUE} for unmatched addresses. Later changes to the source
+ * tree are not reflected; build a new instance instead.
+ */
+public class IPv4RadixCompressedTree implements IPv4Lookup {
+    public static final long NO_VALUE = IPv4RadixIntTree.NO_VALUE;
+    private static final int NULL_PTR = IPv4RadixIntTree.NULL_PTR;
+
+    // cidr max
+    private static final int CIDR_MAX_LENGTH = 32;
+
+    // Netmask for each prefix length, MASKS[0] matches everything
+    private static final int[] MASKS = new int[CIDR_MAX_LENGTH + 1];
+    static {
+        for (int i = 1; i <= CIDR_MAX_LENGTH; i++) {
+            MASKS[i] = -1 << (CIDR_MAX_LENGTH - i);
+        }
+    }
+
+    private int[] rights;
+    private int[] lefts;
+    private long[] values;
+    private int[] prefixes;
+    private byte[] depths;
+    private int root;
+    private int size;
+
+    /**
+     * Builds a path-compressed copy of a given tree.
+     *
+     * @param tree source tree
+     */
+    public IPv4RadixCompressedTree(IPv4RadixIntTree tree) {
+        // Never more nodes than the source tree
+        int allocatedSize = tree.size();
+        rights = new int[allocatedSize];
+        lefts = new int[allocatedSize];
+        values = new long[allocatedSize];
+        prefixes = new int[allocatedSize];
+        depths = new byte[allocatedSize];
+        size = 0;
+
+        root = compile(tree, IPv4RadixIntTree.ROOT_PTR, 0, 0);
+
+        rights = Arrays.copyOf(rights, size);
+        lefts = Arrays.copyOf(lefts, size);
+        values = Arrays.copyOf(values, size);
+        prefixes = Arrays.copyOf(prefixes, size);
+        depths = Arrays.copyOf(depths, size);
+    }
+
+    /**
+     * Copies a subtree of the source tree, skipping value-less single-child nodes.
+     *
+     * @param tree   source tree
+     * @param node   source node index
+     * @param depth  prefix length of the source node
+     * @param prefix prefix bits of the source node
+     * @return index of the compressed node, or NULL_PTR if the subtree holds no values
+     */
+    private int compile(IPv4RadixIntTree tree, int node, int depth, int prefix) {
+        while (tree.valueOf(node) == NO_VALUE) {
+            int left = tree.leftOf(node);
+            int right = tree.rightOf(node);
+            if (left != NULL_PTR && right != NULL_PTR) {
+                break;
+            }
+            if (left == NULL_PTR && right == NULL_PTR) {
+                return NULL_PTR;
+            }
+            if (left != NULL_PTR) {
+                node = left;
+            } else {
+                node = right;
+                prefix |= 1 << (CIDR_MAX_LENGTH - 1 - depth);
+            }
+            depth++;
+        }
+
+        int next = size++;
+        depths[next] = (byte) depth;
+        prefixes[next] = prefix;
+        values[next] = tree.valueOf(node);
+        lefts[next] = NULL_PTR;
+        rights[next] = NULL_PTR;
+
+        if (depth < CIDR_MAX_LENGTH) {
+            int left = tree.leftOf(node);
+            int right = tree.rightOf(node);
+            if (left != NULL_PTR) {
+                lefts[next] = compile(tree, left, depth + 1, prefix);
+            }
+            if (right != NULL_PTR) {
+                rights[next] = compile(tree, right, depth + 1, prefix | (1 << (CIDR_MAX_LENGTH - 1 - depth)));
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Selects a value for a given IPv4 address, traversing tree and choosing
+     * most specific value available for a given address.
+     *
+     * @param key IPv4 address to look up
+     * @return value at most specific IPv4 network in a tree for a given IPv4
+     * address
+     */
+    public long selectValue(long key) {
+        int ip = (int) key;
+        long value = NO_VALUE;
+        int node = root;
+
+        while (node != NULL_PTR) {
+            int depth = depths[node];
+            if (((ip ^ prefixes[node]) & MASKS[depth]) != 0) {
+                break;
+            }
+            if (values[node] != NO_VALUE) {
+                value = values[node];
+            }
+            if (depth == CIDR_MAX_LENGTH) {
+                break;
+            }
+            node = ((ip << depth) < 0) ? rights[node] : lefts[node];
+        }
+
+        return value;
+    }
+
+    /**
+     * Selects a value for a given IPv4 address, traversing tree and choosing
+     * most specific value available for a given address.
+     *
+     * @param ipStr IPv4 address to look up, in string form (i.e. "a.b.c.d")
+     * @return value at most specific IPv4 network in a tree for a given IPv4
+     * address
+     * @throws UnknownHostException
+     */
+    public long selectValue(String ipStr) throws UnknownHostException {
+        return selectValue(IpConvert.ipv4ToLong(ipStr));
+    }
+
+    /**
+     * Returns a size of tree in number of nodes (not number of prefixes stored).
+     *
+     * @return a number of nodes in current tree
+     */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import com.openstat.utils.IpParser;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+
+/**
+ * Traversal core shared by the IPv4 radix trees specialized by value width
+ * ({@link IPv4RadixByteTree}, {@link IPv4RadixShortTree}, {@link IPv4RadixInt32Tree}).
+ * <p>
+ * The core owns the child pointers and a bitmap of the nodes holding a value, so it can
+ * insert prefixes and find the most specific match without knowing the value type. Each
+ * specialization only keeps a primitive value array of its own width, indexed by node.
+ */
+abstract class IPv4RadixCore {
+    static final int NULL_PTR = -1;
+    static final int ROOT_PTR = 0;
+
+    // 10000000000000000000000000000000 --> 32 bit
+    private static final long START_IPV4_BIT = 0x80000000L;
+    // 11111111111111111111111111111111 --> 32 bit
+    private static final long END_IPV4_BIT = 0xffffffffL;
+
+    // Split char
+    private static final String LINE_SPLIT = "\\s+";
+    private static final char NET_MASK_SPLIT = '/';
+
+    // cidr max
+    private static final int CIDR_MAX_LENGTH = 32;
+
+    // Largest value the specialization can store, all ones in its value width
+    private final int maxValue;
+
+    private int[] rights;
+    private int[] lefts;
+    // One bit per node, set if the node holds a value
+    private long[] valued;
+    private int allocatedSize;
+    private int size;
+
+    /**
+     * Initializes an empty tree.
+     *
+     * @param allocatedSize initial capacity to allocate
+     * @param valueBits     number of value bits the specialization stores, at most 31
+     */
+    IPv4RadixCore(int allocatedSize, int valueBits) {
+        this.allocatedSize = allocatedSize;
+        this.maxValue = (int) ((1L << valueBits) - 1);
+
+        rights = new int[allocatedSize];
+        lefts = new int[allocatedSize];
+        valued = new long[(allocatedSize + 63) >>> 6];
+
+        size = 1;
+        lefts[0] = NULL_PTR;
+        rights[0] = NULL_PTR;
+    }
+
+    /**
+     * Checks that a value fits the width of the specialization, from 0 to 2^valueBits - 1.
+     *
+     * @param value value to store
+     * @throws IllegalArgumentException if the value is out of range
+     */
+    final void checkValue(int value) {
+        if ((value & ~maxValue) != 0) {
+            throw new IllegalArgumentException("Value " + value + " is out of range 0.." + maxValue);
+        }
+    }
+
+    /**
+     * Resizes the value array of the specialization.
+     *
+     * @param allocatedSize new capacity in number of nodes
+     */
+    abstract void resizeValues(int allocatedSize);
+
+    /**
+     * Parses a value and puts it under a given network, used by the loader.
+     *
+     * @param ipNet IPv4 network as a string in form of "a.b.c.d/e"
+     * @param value value column
+     * @throws UnknownHostException
+     */
+    abstract void put(String ipNet, String value) throws UnknownHostException;
+
+    /**
+     * Finds the node for a given key, creating missing nodes on the way, and marks it as
+     * holding a value. The caller stores the value at the returned index, reading its value
+     * array only after this call since growing the tree replaces it.
+     *
+     * @param key  IPv4 network prefix
+     * @param mask IPv4 netmask in networked byte order format
+     * @return node index
+     */
+    final int insert(long key, long mask) {
+        long bit = START_IPV4_BIT;
+        int node = ROOT_PTR;
+
+        while ((bit & mask) != 0) {
+            int next = ((key & bit) != 0) ? rights[node] : lefts[node];
+            if (next == NULL_PTR) {
+                if (size == allocatedSize) {
+                    expandAllocatedSize();
+                }
+                next = size++;
+                rights[next] = NULL_PTR;
+                lefts[next] = NULL_PTR;
+                if ((key & bit) != 0) {
+                    rights[node] = next;
+                } else {
+                    lefts[node] = next;
+                }
+            }
+            bit >>= 1;
+            node = next;
+        }
+
+        valued[node >>> 6] |= 1L << node;
+        return node;
+    }
+
+    /**
+     * Finds the node for a given network in string form, see {@link #insert(long, long)}.
+     *
+     * @param ipNet IPv4 network as a string in form of "a.b.c.d/e"
+     * @return node index
+     * @throws UnknownHostException if ipNet is not an IPv4 network with a prefix length
+     *                              from 0 to 32
+     */
+    final int insert(String ipNet) throws UnknownHostException {
+        int pos = ipNet.indexOf(NET_MASK_SPLIT);
+        long ip = pos < 0 ? IpParser.INVALID : IpParser.parseIpv4(ipNet, 0, pos);
+        if (ip == IpParser.INVALID) {
+            throw new UnknownHostException(ipNet + ": not an IPv4 network");
+        }
+
+        int cidr;
+        try {
+            cidr = Integer.parseInt(ipNet.substring(pos + 1).trim());
+        } catch (NumberFormatException e) {
+            cidr = -1;
+        }
+        if (cidr < 0 || cidr > CIDR_MAX_LENGTH) {
+            throw new UnknownHostException(ipNet + ": not an IPv4 network");
+        }
+
+        long netMask = ((1L << (CIDR_MAX_LENGTH - cidr)) - 1L) ^ END_IPV4_BIT;
+        return insert(ip, netMask);
+    }
+
+    private void expandAllocatedSize() {
+        allocatedSize *= 2;
+        lefts = Arrays.copyOf(lefts, allocatedSize);
+        rights = Arrays.copyOf(rights, allocatedSize);
+        valued = Arrays.copyOf(valued, (allocatedSize + 63) >>> 6);
+        resizeValues(allocatedSize);
+    }
+
+    /**
+     * Finds the most specific node holding a value for a given IPv4 address.
+     *
+     * @param key IPv4 address to look up
+     * @return node index, or NULL_PTR if no network holds that address
+     */
+    final int find(long key) {
+        long bit = START_IPV4_BIT;
+        int best = NULL_PTR;
+        int node = ROOT_PTR;
+
+        while (node != NULL_PTR) {
+            if ((valued[node >>> 6] & (1L << node)) != 0) {
+                best = node;
+            }
+            node = ((key & bit) != 0) ? rights[node] : lefts[node];
+            bit >>= 1;
+        }
+
+        return best;
+    }
+
+    /**
+     * Returns a size of tree in number of nodes (not number of prefixes stored).
+     *
+     * @return a number of nodes in current tree
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Reads region file lines into a tree, taking values from a given column and skipping
+     * IPv6 networks. The reader is closed.
+     *
+     * @param br     region file reader
+     * @param column index of the value column, 1 for the id
+     * @param tr     tree to fill
+     * @throws IOException
+     */
+    static void load(BufferedReader br, int column, IPv4RadixCore tr) throws IOException {
+        String l;
+        try {
+            while ((l = br.readLine()) != null) {
+                String[] c = l.split(LINE_SPLIT, -1);
+
+                if (IpParser.version(c[0]) == 4) {
+                    tr.put(c[0].trim(), c[column]);
+                }
+            }
+        } finally {
+            br.close();
+        }
+    }
+}
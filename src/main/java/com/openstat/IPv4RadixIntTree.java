@@ -17,17 +17,26 @@
 package com.openstat;
 
 import com.openstat.utils.IpConvert;
-import com.openstat.utils.RegexIpAddress;
+import com.openstat.utils.IpParser;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 
 import java.net.UnknownHostException;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 
 /**
@@ -35,26 +44,30 @@ import java.net.UnknownHostException;
  * implementation that uses IPv4 addresses with netmasks as keys and 32-bit signed
  * integers as values.
  * <p>
- * This tree is generally uses in read-only manner: there are no key removal operation
- * and the whole thing works best in pre-allocated fashion.
+ * This tree is generally uses in read-only manner and the whole thing works best in
+ * pre-allocated fashion. Removed nodes are reused by later puts; {@link #compact()}
+ * gives their memory back after heavy churn.
  * <p>
  * Result of Test: test ok
  * Update by highfei2011 in 2018-01-28 .
  */
-public class IPv4RadixIntTree {
+public class IPv4RadixIntTree implements IPv4Lookup {
     /**
      * Special value that designates that there are no value stored in the key so far.
      * One can't use store value in a tree.
      */
     public static final int NO_VALUE = -1;
-    private static final int NULL_PTR = -1;
-    private static final int ROOT_PTR = 0;
+    static final int NULL_PTR = -1;
+    static final int ROOT_PTR = 0;
 
     // 10000000000000000000000000000000 --> 32 bit
     private static final long START_IPV4_BIT = 0x80000000L;
     // 11111111111111111111111111111111 --> 32 bit
     private static final long END_IPV4_BIT = 0xffffffffL;
 
+    // Number of keys walked in lock-step by selectValues
+    private static final int BATCH_WIDTH = 4;
+
     // Split char
     private static final String LINE_SPLIT = "\\s+";
     private static final char NET_MASK_SPLIT = '/';
@@ -62,9 +75,32 @@ public class IPv4RadixIntTree {
     // Nginx Length
     private static final int NGINX_LENGTH = 16;
 
+    // Delta file operations
+    private static final String DELTA_ADD = "add";
+    private static final String DELTA_CHANGE = "change";
+    private static final String DELTA_DELETE = "delete";
+    private static final char DELTA_COMMENT = '#';
+
     // cidr max
     private static final int CIDR_MAX_LENGTH = 32;
 
+    // Sort entry of buildSorted: network, prefix length, index
+    private static final int SORT_KEY_SHIFT = 32;
+    private static final int SORT_CIDR_SHIFT = 26;
+    private static final int SORT_CIDR_BITS = 0x3f;
+    private static final int SORT_INDEX_BITS = (1 << SORT_CIDR_SHIFT) - 1;
+    private static final int MAX_SORTED_COUNT = SORT_INDEX_BITS + 1;
+    // Nodes allocated per prefix by buildSorted, region files need about 2.3
+    private static final int NODES_PER_PREFIX = 3;
+
+    // Region file bytes per tree node, used to size a tree from the file length
+    private static final int BYTES_PER_NODE = 16;
+    private static final int MIN_ESTIMATED_SIZE = 1024;
+    private static final int MAX_ESTIMATED_SIZE = 1 << 26;
+
+    // Binary image bytes per tree node: left, right, value
+    private static final int IMAGE_NODE_LENGTH = 4 + 4 + 8;
+
     // your hadoop dir
     private static final  String HADOOP_DIR="/opt/soft/hadoop-2.6.0";
 
@@ -74,6 +110,13 @@ public class IPv4RadixIntTree {
     private int allocatedSize;
     private int size;
 
+    // Removed nodes, chained through lefts, reused by put
+    private int freeHead;
+    private int freeCount;
+
+    // Bumped by every change to the stored values, checked by lookup caches
+    private int modCount;
+
     private static FileSystem fs = null;
     static {
         try {
@@ -102,35 +145,15 @@ public class IPv4RadixIntTree {
 
 
     /**
-     * The total number of count local  text file  lines.
-     *
-     * @param filename file name
-     * @return The number of line .
-     * @throws IOException
-     */
-    private static int countLinesInLocalFile(String filename) throws IOException {
-        BufferedReader br = new BufferedReader(new FileReader(filename), 8192);
-        int i = 0;
-        while (br.readLine() != null) {
-            i++;
-        }
-        return i;
-    }
-
-    /**
-     * The total number of count hadoop distribute file system    text file  lines.
+     * Guesses the capacity needed for a region file from its length, so that the file is
+     * read once. A region line takes about 46 bytes and adds about 2.3 nodes.
      *
-     * @param filename file name
-     * @return The number of line .
-     * @throws IOException
+     * @param length file length in bytes
+     * @return initial capacity to allocate
      */
-    private static int countLinesInHdfds(String filename) throws IOException {
-        BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(new Path(filename)), "utf-8"));
-        int j = 0;
-        while (br.readLine() != null) {
-            j++;
-        }
-        return j;
+    static int estimateSize(long length) {
+        long estimate = length / BYTES_PER_NODE + 1;
+        return (int) Math.max(MIN_ESTIMATED_SIZE, Math.min(estimate, MAX_ESTIMATED_SIZE));
     }
 
     /**
@@ -148,6 +171,9 @@ public class IPv4RadixIntTree {
         lefts[0] = NULL_PTR;
         rights[0] = NULL_PTR;
         values[0] = NO_VALUE;
+
+        freeHead = NULL_PTR;
+        freeCount = 0;
     }
 
     /**
@@ -160,6 +186,7 @@ public class IPv4RadixIntTree {
      * @param value an arbitrary value that would be stored under a given key
      */
     public void put(long key, long mask, long value) {
+        modCount++;
         long bit = START_IPV4_BIT;
         int node = ROOT_PTR;
         int next = ROOT_PTR;
@@ -178,13 +205,7 @@ public class IPv4RadixIntTree {
         }
 
         while ((bit & mask) != 0) {
-            if (size == allocatedSize) {
-                expandAllocatedSize();
-            }
-            next = size;
-            values[next] = NO_VALUE;
-            rights[next] = NULL_PTR;
-            lefts[next] = NULL_PTR;
+            next = allocate();
 
             if ((key & bit) != 0) {
                 rights[node] = next;
@@ -194,12 +215,47 @@ public class IPv4RadixIntTree {
 
             bit >>= 1;
             node = next;
-            size++;
         }
 
         values[node] = value;
     }
 
+    /**
+     * Takes an empty node, reusing a removed one if there is any.
+     *
+     * @return node index
+     */
+    private int allocate() {
+        int next;
+        if (freeHead != NULL_PTR) {
+            next = freeHead;
+            freeHead = lefts[next];
+            freeCount--;
+        } else {
+            if (size == allocatedSize) {
+                expandAllocatedSize();
+            }
+            next = size++;
+        }
+        values[next] = NO_VALUE;
+        rights[next] = NULL_PTR;
+        lefts[next] = NULL_PTR;
+        return next;
+    }
+
+    /**
+     * Returns a detached node to the free list.
+     *
+     * @param node node index
+     */
+    private void release(int node) {
+        values[node] = NO_VALUE;
+        rights[node] = NULL_PTR;
+        lefts[node] = freeHead;
+        freeHead = node;
+        freeCount++;
+    }
+
     /**
      * Expand Allocated Size
      */
@@ -244,6 +300,153 @@ public class IPv4RadixIntTree {
         return value;
     }
 
+    /**
+     * Selects a value for a given IPv4 address like {@link #selectValue(long)}, and also
+     * fills the matched network, its prefix length and the number of nodes visited into a
+     * reusable entry.
+     *
+     * @param key   IPv4 address to look up
+     * @param entry entry to fill
+     * @return value at most specific IPv4 network in a tree for a given IPv4
+     * address
+     */
+    public long selectEntry(long key, IPv4Entry entry) {
+        long bit = START_IPV4_BIT;
+        long value = NO_VALUE;
+        int node = ROOT_PTR;
+        int depth = 0;
+        int prefixLength = -1;
+
+        while (node != NULL_PTR) {
+            if (values[node] != NO_VALUE) {
+                value = values[node];
+                prefixLength = depth;
+            }
+            node = ((key & bit) != 0) ? rights[node] : lefts[node];
+            bit >>= 1;
+            depth++;
+        }
+
+        entry.network = prefixLength < 0 ? 0 : key & prefixMask(prefixLength);
+        entry.prefixLength = prefixLength;
+        entry.value = value;
+        entry.depth = depth;
+        return value;
+    }
+
+    /**
+     * Same walk as {@link #selectValue(long)} that also records the traversal into metrics,
+     * used by {@link IPv4MeteredTree} so that the plain walk stays free of instrumentation.
+     *
+     * @param key     IPv4 address to look up
+     * @param metrics metrics to record the lookup into
+     * @return value at most specific IPv4 network in a tree for a given IPv4
+     * address
+     */
+    long selectValue(long key, LookupMetrics metrics) {
+        long bit = START_IPV4_BIT;
+        long value = NO_VALUE;
+        int node = ROOT_PTR;
+        int depth = 0;
+        int prefixLength = -1;
+
+        while (node != NULL_PTR) {
+            if (values[node] != NO_VALUE) {
+                value = values[node];
+                prefixLength = depth;
+            }
+            node = ((key & bit) != 0) ? rights[node] : lefts[node];
+            bit >>= 1;
+            depth++;
+        }
+
+        metrics.recordLookup(depth, prefixLength);
+        return value;
+    }
+
+    /**
+     * Selects values for a batch of IPv4 addresses, as if by calling
+     * {@link #selectValue(long)} for every key.
+     *
+     * @param keys IPv4 addresses to look up
+     * @param out  array receiving the value of each key at the same index, at least as long as keys
+     */
+    public void selectValues(long[] keys, long[] out) {
+        selectValues(keys, 0, keys.length, out);
+    }
+
+    /**
+     * Selects values for a range of a batch of IPv4 addresses, as if by calling
+     * {@link #selectValue(long)} for every key.
+     * <p>
+     * Keys are walked down the tree in groups of four in lock-step, so the node reads of
+     * different keys are independent and their cache misses overlap instead of being paid
+     * one after another. Nothing is allocated.
+     *
+     * @param keys   IPv4 addresses to look up
+     * @param offset index of the first key
+     * @param length number of keys
+     * @param out    array receiving the value of each key at the same index
+     */
+    public void selectValues(long[] keys, int offset, int length, long[] out) {
+        int i = offset;
+        int end = offset + length;
+
+        for (; i + BATCH_WIDTH <= end; i += BATCH_WIDTH) {
+            long k0 = keys[i];
+            long k1 = keys[i + 1];
+            long k2 = keys[i + 2];
+            long k3 = keys[i + 3];
+            long v0 = NO_VALUE;
+            long v1 = NO_VALUE;
+            long v2 = NO_VALUE;
+            long v3 = NO_VALUE;
+            int n0 = ROOT_PTR;
+            int n1 = ROOT_PTR;
+            int n2 = ROOT_PTR;
+            int n3 = ROOT_PTR;
+            long bit = START_IPV4_BIT;
+
+            // Node indexes are non-negative, so the AND is NULL_PTR only once every lane is done
+            while ((n0 & n1 & n2 & n3) != NULL_PTR) {
+                if (n0 != NULL_PTR) {
+                    if (values[n0] != NO_VALUE) {
+                        v0 = values[n0];
+                    }
+                    n0 = ((k0 & bit) != 0) ? rights[n0] : lefts[n0];
+                }
+                if (n1 != NULL_PTR) {
+                    if (values[n1] != NO_VALUE) {
+                        v1 = values[n1];
+                    }
+                    n1 = ((k1 & bit) != 0) ? rights[n1] : lefts[n1];
+                }
+                if (n2 != NULL_PTR) {
+                    if (values[n2] != NO_VALUE) {
+                        v2 = values[n2];
+                    }
+                    n2 = ((k2 & bit) != 0) ? rights[n2] : lefts[n2];
+                }
+                if (n3 != NULL_PTR) {
+                    if (values[n3] != NO_VALUE) {
+                        v3 = values[n3];
+                    }
+                    n3 = ((k3 & bit) != 0) ? rights[n3] : lefts[n3];
+                }
+                bit >>= 1;
+            }
+
+            out[i] = v0;
+            out[i + 1] = v1;
+            out[i + 2] = v2;
+            out[i + 3] = v3;
+        }
+
+        for (; i < end; i++) {
+            out[i] = selectValue(keys[i]);
+        }
+    }
+
     /**
      * Puts a key-value pair in a tree, using a string representation of IPv4 prefix.
      *
@@ -254,10 +457,56 @@ public class IPv4RadixIntTree {
      */
     public void put(String ipNet, long value) throws UnknownHostException {
         int pos = ipNet.indexOf(NET_MASK_SPLIT);
-        String ipStr = ipNet.substring(0, pos);
-        long ip = IpConvert.ipv4ToLong(ipStr);
+        long ip = address(ipNet, pos);
+
+        put(ip, netMask(ipNet.substring(pos + 1)), value);
+    }
+
+    /**
+     * Parses the address part of a network in string form.
+     *
+     * @param ipNet IPv4 network as a string in form of "a.b.c.d/e"
+     * @param pos   position of the '/' separator, negative if there is none
+     * @return IPv4 network prefix
+     * @throws UnknownHostException if the address part is not an IPv4 literal
+     */
+    private static long address(String ipNet, int pos) throws UnknownHostException {
+        long ip = pos < 0 ? IpParser.INVALID : IpParser.parseIpv4(ipNet, 0, pos);
+        if (ip == IpParser.INVALID) {
+            throw new UnknownHostException(ipNet + ": not an IPv4 network");
+        }
+        return ip;
+    }
+
+    /**
+     * Parses the prefix length part of a network in string form, strictly unlike
+     * {@link #netMask(String)}.
+     *
+     * @param ipNet IPv4 network as a string in form of "a.b.c.d/e"
+     * @param pos   position of the '/' separator
+     * @return netmask in networked byte order format
+     * @throws UnknownHostException if the prefix length is not a number from 0 to 32
+     */
+    private static long strictNetMask(String ipNet, int pos) throws UnknownHostException {
+        int cidr;
+        try {
+            cidr = Integer.parseInt(ipNet.substring(pos + 1).trim());
+        } catch (NumberFormatException e) {
+            cidr = -1;
+        }
+        if (cidr < 0 || cidr > CIDR_MAX_LENGTH) {
+            throw new UnknownHostException(ipNet + ": not an IPv4 network");
+        }
+        return prefixMask(cidr);
+    }
 
-        String netMaskStr = ipNet.substring(pos + 1);
+    /**
+     * Converts a netmask in CIDR notation to a netmask in networked byte order format.
+     *
+     * @param netMaskStr netmask in CIDR notation, i.e. "24"
+     * @return netmask
+     */
+    private static long netMask(String netMaskStr) {
         int cidr = 0;
         try {
             cidr = Integer.parseInt(netMaskStr.trim());
@@ -265,8 +514,230 @@ public class IPv4RadixIntTree {
             System.out.println("error ::: " + netMaskStr);
         }
 
-        long netMask = ((1L << (CIDR_MAX_LENGTH - cidr)) - 1L) ^ END_IPV4_BIT;
-        put(ip, netMask, value);
+        return prefixMask(cidr);
+    }
+
+    /**
+     * Removes the value stored under a given key. Nodes left without value and without
+     * children are detached from the tree and reused by later puts, see also {@link #compact()}.
+     *
+     * @param key  IPv4 network prefix
+     * @param mask IPv4 netmask in networked byte order format
+     * @return true if a value was stored under that key
+     */
+    public boolean remove(long key, long mask) {
+        int[] path = new int[CIDR_MAX_LENGTH + 1];
+        int depth = 0;
+        long bit = START_IPV4_BIT;
+        int node = ROOT_PTR;
+        path[0] = node;
+
+        while ((bit & mask) != 0) {
+            node = ((key & bit) != 0) ? rights[node] : lefts[node];
+            if (node == NULL_PTR) {
+                return false;
+            }
+            path[++depth] = node;
+            bit >>= 1;
+        }
+
+        if (values[node] == NO_VALUE) {
+            return false;
+        }
+        values[node] = NO_VALUE;
+        modCount++;
+
+        // Prune empty leaves up to the first node still in use, the root always stays
+        while (depth > 0 && values[node] == NO_VALUE && lefts[node] == NULL_PTR && rights[node] == NULL_PTR) {
+            int parent = path[--depth];
+            if (lefts[parent] == node) {
+                lefts[parent] = NULL_PTR;
+            } else {
+                rights[parent] = NULL_PTR;
+            }
+            release(node);
+            node = parent;
+        }
+        return true;
+    }
+
+    /**
+     * Removes the value stored under a given key, using a string representation of IPv4 prefix.
+     *
+     * @param ipNet IPv4 network as a string in form of "a.b.c.d/e"
+     * @return true if a value was stored under that key
+     * @throws UnknownHostException if ipNet is not an IPv4 network with a prefix length
+     */
+    public boolean remove(String ipNet) throws UnknownHostException {
+        int pos = ipNet.indexOf(NET_MASK_SPLIT);
+        long ip = address(ipNet, pos);
+        return remove(ip, strictNetMask(ipNet, pos));
+    }
+
+    /**
+     * Returns an independent copy of this tree, for example to apply a delta to while the
+     * original keeps serving lookups.
+     *
+     * @return a copy of current tree
+     */
+    public IPv4RadixIntTree copy() {
+        IPv4RadixIntTree tr = new IPv4RadixIntTree(allocatedSize);
+        System.arraycopy(lefts, 0, tr.lefts, 0, size);
+        System.arraycopy(rights, 0, tr.rights, 0, size);
+        System.arraycopy(values, 0, tr.values, 0, size);
+        tr.size = size;
+        tr.freeHead = freeHead;
+        tr.freeCount = freeCount;
+        return tr;
+    }
+
+    /**
+     * Moves all nodes to the front of the arrays, in breadth-first order, and shrinks the
+     * arrays to the number of nodes. Frees the memory held by removed nodes after heavy
+     * churn. Not safe to run while other threads read the tree; compact a {@link #copy()}
+     * instead.
+     */
+    public void compact() {
+        IPv4RadixIntTree tr = compacted();
+        rights = tr.rights;
+        lefts = tr.lefts;
+        values = tr.values;
+        allocatedSize = tr.allocatedSize;
+        size = tr.size;
+        freeHead = NULL_PTR;
+        freeCount = 0;
+    }
+
+    /**
+     * Tells whether this tree can be saved as it is: no removed nodes and every child
+     * after its parent, which loading checks. Reused nodes break the order.
+     *
+     * @return true if no compaction is needed
+     */
+    private boolean ordered() {
+        if (freeCount != 0) {
+            return false;
+        }
+        for (int node = 0; node < size; node++) {
+            if ((lefts[node] != NULL_PTR && lefts[node] <= node)
+                    || (rights[node] != NULL_PTR && rights[node] <= node)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a copy of this tree without removed nodes.
+     *
+     * @return a compacted copy of current tree
+     */
+    private IPv4RadixIntTree compacted() {
+        int live = size();
+        IPv4RadixIntTree tr = new IPv4RadixIntTree(live);
+        int[] order = new int[live];
+        int tail = 0;
+        order[tail++] = ROOT_PTR;
+        for (int i = 0; i < tail; i++) {
+            int node = order[i];
+            tr.values[i] = values[node];
+            tr.lefts[i] = NULL_PTR;
+            tr.rights[i] = NULL_PTR;
+            if (lefts[node] != NULL_PTR) {
+                tr.lefts[i] = tail;
+                order[tail++] = lefts[node];
+            }
+            if (rights[node] != NULL_PTR) {
+                tr.rights[i] = tail;
+                order[tail++] = rights[node];
+            }
+        }
+        tr.size = tail;
+        return tr;
+    }
+
+    /**
+     * Builds a tree from a batch of prefixes in one linear pass, instead of walking down from
+     * the root for every prefix. Prefixes are sorted by network and prefix length first,
+     * which is cheap when they are sorted already, then each one only creates the nodes below
+     * the deepest ancestor it shares with the previous one. Nodes are laid out in depth-first
+     * order, so a lookup mostly reads nearby array slots.
+     * <p>
+     * The result is the same as putting the prefixes one by one in array order: when a prefix
+     * appears twice, the last value wins. Host bits beyond the mask are ignored.
+     *
+     * @param keys   IPv4 network prefixes
+     * @param masks  IPv4 netmasks in networked byte order format
+     * @param values values stored under the prefixes
+     * @param count  number of prefixes to take from the arrays
+     * @return a tree holding the prefixes
+     */
+    public static IPv4RadixIntTree buildSorted(long[] keys, long[] masks, long[] values, int count) {
+        if (count > MAX_SORTED_COUNT) {
+            IPv4RadixIntTree tr = new IPv4RadixIntTree(count);
+            for (int i = 0; i < count; i++) {
+                tr.put(keys[i], masks[i], values[i]);
+            }
+            return tr;
+        }
+
+        // Network, prefix length and index packed so that sorting a long[] sorts the
+        // prefixes, sign bit flipped for the unsigned order of networks
+        long[] order = new long[count];
+        boolean sorted = true;
+        for (int i = 0; i < count; i++) {
+            int cidr = Long.numberOfLeadingZeros(~masks[i] & END_IPV4_BIT) - (Long.SIZE - CIDR_MAX_LENGTH);
+            long key = keys[i] & prefixMask(cidr);
+            order[i] = ((key << SORT_KEY_SHIFT | (long) cidr << SORT_CIDR_SHIFT | i) ^ Long.MIN_VALUE);
+            sorted &= i == 0 || order[i - 1] < order[i];
+        }
+        if (!sorted) {
+            Arrays.sort(order);
+        }
+
+        IPv4RadixIntTree tr = new IPv4RadixIntTree(Math.max(MIN_ESTIMATED_SIZE, NODES_PER_PREFIX * count));
+        // Open ancestors of the previous prefix by depth
+        int[] path = new int[CIDR_MAX_LENGTH + 1];
+        int depth = 0;
+        long previous = 0;
+        for (int i = 0; i < count; i++) {
+            long entry = order[i] ^ Long.MIN_VALUE;
+            long key = entry >>> SORT_KEY_SHIFT;
+            int cidr = (int) (entry >>> SORT_CIDR_SHIFT) & SORT_CIDR_BITS;
+            int index = (int) (entry & SORT_INDEX_BITS);
+
+            int shared = Long.numberOfLeadingZeros(previous ^ key) - (Long.SIZE - CIDR_MAX_LENGTH);
+            shared = Math.min(shared, Math.min(depth, cidr));
+            int node = path[shared];
+            for (int d = shared; d < cidr; d++) {
+                if (tr.size == tr.allocatedSize) {
+                    tr.expandAllocatedSize();
+                }
+                int next = tr.size++;
+                tr.lefts[next] = NULL_PTR;
+                tr.rights[next] = NULL_PTR;
+                tr.values[next] = NO_VALUE;
+                if ((key & (START_IPV4_BIT >>> d)) != 0) {
+                    tr.rights[node] = next;
+                } else {
+                    tr.lefts[node] = next;
+                }
+                node = next;
+                path[d + 1] = node;
+            }
+            tr.values[node] = values[index];
+
+            previous = key;
+            depth = cidr;
+        }
+        return tr;
+    }
+
+    /**
+     * Converts a prefix length to a netmask.
+     */
+    private static long prefixMask(int cidr) {
+        return ((1L << (CIDR_MAX_LENGTH - cidr)) - 1L) ^ END_IPV4_BIT;
     }
 
     /**
@@ -282,12 +753,74 @@ public class IPv4RadixIntTree {
         return selectValue(IpConvert.ipv4ToLong(ipStr));
     }
 
+    /**
+     * Returns an immutable snapshot of this tree, laid out for fast lookups: nodes are
+     * renumbered so that small subtrees share cache lines and each node's pointers and
+     * value are stored next to each other. Later changes to this tree are not reflected in the snapshot.
+     *
+     * @return a frozen copy of current tree
+     */
+    public IPv4FrozenTree freeze() {
+        return new IPv4FrozenTree(this);
+    }
+
+    /**
+     * Returns the left branch pointer of a given node, or {@code NULL_PTR}.
+     * Used by the compiled lookup structures built from this tree.
+     *
+     * @param node node index
+     * @return left child index
+     */
+    int leftOf(int node) {
+        return lefts[node];
+    }
+
+    /**
+     * Returns the right branch pointer of a given node, or {@code NULL_PTR}.
+     *
+     * @param node node index
+     * @return right child index
+     */
+    int rightOf(int node) {
+        return rights[node];
+    }
+
+    /**
+     * Returns the value stored in a given node, or {@link #NO_VALUE}.
+     *
+     * @param node node index
+     * @return node value
+     */
+    long valueOf(int node) {
+        return values[node];
+    }
+
     /**
      * Returns a size of tree in number of nodes (not number of prefixes stored).
      *
      * @return a number of nodes in current tree
      */
     public int size() {
+        return size - freeCount;
+    }
+
+    /**
+     * Returns a counter bumped by every put and remove, so that a lookup cache can tell its
+     * entries are stale.
+     *
+     * @return modification count
+     */
+    int modCount() {
+        return modCount;
+    }
+
+    /**
+     * Returns the number of node slots in use, including removed nodes awaiting reuse.
+     * Node indexes are always below this number.
+     *
+     * @return a number of node slots
+     */
+    int slots() {
         return size;
     }
 
@@ -330,38 +863,33 @@ public class IPv4RadixIntTree {
      * @throws IOException
      */
     public static IPv4RadixIntTree loadFromLocalFile(String filename, boolean nginxFormat) throws IOException {
-        IPv4RadixIntTree tr = new IPv4RadixIntTree(countLinesInLocalFile(filename));
-        BufferedReader br = new BufferedReader(new FileReader(filename));
-        String l;
-        long value;
-        /*
-         line (cidr,nextId,ispId,regionId,regionlevel,regionType,networkType)
-         112.60.0.0/18	951728549285331151	2	34	3	2	0
-         */
-
-        while ((l = br.readLine()) != null) {
-            String[] c = l.split(LINE_SPLIT, -1);
-
-            if (nginxFormat) {
-                // strip ";" at EOL
-                int le=c[1].length() - 1;
-                // Put value
-                c[1] = c[1].substring(0,le);
-
-                // NB: This is to work around malicious "80000000" AS number
-                value = Long.parseLong(c[1], NGINX_LENGTH);
-            } else {
-                // NB: You can adjust the use of int or long.
-                value = Long.parseLong(c[1]);
-            }
+        return loadFromLocalFile(filename, nginxFormat, 0);
+    }
 
-            ////////////////////////////////////////////////////////
-            // Judge the text of the ip is legal!
-            String ip=c[0].split("/")[0];
-            if(RegexIpAddress.isIpv4OrIpv6(ip)==4){
-                tr.put(c[0].trim(), value);
+    /**
+     * Helper function that reads IPv4 radix tree from a local file in tab-separated format:
+     * (IPv4 net => value), in a single pass over the memory-mapped file.
+     *
+     * @param filename    name of a local file to read
+     * @param nginxFormat if true, then file would be parsed as nginx web server configuration file
+     * @param sizeHint    expected number of nodes, or 0 to guess it from the file length
+     * @return a fully constructed IPv4 radix tree from that file
+     * @throws IOException if the file can't be read, or an IPv4 line has a malformed prefix length or value
+     */
+    public static IPv4RadixIntTree loadFromLocalFile(String filename, boolean nginxFormat, int sizeHint)
+            throws IOException {
+        int allocatedSize = sizeHint > 0 ? sizeHint : estimateSize(new File(filename).length());
+        IPv4RadixIntTree tr = new IPv4RadixIntTree(allocatedSize);
+        RegionFileReader r = RegionFileReader.open(filename);
+        try {
+            while (r.next()) {
+                long ip = r.ipv4();
+                if (ip != IpParser.INVALID) {
+                    tr.put(ip, r.ipv4Mask(), r.longValue(nginxFormat));
+                }
             }
-
+        } finally {
+            r.close();
         }
 
         return tr;
@@ -376,37 +904,261 @@ public class IPv4RadixIntTree {
      * @throws IOException
      */
     public static IPv4RadixIntTree loadFromHdfs(String filePath, boolean nginxFormat) throws IOException {
-        IPv4RadixIntTree tr = new IPv4RadixIntTree(countLinesInHdfds(filePath));
-        BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(new Path(filePath)), "UTF-8"));
+        return loadFromHdfs(filePath, nginxFormat, 0);
+    }
+
+    /**
+     * Read region file from hadoop distribute file system in a single pass.
+     *
+     * @param filePath    filePath
+     * @param nginxFormat format
+     * @param sizeHint    expected number of nodes, or 0 to guess it from the file length
+     * @return IPv4RadixIntTree
+     * @throws IOException
+     */
+    public static IPv4RadixIntTree loadFromHdfs(String filePath, boolean nginxFormat, int sizeHint)
+            throws IOException {
+        Path path = new Path(filePath);
+        int allocatedSize = sizeHint > 0 ? sizeHint : estimateSize(fs.getFileStatus(path).getLen());
+        return loadFromReader(new BufferedReader(new InputStreamReader(fs.open(path), "UTF-8")),
+                nginxFormat, allocatedSize);
+    }
+
+    /**
+     * Reads region file lines into a new tree, skipping IPv6 networks. The tree starts at a
+     * given capacity and doubles when it runs out. The reader is closed.
+     *
+     * @param br            region file reader
+     * @param nginxFormat   if true, values are hex and followed by ";"
+     * @param allocatedSize initial capacity to allocate
+     * @return IPv4RadixIntTree
+     * @throws IOException
+     */
+    private static IPv4RadixIntTree loadFromReader(BufferedReader br, boolean nginxFormat, int allocatedSize)
+            throws IOException {
+        IPv4RadixIntTree tr = new IPv4RadixIntTree(allocatedSize);
         String l;
         long value;
         /*
          line (cidr,nextId,ispId,regionId,regionlevel,regionType,networkType)
          112.60.0.0/18	951728549285331151	2	34	3	2	0
          */
+        try {
+            while ((l = br.readLine()) != null) {
+                String[] c = l.split(LINE_SPLIT, -1);
 
-        while ((l = br.readLine()) != null) {
-            String[] c = l.split(LINE_SPLIT, -1);
+                if (nginxFormat) {
+                    // strip ";" at EOL
+                    c[1] = c[1].substring(0, c[1].length() - 1);
 
-            if (nginxFormat) {
-                // strip ";" at EOL
-                c[1] = c[1].substring(0, c[1].length() - 1);
+                    // NB: This is to work around malicious "80000000" AS number
+                    value = Long.parseLong(c[1], NGINX_LENGTH);
+                } else {
+                    // NB: You can adjust the use of int or long.
+                    value = Long.parseLong(c[1]);
+                }
 
-                // NB: this is to work around malicious "80000000" AS number
-                value = Long.parseLong(c[1], NGINX_LENGTH);
-            } else {
-                value = Long.parseLong(c[1]);
-            }
-            ////////////////////////////////////////////
-            // Judge the text of the ip is legal or not!
-            String ip=c[0].split("/")[0];
-            if(RegexIpAddress.isIpv4OrIpv6(ip)==4){
-                tr.put(c[0].trim(), value);
+                ////////////////////////////////////////////////////////
+                // Judge the text of the ip is legal!
+                if (IpParser.version(c[0]) == 4) {
+                    tr.put(c[0].trim(), value);
+                }
             }
+        } finally {
+            br.close();
+        }
+
+        return tr;
+    }
+
+    /**
+     * Writes this tree to a stream as a binary image: a versioned header, the node arrays
+     * and a CRC32 checksum. Removed nodes are left out of the image, and nodes are
+     * renumbered if reused nodes left a child before its parent. The stream is flushed but
+     * not closed.
+     *
+     * @param out stream to write to
+     * @throws IOException
+     */
+    public void save(OutputStream out) throws IOException {
+        IPv4RadixIntTree tr = ordered() ? this : compacted();
+        TreeImage image = TreeImage.writer(out);
+        image.writeHeader(TreeImage.KIND_IPV4, tr.size);
+        image.writeInts(tr.lefts, tr.size);
+        image.writeInts(tr.rights, tr.size);
+        image.writeLongs(tr.values, tr.size);
+        image.finish();
+    }
 
+    /**
+     * Writes this tree to a local file as a binary image.
+     *
+     * @param filename name of a local file to write
+     * @throws IOException
+     */
+    public void save(String filename) throws IOException {
+        try (OutputStream out = new FileOutputStream(filename)) {
+            save(out);
         }
+    }
 
+    /**
+     * Reads an IPv4 radix tree from a binary image written by {@link #save(OutputStream)}.
+     * The stream is not closed.
+     *
+     * @param in stream to read from
+     * @return a fully constructed IPv4 radix tree from that image
+     * @throws IOException if the image is truncated, corrupted or of another kind or version
+     */
+    public static IPv4RadixIntTree load(InputStream in) throws IOException {
+        TreeImage image = TreeImage.reader(in);
+        int size = image.readHeader(TreeImage.KIND_IPV4, IMAGE_NODE_LENGTH);
+        IPv4RadixIntTree tr = new IPv4RadixIntTree(size);
+        image.readInts(tr.lefts, size);
+        image.readInts(tr.rights, size);
+        image.readLongs(tr.values, size);
+        image.verify();
+        TreeImage.checkLinks(IntBuffer.wrap(tr.lefts), IntBuffer.wrap(tr.rights), size);
+        tr.size = size;
         return tr;
     }
 
+    /**
+     * Reads an IPv4 radix tree from a local binary image file.
+     *
+     * @param filename name of a local file to read
+     * @return a fully constructed IPv4 radix tree from that image
+     * @throws IOException
+     */
+    public static IPv4RadixIntTree load(String filename) throws IOException {
+        try (InputStream in = new FileInputStream(filename)) {
+            return load(in);
+        }
+    }
+
+    /**
+     * Reads an IPv4 radix tree from a binary image file on hadoop distribute file system.
+     *
+     * @param filePath image path
+     * @return a fully constructed IPv4 radix tree from that image
+     * @throws IOException
+     */
+    public static IPv4RadixIntTree loadFromHdfsImage(String filePath) throws IOException {
+        try (InputStream in = fs.open(new Path(filePath))) {
+            return load(in);
+        }
+    }
+
+    /**
+     * Applies a local delta file to this tree, see {@link #applyDelta(BufferedReader)}.
+     *
+     * @param filename name of a local delta file
+     * @return number of operations that changed the tree
+     * @throws IOException
+     */
+    public int applyDeltaFromLocalFile(String filename) throws IOException {
+        return applyDelta(new BufferedReader(new FileReader(filename)));
+    }
+
+    /**
+     * Applies a delta file from hadoop distribute file system to this tree.
+     *
+     * @param filePath delta file path
+     * @return number of operations that changed the tree
+     * @throws IOException
+     */
+    public int applyDeltaFromHdfs(String filePath) throws IOException {
+        return applyDelta(new BufferedReader(new InputStreamReader(fs.open(new Path(filePath)), "UTF-8")));
+    }
+
+    /**
+     * Applies a delta to this tree, at a cost proportional to the number of delta lines.
+     * Each line is an operation followed by a line in the region file format:
+     * <pre>
+     * add     120.52.73.0/24  971659862255599616  3  23  4  3  0
+     * change  111.40.240.0/28 971659862259793999  2  38  4  3  0
+     * delete  101.96.8.0/26
+     * </pre>
+     * "add" and "change" store the value, "delete" removes the prefix. Blank lines, lines
+     * starting with '#' and IPv6 prefixes are skipped. The reader is closed.
+     * <p>
+     * Every line is parsed before the first change, so a malformed delta leaves the tree as
+     * it was.
+     *
+     * @param br delta reader
+     * @return number of operations that changed the tree
+     * @throws IOException if a line holds an unknown operation or is malformed, the message
+     *                     names the line
+     */
+    public int applyDelta(BufferedReader br) throws IOException {
+        List<DeltaOperation> operations = new ArrayList<DeltaOperation>();
+        String l;
+        int lineNumber = 0;
+        try {
+            while ((l = br.readLine()) != null) {
+                lineNumber++;
+                l = l.trim();
+                if (l.isEmpty() || l.charAt(0) == DELTA_COMMENT) {
+                    continue;
+                }
+                String[] c = l.split(LINE_SPLIT, -1);
+                if (c.length < 2) {
+                    throw new IOException("Malformed delta line #" + lineNumber);
+                }
+
+                if (IpParser.version(c[1]) != 4) {
+                    continue;
+                }
+
+                boolean delete = DELTA_DELETE.equals(c[0]);
+                if (!delete && !DELTA_ADD.equals(c[0]) && !DELTA_CHANGE.equals(c[0])) {
+                    throw new IOException("Unknown delta operation '" + c[0] + "' in line #" + lineNumber);
+                }
+                if (!delete && c.length < 3) {
+                    throw new IOException("Malformed delta line #" + lineNumber);
+                }
+                try {
+                    int pos = c[1].indexOf(NET_MASK_SPLIT);
+                    long key = address(c[1], pos);
+                    long mask = strictNetMask(c[1], pos);
+                    long value = delete ? NO_VALUE : Long.parseLong(c[2]);
+                    operations.add(new DeltaOperation(delete, key, mask, value));
+                } catch (UnknownHostException | NumberFormatException e) {
+                    throw new IOException("Malformed delta line #" + lineNumber, e);
+                }
+            }
+        } finally {
+            br.close();
+        }
+
+        int applied = 0;
+        for (DeltaOperation op : operations) {
+            if (op.delete) {
+                if (remove(op.key, op.mask)) {
+                    applied++;
+                }
+            } else {
+                put(op.key, op.mask, op.value);
+                applied++;
+            }
+        }
+        return applied;
+    }
+
+    /**
+     * Parsed delta line.
+     */
+    private static final class DeltaOperation {
+        private final boolean delete;
+        private final long key;
+        private final long mask;
+        private final long value;
+
+        DeltaOperation(boolean delete, long key, long mask, long value) {
+            this.delete = delete;
+            this.key = key;
+            this.mask = mask;
+            this.value = value;
+        }
+    }
 }
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import com.openstat.utils.IpConvert;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+
+/**
+ * IPv4 radix tree with short-wide values from 0 to 65535, for mid-sized value domains such
+ * as region, isp or autonomous system ids. A node costs about 10 bytes instead of the 16 bytes of
+ * {@link IPv4RadixIntTree}, about 35% less, with no boxing.
+ * <p>
+ * Traversal is shared with the other value widths through {@link IPv4RadixCore}; lookups
+ * return {@link IPv4RadixIntTree#NO_VALUE} for unmatched addresses like the other trees.
+ */
+public class IPv4RadixShortTree extends IPv4RadixCore implements IPv4Lookup {
+    // Value width, values range from 0 to 2^VALUE_BITS - 1
+    private static final int VALUE_BITS = 16;
+
+    private short[] values;
+
+    /**
+     * Initializes IPv4 radix tree with default capacity of 1024 nodes. It should be sufficient for small databases.
+     */
+    public IPv4RadixShortTree() {
+        this(1024);
+    }
+
+    /**
+     * Initializes IPv4 radix tree with a given capacity.
+     *
+     * @param allocatedSize initial capacity to allocate
+     */
+    public IPv4RadixShortTree(int allocatedSize) {
+        super(allocatedSize, VALUE_BITS);
+        values = new short[allocatedSize];
+    }
+
+    void resizeValues(int allocatedSize) {
+        values = Arrays.copyOf(values, allocatedSize);
+    }
+
+    /**
+     * Puts a key-value pair in a tree.
+     *
+     * @param key   IPv4 network prefix
+     * @param mask  IPv4 netmask in networked byte order format
+     * @param value a value from 0 to 65535
+     * @throws IllegalArgumentException if the value is out of range
+     */
+    public void put(long key, long mask, int value) {
+        checkValue(value);
+        int node = insert(key, mask);
+        values[node] = (short) value;
+    }
+
+    /**
+     * Puts a key-value pair in a tree, using a string representation of IPv4 prefix.
+     *
+     * @param ipNet IPv4 network as a string in form of "a.b.c.d/e"
+     * @param value a value from 0 to 65535
+     * @throws UnknownHostException
+     * @throws IllegalArgumentException if the value is out of range
+     */
+    public void put(String ipNet, int value) throws UnknownHostException {
+        checkValue(value);
+        int node = insert(ipNet);
+        values[node] = (short) value;
+    }
+
+    void put(String ipNet, String value) throws UnknownHostException {
+        put(ipNet, Integer.parseInt(value));
+    }
+
+    /**
+     * Selects a value for a given IPv4 address, traversing tree and choosing
+     * most specific value available for a given address.
+     *
+     * @param key IPv4 address to look up
+     * @return value at most specific IPv4 network in a tree for a given IPv4
+     * address, or {@link IPv4RadixIntTree#NO_VALUE}
+     */
+    public long selectValue(long key) {
+        int node = find(key);
+        return node == NULL_PTR ? IPv4RadixIntTree.NO_VALUE : values[node] & 0xffff;
+    }
+
+    /**
+     * Selects a value for a given IPv4 address, traversing tree and choosing
+     * most specific value available for a given address.
+     *
+     * @param ipStr IPv4 address to look up, in string form (i.e. "a.b.c.d")
+     * @return value at most specific IPv4 network in a tree for a given IPv4
+     * address, or {@link IPv4RadixIntTree#NO_VALUE}
+     * @throws UnknownHostException
+     */
+    public long selectValue(String ipStr) throws UnknownHostException {
+        return selectValue(IpConvert.ipv4ToLong(ipStr));
+    }
+
+    /**
+     * Reads a tree from a local region file, taking values from a given column and skipping
+     * IPv6 networks.
+     *
+     * @param filename name of a local file to read
+     * @param column   index of the value column, i.e. 4 for the region level
+     * @return a fully constructed IPv4 radix tree from that file
+     * @throws IOException
+     */
+    public static IPv4RadixShortTree loadFromLocalFile(String filename, int column) throws IOException {
+        IPv4RadixShortTree tr = new IPv4RadixShortTree();
+        load(new BufferedReader(new FileReader(filename)), column, tr);
+        return tr;
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import com.openstat.utils.IpConvert;
+import com.openstat.utils.IpParser;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * IPv4 radix tree that keeps every column of the region file instead of the id alone:
+ * <pre>
+ * cidr            id                  ispId regionId regionLevel regionType networkType
+ * 120.52.73.0/24  971659862255599616  3     23       4           3          0
+ * </pre>
+ * The tree stores a record index. Ids are kept per record in a primitive column, while the
+ * attribute tuple (ispId, regionId, regionLevel, regionType, networkType) is deduplicated,
+ * since a few hundred distinct tuples are shared by tens of thousands of prefixes. Attributes
+ * are read through the record index, so a lookup allocates nothing:
+ * <pre>
+ * int record = tree.selectRecord(key);
+ * if (record != IPv4RegionTree.NO_RECORD) {
+ *     int regionId = tree.getRegionId(record);
+ * }
+ * </pre>
+ * Record indexes are kept in an {@link IPv4RadixInt32Tree}, 4 bytes per node. Putting an
+ * already stored prefix again leaves its former record unreferenced.
+ */
+public class IPv4RegionTree implements IPv4Lookup {
+    /**
+     * Special record index returned for addresses outside of any stored network.
+     */
+    public static final int NO_RECORD = -1;
+
+    // Split char
+    private static final String LINE_SPLIT = "\\s+";
+
+    // Region file columns
+    private static final int COLUMN_COUNT = 7;
+
+    private final IPv4RadixInt32Tree tree;
+
+    // Per record columns
+    private long[] ids;
+    private int[] tuples;
+    private int recordCount;
+
+    // Deduplicated attribute tuple columns
+    private int[] ispIds;
+    private int[] regionIds;
+    private byte[] regionLevels;
+    private byte[] regionTypes;
+    private byte[] networkTypes;
+    private int tupleCount;
+
+    /**
+     * Initializes an empty region tree.
+     */
+    public IPv4RegionTree() {
+        tree = new IPv4RadixInt32Tree();
+        ids = new long[1024];
+        tuples = new int[1024];
+        ispIds = new int[64];
+        regionIds = new int[64];
+        regionLevels = new byte[64];
+        regionTypes = new byte[64];
+        networkTypes = new byte[64];
+    }
+
+    /**
+     * Puts a network and its region attributes in the tree. The attribute tuple is looked up
+     * among the known ones by a linear scan; {@link #loadFromReader(BufferedReader)} uses a
+     * hash index instead, which only lives while loading.
+     *
+     * @param ipNet       IPv4 network as a string in form of "a.b.c.d/e"
+     * @param id          record id
+     * @param ispId       isp id
+     * @param regionId    region id
+     * @param regionLevel region level, must fit in a byte
+     * @param regionType  region type, must fit in a byte
+     * @param networkType network type, must fit in a byte
+     * @return record index
+     * @throws UnknownHostException
+     */
+    public int put(String ipNet, long id, int ispId, int regionId,
+                   int regionLevel, int regionType, int networkType) throws UnknownHostException {
+        return put(ipNet, id, ispId, regionId, regionLevel, regionType, networkType, null);
+    }
+
+    private int put(String ipNet, long id, int ispId, int regionId, int regionLevel, int regionType,
+                    int networkType, Map<Tuple, Integer> tupleIndex) throws UnknownHostException {
+        int tuple = tuple(ispId, regionId, toByte(regionLevel), toByte(regionType), toByte(networkType),
+                tupleIndex);
+
+        if (recordCount == ids.length) {
+            ids = Arrays.copyOf(ids, recordCount * 2);
+            tuples = Arrays.copyOf(tuples, recordCount * 2);
+        }
+        int record = recordCount++;
+        ids[record] = id;
+        tuples[record] = tuple;
+
+        tree.put(ipNet, record);
+        return record;
+    }
+
+    /**
+     * Returns the index of a tuple, adding it if it was not seen before.
+     *
+     * @param tupleIndex index of known tuples, or null to scan the tuple columns
+     */
+    private int tuple(int ispId, int regionId, byte regionLevel, byte regionType, byte networkType,
+                      Map<Tuple, Integer> tupleIndex) {
+        Tuple key = null;
+        if (tupleIndex != null) {
+            key = new Tuple(ispId, regionId, regionLevel, regionType, networkType);
+            Integer known = tupleIndex.get(key);
+            if (known != null) {
+                return known;
+            }
+        } else {
+            for (int i = 0; i < tupleCount; i++) {
+                if (ispIds[i] == ispId && regionIds[i] == regionId && regionLevels[i] == regionLevel
+                        && regionTypes[i] == regionType && networkTypes[i] == networkType) {
+                    return i;
+                }
+            }
+        }
+
+        if (tupleCount == ispIds.length) {
+            int allocatedSize = tupleCount * 2;
+            ispIds = Arrays.copyOf(ispIds, allocatedSize);
+            regionIds = Arrays.copyOf(regionIds, allocatedSize);
+            regionLevels = Arrays.copyOf(regionLevels, allocatedSize);
+            regionTypes = Arrays.copyOf(regionTypes, allocatedSize);
+            networkTypes = Arrays.copyOf(networkTypes, allocatedSize);
+        }
+        int tuple = tupleCount++;
+        ispIds[tuple] = ispId;
+        regionIds[tuple] = regionId;
+        regionLevels[tuple] = regionLevel;
+        regionTypes[tuple] = regionType;
+        networkTypes[tuple] = networkType;
+        if (tupleIndex != null) {
+            tupleIndex.put(key, tuple);
+        }
+        return tuple;
+    }
+
+    private static byte toByte(int value) {
+        if (value < Byte.MIN_VALUE || value > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("Attribute value " + value + " does not fit in a byte");
+        }
+        return (byte) value;
+    }
+
+    /**
+     * Selects the record of the most specific network holding a given IPv4 address.
+     *
+     * @param key IPv4 address to look up
+     * @return record index, or {@link #NO_RECORD}
+     */
+    public int selectRecord(long key) {
+        return (int) tree.selectValue(key);
+    }
+
+    /**
+     * Selects the record of the most specific network holding a given IPv4 address.
+     *
+     * @param ipStr IPv4 address to look up, in string form (i.e. "a.b.c.d")
+     * @return record index, or {@link #NO_RECORD}
+     * @throws UnknownHostException
+     */
+    public int selectRecord(String ipStr) throws UnknownHostException {
+        return selectRecord(IpConvert.ipv4ToLong(ipStr));
+    }
+
+    /**
+     * Selects the id of the most specific network holding a given IPv4 address, the value a
+     * plain {@link IPv4RadixIntTree} loaded from the same file would return.
+     *
+     * @param key IPv4 address to look up
+     * @return record id, or {@link IPv4RadixIntTree#NO_VALUE}
+     */
+    public long selectValue(long key) {
+        int record = selectRecord(key);
+        return record == NO_RECORD ? IPv4RadixIntTree.NO_VALUE : ids[record];
+    }
+
+    /**
+     * Selects the id of the most specific network holding a given IPv4 address.
+     *
+     * @param ipStr IPv4 address to look up, in string form (i.e. "a.b.c.d")
+     * @return record id, or {@link IPv4RadixIntTree#NO_VALUE}
+     * @throws UnknownHostException
+     */
+    public long selectValue(String ipStr) throws UnknownHostException {
+        return selectValue(IpConvert.ipv4ToLong(ipStr));
+    }
+
+    /**
+     * Returns the record id of a record.
+     *
+     * @param record record index returned by a lookup
+     * @return record id
+     */
+    public long getId(int record) {
+        return ids[record];
+    }
+
+    /**
+     * Returns the isp id of a record.
+     *
+     * @param record record index returned by a lookup
+     * @return isp id
+     */
+    public int getIspId(int record) {
+        return ispIds[tuples[record]];
+    }
+
+    /**
+     * Returns the region id of a record.
+     *
+     * @param record record index returned by a lookup
+     * @return region id
+     */
+    public int getRegionId(int record) {
+        return regionIds[tuples[record]];
+    }
+
+    /**
+     * Returns the region level of a record.
+     *
+     * @param record record index returned by a lookup
+     * @return region level
+     */
+    public int getRegionLevel(int record) {
+        return regionLevels[tuples[record]];
+    }
+
+    /**
+     * Returns the region type of a record.
+     *
+     * @param record record index returned by a lookup
+     * @return region type
+     */
+    public int getRegionType(int record) {
+        return regionTypes[tuples[record]];
+    }
+
+    /**
+     * Returns the network type of a record.
+     *
+     * @param record record index returned by a lookup
+     * @return network type
+     */
+    public int getNetworkType(int record) {
+        return networkTypes[tuples[record]];
+    }
+
+    /**
+     * Returns the number of records put in the tree.
+     *
+     * @return a number of records
+     */
+    public int recordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Returns the number of distinct attribute tuples.
+     *
+     * @return a number of tuples
+     */
+    public int tupleCount() {
+        return tupleCount;
+    }
+
+    /**
+     * Returns a size of tree in number of nodes (not number of prefixes stored).
+     *
+     * @return a number of nodes in current tree
+     */
+    public int size() {
+        return tree.size();
+    }
+
+    /**
+     * Reads a region tree from a local region file, skipping IPv6 networks.
+     *
+     * @param filename name of a local file to read
+     * @return a fully constructed region tree from that file
+     * @throws IOException
+     */
+    public static IPv4RegionTree loadFromLocalFile(String filename) throws IOException {
+        return loadFromReader(new BufferedReader(new FileReader(filename)));
+    }
+
+    /**
+     * Reads a region tree from region file lines, skipping IPv6 networks. The reader is closed.
+     *
+     * @param br region file reader
+     * @return a fully constructed region tree
+     * @throws IOException if a line has less than seven columns
+     */
+    public static IPv4RegionTree loadFromReader(BufferedReader br) throws IOException {
+        IPv4RegionTree tr = new IPv4RegionTree();
+        Map<Tuple, Integer> tupleIndex = new HashMap<Tuple, Integer>();
+        String l;
+        int lineNumber = 0;
+        /*
+         line (cidr,nextId,ispId,regionId,regionlevel,regionType,networkType)
+         112.60.0.0/18	951728549285331151	2	34	3	2	0
+         */
+        try {
+            while ((l = br.readLine()) != null) {
+                lineNumber++;
+                String[] c = l.trim().split(LINE_SPLIT, -1);
+                if (c.length < COLUMN_COUNT) {
+                    throw new IOException("Expected " + COLUMN_COUNT + " columns in line #" + lineNumber);
+                }
+
+                if (IpParser.version(c[0]) == 4) {
+                    tr.put(c[0], Long.parseLong(c[1]), Integer.parseInt(c[2]), Integer.parseInt(c[3]),
+                            Integer.parseInt(c[4]), Integer.parseInt(c[5]), Integer.parseInt(c[6]),
+                            tupleIndex);
+                }
+            }
+        } finally {
+            br.close();
+        }
+        return tr;
+    }
+
+    /**
+     * Attribute tuple used to deduplicate tuples while loading.
+     */
+    private static final class Tuple {
+        private final int ispId;
+        private final int regionId;
+        private final byte regionLevel;
+        private final byte regionType;
+        private final byte networkType;
+
+        Tuple(int ispId, int regionId, byte regionLevel, byte regionType, byte networkType) {
+            this.ispId = ispId;
+            this.regionId = regionId;
+            this.regionLevel = regionLevel;
+            this.regionType = regionType;
+            this.networkType = networkType;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Tuple)) {
+                return false;
+            }
+            Tuple t = (Tuple) o;
+            return ispId == t.ispId && regionId == t.regionId && regionLevel == t.regionLevel
+                    && regionType == t.regionType && networkType == t.networkType;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = ispId;
+            h = 31 * h + regionId;
+            h = 31 * h + regionLevel;
+            h = 31 * h + regionType;
+            return 31 * h + networkType;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import com.openstat.utils.IpConvert;
+
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+
+/**
+ * A read-only succinct (LOUDS) encoding of {@link IPv4RadixIntTree}, for keeping many
+ * versions of large trees in memory.
+ * <p>
+ * Nodes are numbered in breadth-first order and described by two bits, set if the node has
+ * a left or a right child. The child reached through bit {@code p} is node
+ * {@code rank(p + 1)}, so no pointers are stored. A third bit per node tells whether the
+ * node carries a value, and values are stored only for those nodes, indexed by the rank of
+ * that bit. A node costs about 3.4 bits including the rank directories instead of 16 bytes;
+ * lookups trade that for a rank computation per level.
+ * <p>
+ * Lookups return the same values as the source tree, including
+ * {@link IPv4RadixIntTree#NO_VALUE} for unmatched addresses. Later changes to the source
+ * tree are not reflected; build a new instance instead.
+ */
+public class IPv4SuccinctTree implements IPv4Lookup {
+    // 10000000000000000000000000000000 --> 32 bit
+    private static final long START_IPV4_BIT = 0x80000000L;
+
+    private final RankBitVector children;
+    private final RankBitVector valued;
+    private final long[] values;
+
+    /**
+     * Builds a succinct copy of a given tree.
+     *
+     * @param tree source tree
+     */
+    public IPv4SuccinctTree(IPv4RadixIntTree tree) {
+        int capacity = tree.size();
+        children = new RankBitVector(capacity * 2);
+        valued = new RankBitVector(capacity);
+        long[] v = new long[capacity];
+        int count = 0;
+
+        int[] order = new int[capacity];
+        int tail = 0;
+        order[tail++] = IPv4RadixIntTree.ROOT_PTR;
+        for (int i = 0; i < tail; i++) {
+            int node = order[i];
+            int left = tree.leftOf(node);
+            int right = tree.rightOf(node);
+            children.add(left != IPv4RadixIntTree.NULL_PTR);
+            children.add(right != IPv4RadixIntTree.NULL_PTR);
+            if (left != IPv4RadixIntTree.NULL_PTR) {
+                order[tail++] = left;
+            }
+            if (right != IPv4RadixIntTree.NULL_PTR) {
+                order[tail++] = right;
+            }
+
+            long value = tree.valueOf(node);
+            valued.add(value != IPv4RadixIntTree.NO_VALUE);
+            if (value != IPv4RadixIntTree.NO_VALUE) {
+                v[count++] = value;
+            }
+        }
+        children.seal();
+        valued.seal();
+        values = Arrays.copyOf(v, count);
+    }
+
+    /**
+     * Selects a value for a given IPv4 address, traversing tree and choosing
+     * most specific value available for a given address.
+     *
+     * @param key IPv4 address to look up
+     * @return value at most specific IPv4 network in a tree for a given IPv4
+     * address
+     */
+    public long selectValue(long key) {
+        long bit = START_IPV4_BIT;
+        int best = -1;
+        int node = 0;
+
+        while (true) {
+            if (valued.get(node)) {
+                best = node;
+            }
+            int pos = 2 * node + ((key & bit) != 0 ? 1 : 0);
+            if (bit == 0 || !children.get(pos)) {
+                break;
+            }
+            node = children.rank(pos + 1);
+            bit >>= 1;
+        }
+
+        return best < 0 ? IPv4RadixIntTree.NO_VALUE : values[valued.rank(best)];
+    }
+
+    /**
+     * Selects a value for a given IPv4 address, traversing tree and choosing
+     * most specific value available for a given address.
+     *
+     * @param ipStr IPv4 address to look up, in string form (i.e. "a.b.c.d")
+     * @return value at most specific IPv4 network in a tree for a given IPv4
+     * address
+     * @throws UnknownHostException
+     */
+    public long selectValue(String ipStr) throws UnknownHostException {
+        return selectValue(IpConvert.ipv4ToLong(ipStr));
+    }
+
+    /**
+     * Returns a size of tree in number of nodes (not number of prefixes stored).
+     *
+     * @return a number of nodes in current tree
+     */
+    public int size() {
+        return valued.length();
+    }
+
+    /**
+     * Returns the memory held by the encoded tree, values included.
+     *
+     * @return a size in bytes
+     */
+    public long sizeInBytes() {
+        return children.sizeInBytes() + valued.sizeInBytes() + values.length * 8L;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import com.openstat.utils.IPv6Address;
+
+import java.math.BigInteger;
+
+
+/**
+ * Mutable result of a longest-prefix match in an {@link IPv6RadixBigIntegerTree}, filled by
+ * {@link IPv6RadixBigIntegerTree#selectEntry(BigInteger, IPv6Entry)}. One instance can be
+ * reused for any number of lookups, see {@link IPv4Entry}.
+ */
+public final class IPv6Entry {
+    /**
+     * Matched IPv6 network prefix, :: if no network matched.
+     */
+    public final IPv6Address network = new IPv6Address();
+
+    /**
+     * Length of the matched prefix in CIDR notation, -1 if no network matched.
+     */
+    public int prefixLength;
+
+    /**
+     * Value of the matched network, {@link IPv6RadixBigIntegerTree#NO_VALUE} if no network
+     * matched.
+     */
+    public BigInteger value;
+
+    /**
+     * Number of tree nodes visited by the lookup.
+     */
+    public int depth;
+
+    /**
+     * Tells whether the lookup matched a network.
+     *
+     * @return true if a network matched
+     */
+    public boolean found() {
+        return prefixLength >= 0;
+    }
+
+    @Override
+    public String toString() {
+        if (!found()) {
+            return "no match, depth " + depth;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            long half = i < 4 ? network.hi : network.lo;
+            if (i > 0) {
+                sb.append(':');
+            }
+            sb.append(Long.toHexString((half >>> (48 - 16 * (i & 3))) & 0xffff));
+        }
+        return sb + "/" + prefixLength + " => " + value + ", depth " + depth;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import com.openstat.utils.IPv6Address;
+import com.openstat.utils.IpParser;
+
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Fixed-size cache of recent lookups in front of an {@link IPv6RadixBigIntegerTree}, keyed
+ * by the two 64-bit halves of an address. It works as {@link IPv4LookupCache}: 2-way
+ * set-associative, slots in parallel arrays guarded by a seqlock stamp per set, and
+ * invalidation by the tree modification count.
+ * <p>
+ * A hit through {@link #selectValue(long, long)} allocates nothing, which also saves the
+ * BigInteger arithmetic of a tree walk. Caching a miss allocates nothing either, the tree
+ * walk itself still does.
+ */
+public class IPv6LookupCache {
+    // Slots per set
+    private static final int WAYS = 2;
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    // Fibonacci hashing multiplier
+    private static final long HASH_MULTIPLIER = 0x9e3779b97f4a7c15L;
+
+    // Tag bit of a filled slot, the low 32 bits hold the tree modification count
+    private static final long VALID = 1L << 32;
+
+    private final IPv6RadixBigIntegerTree tree;
+    private final AtomicIntegerArray stamps;
+    private final AtomicLongArray his;
+    private final AtomicLongArray los;
+    private final AtomicReferenceArray<BigInteger> values;
+    private final AtomicLongArray tags;
+    private final int setMask;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Initializes a cache in front of a tree.
+     *
+     * @param tree     tree to look up on a miss
+     * @param capacity number of cached addresses, rounded up to a power of two
+     */
+    public IPv6LookupCache(IPv6RadixBigIntegerTree tree, int capacity) {
+        if (capacity < WAYS || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Capacity " + capacity + " is out of range " + WAYS + ".." + MAX_CAPACITY);
+        }
+        int slots = Integer.highestOneBit(capacity - 1) << 1;
+        this.tree = tree;
+        this.stamps = new AtomicIntegerArray(slots / WAYS);
+        this.his = new AtomicLongArray(slots);
+        this.los = new AtomicLongArray(slots);
+        this.values = new AtomicReferenceArray<BigInteger>(slots);
+        this.tags = new AtomicLongArray(slots);
+        this.setMask = slots / WAYS - 1;
+    }
+
+    /**
+     * Selects a value for a given IPv6 address, from the cache if it is there.
+     *
+     * @param hi upper 64 bits of the IPv6 address to look up
+     * @param lo lower 64 bits of the IPv6 address to look up
+     * @return value at most specific IPv6 network for a given IPv6 address
+     */
+    public BigInteger selectValue(long hi, long lo) {
+        long tag = VALID | (tree.modCount() & 0xffffffffL);
+        int set = set(hi, lo);
+        int slot = set * WAYS;
+
+        int stamp = stamps.get(set);
+        if ((stamp & 1) == 0) {
+            if (his.get(slot) == hi && los.get(slot) == lo && tags.get(slot) == tag) {
+                BigInteger value = values.get(slot);
+                if (stamps.get(set) == stamp) {
+                    hits.increment();
+                    return value;
+                }
+            } else if (his.get(slot + 1) == hi && los.get(slot + 1) == lo && tags.get(slot + 1) == tag) {
+                BigInteger value = values.get(slot + 1);
+                if (stamps.get(set) == stamp) {
+                    hits.increment();
+                    if (stamps.compareAndSet(set, stamp, stamp + 1)) {
+                        move(slot + 1, his.get(slot), los.get(slot), values.get(slot), tags.get(slot));
+                        move(slot, hi, lo, value, tag);
+                        stamps.lazySet(set, stamp + 2);
+                    }
+                    return value;
+                }
+            }
+        }
+
+        misses.increment();
+        IPv6Address address = new IPv6Address();
+        address.hi = hi;
+        address.lo = lo;
+        BigInteger value = tree.selectValue(address.toBigInteger());
+        if ((stamp & 1) == 0 && stamps.compareAndSet(set, stamp, stamp + 1)) {
+            if (his.get(slot) != hi || los.get(slot) != lo) {
+                move(slot + 1, his.get(slot), los.get(slot), values.get(slot), tags.get(slot));
+            }
+            move(slot, hi, lo, value, tag);
+            stamps.lazySet(set, stamp + 2);
+        }
+        return value;
+    }
+
+    // Called with the set stamp odd, see IPv4LookupCache
+    private void move(int slot, long hi, long lo, BigInteger value, long tag) {
+        his.lazySet(slot, hi);
+        los.lazySet(slot, lo);
+        values.lazySet(slot, value);
+        tags.lazySet(slot, tag);
+    }
+
+    /**
+     * Selects a value for a given IPv6 address, from the cache if it is there.
+     *
+     * @param key IPv6 address to look up
+     * @return value at most specific IPv6 network for a given IPv6 address
+     */
+    public BigInteger selectValue(BigInteger key) {
+        return selectValue(key.shiftRight(Long.SIZE).longValue(), key.longValue());
+    }
+
+    /**
+     * Selects a value for a given IPv6 address, from the cache if it is there.
+     *
+     * @param ipStr IPv6 address to look up, in string form
+     * @return value at most specific IPv6 network for a given IPv6 address
+     * @throws NumberFormatException if ipStr is not an IPv6 address
+     */
+    public BigInteger selectValue(String ipStr) {
+        IPv6Address address = new IPv6Address();
+        if (!IpParser.parseIpv6(ipStr, address)) {
+            throw new NumberFormatException("Invalid IPv6 address: " + ipStr);
+        }
+        return selectValue(address.hi, address.lo);
+    }
+
+    private int set(long hi, long lo) {
+        return (int) (((hi * HASH_MULTIPLIER + lo) * HASH_MULTIPLIER) >>> Integer.SIZE) & setMask;
+    }
+
+    /**
+     * Drops every cached entry, counters are kept.
+     */
+    public void clear() {
+        for (int i = 0; i < tags.length(); i++) {
+            tags.set(i, 0);
+        }
+    }
+
+    /**
+     * Returns the number of lookups answered from the cache.
+     *
+     * @return a number of hits
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of lookups that went to the tree.
+     *
+     * @return a number of misses
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of cached addresses.
+     *
+     * @return capacity
+     */
+    public int capacity() {
+        return tags.length();
+    }
+}
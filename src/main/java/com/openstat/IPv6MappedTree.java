@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import com.openstat.utils.IpConvert;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * A read-only IPv6 radix tree backed by a memory-mapped image file written by
+ * {@link IPv6RadixBigIntegerTree#save(String)}.
+ * <p>
+ * Node arrays are read in place through {@link IntBuffer} views of the mapping, nothing is
+ * copied to the heap. Opening is instant whatever the tree size, and all processes mapping
+ * the same file share a single copy in the page cache. Address bits are tested with
+ * {@link BigInteger#testBit(int)} and only the matched value is materialized, so a lookup
+ * allocates a single BigInteger.
+ * <p>
+ * Images are limited to 2 gigabytes.
+ */
+public class IPv6MappedTree {
+    private static final int NULL_PTR = IPv6RadixBigIntegerTree.NULL_PTR;
+    private static final int ROOT_PTR = IPv6RadixBigIntegerTree.ROOT_PTR;
+
+    // cidr max
+    private static final int CIDR_MAX_LENGTH = 128;
+
+    // Bytes per node in the image: left, right, value end, plus the value bytes
+    private static final int NODE_LENGTH = 4 + 4 + 4;
+
+    private final IntBuffer lefts;
+    private final IntBuffer rights;
+    private final IntBuffer ends;
+    private final ByteBuffer blob;
+    private final int size;
+
+    private IPv6MappedTree(ByteBuffer image, int size, int total) {
+        this.size = size;
+        lefts = TreeImage.slice(image, TreeImage.HEADER_LENGTH, size * 4).asIntBuffer();
+        rights = TreeImage.slice(image, TreeImage.HEADER_LENGTH + size * 4, size * 4).asIntBuffer();
+        ends = TreeImage.slice(image, TreeImage.HEADER_LENGTH + size * 8, size * 4).asIntBuffer();
+        blob = TreeImage.slice(image, TreeImage.HEADER_LENGTH + size * NODE_LENGTH + 4, total);
+    }
+
+    /**
+     * Maps a local image file without verifying its checksum.
+     *
+     * @param filename name of a local image file
+     * @return a tree reading that file
+     * @throws IOException if the file is not an IPv6 tree image
+     */
+    public static IPv6MappedTree open(String filename) throws IOException {
+        return open(filename, false);
+    }
+
+    /**
+     * Maps a local image file.
+     *
+     * @param filename name of a local image file
+     * @param verify   whether to verify the image checksum and child pointers, which reads
+     *                 the whole file once
+     * @return a tree reading that file
+     * @throws IOException if the file is not a valid IPv6 tree image
+     */
+    public static IPv6MappedTree open(String filename, boolean verify) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            ByteBuffer image = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int size = TreeImage.checkMapped(image, TreeImage.KIND_IPV6, NODE_LENGTH, verify);
+            long totalOffset = TreeImage.HEADER_LENGTH + (long) size * NODE_LENGTH;
+            if (image.limit() < totalOffset + 4 + TreeImage.CHECKSUM_LENGTH) {
+                throw new IOException("Truncated tree image");
+            }
+            int total = image.getInt((int) totalOffset);
+            long expected = totalOffset + 4 + total + TreeImage.CHECKSUM_LENGTH;
+            if (total < 0 || image.limit() != expected) {
+                throw new IOException("Tree image of " + size + " nodes should be " + expected + " bytes long");
+            }
+            IPv6MappedTree tree = new IPv6MappedTree(image, size, total);
+            if (verify) {
+                TreeImage.checkLinks(tree.lefts, tree.rights, size);
+            }
+            return tree;
+        }
+    }
+
+    /**
+     * Selects a value for a given IPv6 address, traversing tree and choosing
+     * most specific value available for a given address.
+     *
+     * @param key IPv6 address to look up
+     * @return value at most specific IPv6 network in a tree for a given IPv6
+     * address
+     */
+    public BigInteger selectValue(BigInteger key) {
+        int bit = CIDR_MAX_LENGTH - 1;
+        int best = NULL_PTR;
+        int bestStart = 0;
+        int node = ROOT_PTR;
+
+        while (node != NULL_PTR) {
+            int start = node == 0 ? 0 : ends.get(node - 1);
+            if (ends.get(node) != start) {
+                best = node;
+                bestStart = start;
+            }
+            node = bit >= 0 && key.testBit(bit) ? rights.get(node) : lefts.get(node);
+            bit--;
+        }
+
+        if (best == NULL_PTR) {
+            return IPv6RadixBigIntegerTree.NO_VALUE;
+        }
+        byte[] bytes = new byte[ends.get(best) - bestStart];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = blob.get(bestStart + i);
+        }
+        return new BigInteger(bytes);
+    }
+
+    /**
+     * Selects a value for a given IPv6 address, traversing tree and choosing
+     * most specific value available for a given address.
+     *
+     * @param ipStr IPv6 address to look up, in string form
+     * @return value at most specific IPv6 network in a tree for a given IPv6
+     * address
+     */
+    public BigInteger selectValue(String ipStr) {
+        return selectValue(IpConvert.stringToBigInt(ipStr));
+    }
+
+    /**
+     * Returns a size of tree in number of nodes (not number of prefixes stored).
+     *
+     * @return a number of nodes in current tree
+     */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import com.openstat.utils.IpConvert;
+
+import java.math.BigInteger;
+
+
+/**
+ * {@link IPv6RadixBigIntegerTree} wrapper that records lookups and puts into
+ * {@link LookupMetrics}, see {@link IPv4MeteredTree}.
+ */
+public class IPv6MeteredTree {
+    private final IPv6RadixBigIntegerTree tree;
+    private final LookupMetrics metrics;
+
+    /**
+     * Initializes a wrapper that times one operation in {@code sampleRate}.
+     *
+     * @param tree       tree to look up and put into
+     * @param sampleRate time one operation in that many, 1 to time all of them
+     */
+    public IPv6MeteredTree(IPv6RadixBigIntegerTree tree, int sampleRate) {
+        this.tree = tree;
+        this.metrics = new LookupMetrics(128, sampleRate);
+    }
+
+    /**
+     * Selects a value for a given IPv6 address and records the lookup.
+     *
+     * @param key IPv6 address to look up
+     * @return value at most specific IPv6 network in a tree for a given IPv6
+     * address
+     */
+    public BigInteger selectValue(BigInteger key) {
+        if (!metrics.sample()) {
+            return tree.selectValue(key, metrics);
+        }
+        long start = System.nanoTime();
+        BigInteger value = tree.selectValue(key, metrics);
+        metrics.recordLookupLatency(System.nanoTime() - start);
+        return value;
+    }
+
+    /**
+     * Selects a value for a given IPv6 address and records the lookup.
+     *
+     * @param ipStr IPv6 address to look up, in string form
+     * @return value at most specific IPv6 network in a tree for a given IPv6
+     * address
+     * @throws Exception
+     */
+    public BigInteger selectValue(String ipStr) throws Exception {
+        return selectValue(IpConvert.stringToBigInt(ipStr));
+    }
+
+    /**
+     * Puts a key-value pair in the tree and records the put.
+     *
+     * @param key   IPv6 network prefix
+     * @param mask  IPv6 netmask
+     * @param value an arbitrary value that would be stored under a given key
+     */
+    public void put(BigInteger key, BigInteger mask, BigInteger value) {
+        metrics.recordPut();
+        if (!metrics.sample()) {
+            tree.put(key, mask, value);
+            return;
+        }
+        long start = System.nanoTime();
+        tree.put(key, mask, value);
+        metrics.recordPutLatency(System.nanoTime() - start);
+    }
+
+    /**
+     * Puts a key-value pair in the tree and records the put.
+     *
+     * @param ipNet IPv6 network as a string in form of "a:b:c:d:e:f:g:h/i"
+     * @param value an arbitrary value that would be stored under a given key
+     * @throws Exception
+     */
+    public void put(String ipNet, BigInteger value) throws Exception {
+        metrics.recordPut();
+        if (!metrics.sample()) {
+            tree.put(ipNet, value);
+            return;
+        }
+        long start = System.nanoTime();
+        tree.put(ipNet, value);
+        metrics.recordPutLatency(System.nanoTime() - start);
+    }
+
+    /**
+     * Returns the wrapped tree, lookups made on it directly are not recorded.
+     *
+     * @return the tree
+     */
+    public IPv6RadixBigIntegerTree tree() {
+        return tree;
+    }
+
+    /**
+     * Returns the live metrics of this wrapper.
+     *
+     * @return the metrics
+     */
+    public LookupMetrics metrics() {
+        return metrics;
+    }
+}
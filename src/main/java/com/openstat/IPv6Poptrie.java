@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import com.openstat.utils.IpConvert;
+
+import java.math.BigInteger;
+
+
+/**
+ * A read-only multibit-stride trie (Poptrie) compiled from {@link IPv6RadixBigIntegerTree}.
+ * <p>
+ * Each level consumes 6 bits of the address, so a lookup visits at most 22 nodes instead
+ * of up to 129, and uses primitive bit operations on the two 64-bit halves of the address
+ * instead of BigInteger arithmetic. The 128-bit address is padded with zero bits to 132 bits.
+ * <p>
+ * Lookups return the same values as the source tree, including
+ * {@link IPv6RadixBigIntegerTree#NO_VALUE} for unmatched addresses. Later changes to the
+ * source tree are not reflected; build a new instance instead.
+ */
+public class IPv6Poptrie {
+    private static final int HALF_BITS = 64;
+    private static final int CHUNK_MASK = (1 << Poptrie.STRIDE) - 1;
+
+    private final Poptrie trie;
+    private final BigInteger[] leafValues;
+
+    /**
+     * Builds a Poptrie from a given tree.
+     *
+     * @param tree source tree
+     */
+    public IPv6Poptrie(final IPv6RadixBigIntegerTree tree) {
+        trie = new Poptrie(new Poptrie.Source() {
+            int left(int node) {
+                return tree.leftOf(node);
+            }
+
+            int right(int node) {
+                return tree.rightOf(node);
+            }
+
+            boolean hasValue(int node) {
+                BigInteger value = tree.valueOf(node);
+                return value != null && value.compareTo(IPv6RadixBigIntegerTree.NO_VALUE) != 0;
+            }
+        }, IPv6RadixBigIntegerTree.ROOT_PTR);
+
+        leafValues = new BigInteger[trie.leafCount()];
+        for (int i = 0; i < leafValues.length; i++) {
+            int node = trie.leaves[i];
+            leafValues[i] = node == Poptrie.NULL_PTR ? IPv6RadixBigIntegerTree.NO_VALUE : tree.valueOf(node);
+        }
+        // Source node indexes are not needed once values are resolved
+        trie.leaves = null;
+    }
+
+    /**
+     * Extracts the 6-bit chunk starting at a given bit offset of a 128-bit address,
+     * padding with zero bits past the end of the address.
+     *
+     * @param hi     upper 64 bits of the address
+     * @param lo     lower 64 bits of the address
+     * @param offset bit offset from the most significant bit, a multiple of the stride
+     * @return chunk value
+     */
+    private static int chunk(long hi, long lo, int offset) {
+        int end = offset + Poptrie.STRIDE;
+        if (end <= HALF_BITS) {
+            return (int) (hi >>> (HALF_BITS - end)) & CHUNK_MASK;
+        }
+        if (offset >= HALF_BITS) {
+            end -= HALF_BITS;
+            if (end <= HALF_BITS) {
+                return (int) (lo >>> (HALF_BITS - end)) & CHUNK_MASK;
+            }
+            return (int) (lo << (end - HALF_BITS)) & CHUNK_MASK;
+        }
+        return (int) ((hi << (end - HALF_BITS)) | (lo >>> (2 * HALF_BITS - end))) & CHUNK_MASK;
+    }
+
+    /**
+     * Selects a value for a given IPv6 address given as two 64-bit halves, choosing most
+     * specific value available for a given address.
+     *
+     * @param hi upper 64 bits of the IPv6 address
+     * @param lo lower 64 bits of the IPv6 address
+     * @return value at most specific IPv6 network for a given IPv6 address
+     */
+    public BigInteger selectValue(long hi, long lo) {
+        int offset = 0;
+        int chunk = chunk(hi, lo, offset);
+        int index = 0;
+        int child;
+
+        while ((child = trie.child(index, chunk)) >= 0) {
+            index = child;
+            offset += Poptrie.STRIDE;
+            chunk = chunk(hi, lo, offset);
+        }
+
+        return leafValues[trie.leaf(index, chunk)];
+    }
+
+    /**
+     * Selects a value for a given IPv6 address, choosing most specific value available
+     * for a given address.
+     *
+     * @param key IPv6 address to look up
+     * @return value at most specific IPv6 network for a given IPv6 address
+     */
+    public BigInteger selectValue(BigInteger key) {
+        return selectValue(key.shiftRight(HALF_BITS).longValue(), key.longValue());
+    }
+
+    /**
+     * Selects a value for a given IPv6 address, choosing most specific value available
+     * for a given address.
+     *
+     * @param ipStr IPv6 address to look up, in string form
+     * @return value at most specific IPv6 network for a given IPv6 address
+     */
+    public BigInteger selectValue(String ipStr) {
+        return selectValue(IpConvert.stringToBigInt(ipStr));
+    }
+
+    /**
+     * Returns a size of the trie in number of internal nodes.
+     *
+     * @return a number of nodes
+     */
+    public int size() {
+        return trie.size();
+    }
+}
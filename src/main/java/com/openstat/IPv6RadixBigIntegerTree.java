@@ -1,7 +1,8 @@
 package com.openstat;
 
+import com.openstat.utils.IPv6Address;
 import com.openstat.utils.IpConvert;
-import com.openstat.utils.RegexIpAddress;
+import com.openstat.utils.IpParser;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -9,20 +10,30 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 
 import java.math.BigInteger;
 import java.net.UnknownHostException;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 
 /**
  * A minimalistic, memory size-savvy and fairly fast radix tree (AKA Patricia trie)
  * implementation that uses IPv6 addresses with netmasks as keys and 128-bit BigInteger as values.
  * <p>
- * This tree is generally uses in read-only manner: there are no key removal operation
- * and the whole thing works best in pre-allocated fashion.
+ * This tree is generally uses in read-only manner and the whole thing works best in
+ * pre-allocated fashion. Removed nodes are reused by later puts; {@link #compact()}
+ * gives their memory back after heavy churn.
  *
  * <p>
  * Result of Test: test ok
@@ -35,8 +46,8 @@ public class IPv6RadixBigIntegerTree {
      * One can't use store value in a tree.
      */
     public static final BigInteger NO_VALUE = new BigInteger("-1");
-    private static final int NULL_PTR = -1;
-    private static final int ROOT_PTR = 0;
+    static final int NULL_PTR = -1;
+    static final int ROOT_PTR = 0;
 
     // Ipv6 start value
     // 10000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000
@@ -49,15 +60,32 @@ public class IPv6RadixBigIntegerTree {
     // zero value
     private static final BigInteger ZERO_VALUE=BigInteger.ZERO;
 
+    // Number of keys walked in lock-step by selectValues
+    private static final int BATCH_WIDTH = 4;
+
     // Split char
     private static final String LINE_SPLIT = "\\s+";
 
     // Nginx Length
     private static final int NGINX_LENGTH = 16;
 
+    // Delta file operations
+    private static final String DELTA_ADD = "add";
+    private static final String DELTA_CHANGE = "change";
+    private static final String DELTA_DELETE = "delete";
+    private static final char DELTA_COMMENT = '#';
+
     // cidr max
     private static final int CIDR_MAX_LENGTH = 128;
 
+    // Region file bytes per tree node, used to size a tree from the file length
+    private static final int BYTES_PER_NODE = 8;
+    private static final int MIN_ESTIMATED_SIZE = 1024;
+    private static final int MAX_ESTIMATED_SIZE = 1 << 26;
+
+    // Binary image bytes per tree node: left, right, value end, plus the value bytes
+    private static final int IMAGE_NODE_LENGTH = 4 + 4 + 4;
+
     // your hadoop dir
     private static final  String HADOOP_DIR="/opt/soft/hadoop-2.6.0";
 
@@ -67,6 +95,13 @@ public class IPv6RadixBigIntegerTree {
     private int allocatedSize;
     private int size;
 
+    // Removed nodes, chained through lefts, reused by put
+    private int freeHead;
+    private int freeCount;
+
+    // Bumped by every change to the stored values, checked by lookup caches
+    private int modCount;
+
     private static FileSystem fs = null;
     static {
         try {
@@ -94,35 +129,16 @@ public class IPv6RadixBigIntegerTree {
     }
 
     /**
-     * The total number of count local  text file  lines.
-     *
-     * @param filename file name
-     * @return The number of line .
-     * @throws IOException
-     */
-    private static int countLinesInLocalFile(String filename) throws IOException {
-        BufferedReader br = new BufferedReader(new FileReader(filename), 8192);
-        int i = 0;
-        while (br.readLine() != null) {
-            i++;
-        }
-        return i;
-    }
-
-    /**
-     * The total number of count hadoop distribute file system    text file  lines.
+     * Guesses the capacity needed for a region file from its length, so that the file is
+     * read once. IPv6 prefixes share fewer upper bits than IPv4 ones and add more nodes
+     * per line.
      *
-     * @param filename file name
-     * @return The number of line .
-     * @throws IOException
+     * @param length file length in bytes
+     * @return initial capacity to allocate
      */
-    private static int countLinesInHdfds(String filename) throws IOException {
-        BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(new Path(filename)), "utf-8"));
-        int j = 0;
-        while (br.readLine() != null) {
-            j++;
-        }
-        return j;
+    static int estimateSize(long length) {
+        long estimate = length / BYTES_PER_NODE + 1;
+        return (int) Math.max(MIN_ESTIMATED_SIZE, Math.min(estimate, MAX_ESTIMATED_SIZE));
     }
 
     /**
@@ -137,6 +153,8 @@ public class IPv6RadixBigIntegerTree {
         values = new BigInteger[this.allocatedSize];
 
         size = 1;
+        freeHead = NULL_PTR;
+        freeCount = 0;
         lefts[0] = NULL_PTR;
         rights[0] = NULL_PTR;
         values[0] = NO_VALUE;
@@ -150,6 +168,7 @@ public class IPv6RadixBigIntegerTree {
      * @param value An arbitrary value that would be stored under a given key
      */
     public void put(BigInteger key, BigInteger mask, BigInteger value) {
+        modCount++;
         BigInteger bit = IPV6_START_VALUE;
         int node = ROOT_PTR;
         int next = ROOT_PTR;
@@ -168,13 +187,7 @@ public class IPv6RadixBigIntegerTree {
         }
 
         while ((bit.and(mask)).compareTo(ZERO_VALUE)!=0) {
-            if (size == allocatedSize) {
-                expandAllocatedSize();
-            }
-            next = size;
-            values[next] = NO_VALUE;
-            rights[next] = NULL_PTR;
-            lefts[next] = NULL_PTR;
+            next = allocate();
 
             if ((key.and(bit)).compareTo(ZERO_VALUE)!=0) {
                 rights[node] = next;
@@ -184,12 +197,47 @@ public class IPv6RadixBigIntegerTree {
 
             bit=bit.shiftRight(1);
             node = next;
-            size++;
         }
 
         values[node] = value;
     }
 
+    /**
+     * Takes an empty node, reusing a removed one if there is any.
+     *
+     * @return node index
+     */
+    private int allocate() {
+        int next;
+        if (freeHead != NULL_PTR) {
+            next = freeHead;
+            freeHead = lefts[next];
+            freeCount--;
+        } else {
+            if (size == allocatedSize) {
+                expandAllocatedSize();
+            }
+            next = size++;
+        }
+        values[next] = NO_VALUE;
+        rights[next] = NULL_PTR;
+        lefts[next] = NULL_PTR;
+        return next;
+    }
+
+    /**
+     * Returns a detached node to the free list.
+     *
+     * @param node node index
+     */
+    private void release(int node) {
+        values[node] = NO_VALUE;
+        rights[node] = NULL_PTR;
+        lefts[node] = freeHead;
+        freeHead = node;
+        freeCount++;
+    }
+
     /**
      * Expand Allocated Size
      */
@@ -219,7 +267,6 @@ public class IPv6RadixBigIntegerTree {
      * address
      */
     public BigInteger selectValue(BigInteger key) {
-        logger.debug("Input the ip of select is {} .",key);
         BigInteger bit = IPV6_START_VALUE;
         BigInteger value = NO_VALUE;
         int node = ROOT_PTR;
@@ -227,18 +274,197 @@ public class IPv6RadixBigIntegerTree {
         while (node != NULL_PTR && values[node]!=null) {
             if (values[node].compareTo(NO_VALUE)!=0 ) {
                 value = values[node];
-                logger.debug("The value of the query is:{} .",value);
             }
 
-            logger.debug("key.and(bit)  is {}. ",key.and(bit));
             node = (key.and(bit)).compareTo(ZERO_VALUE)!=0  ? rights[node] : lefts[node];
             bit=bit.shiftRight(1);
-            logger.debug("bit is {}",bit);
         }
 
         return value;
     }
 
+    /**
+     * Selects a value for a given IPv6 address like {@link #selectValue(BigInteger)}, and
+     * also fills the matched network, its prefix length and the number of nodes visited into
+     * a reusable entry. The walk tests key bits in place instead of masking them out, so it
+     * allocates nothing.
+     *
+     * @param key   IPv6 address to look up
+     * @param entry entry to fill
+     * @return value at most specific IPv6 network in a tree for a given IPv6
+     * address
+     */
+    public BigInteger selectEntry(BigInteger key, IPv6Entry entry) {
+        BigInteger value = NO_VALUE;
+        int node = ROOT_PTR;
+        int depth = 0;
+        int prefixLength = -1;
+        // Key bits walked so far, and the ones of the matched network
+        long pathHi = 0;
+        long pathLo = 0;
+        long networkHi = 0;
+        long networkLo = 0;
+
+        while (node != NULL_PTR && values[node]!=null) {
+            if (values[node].compareTo(NO_VALUE)!=0 ) {
+                value = values[node];
+                prefixLength = depth;
+                networkHi = pathHi;
+                networkLo = pathLo;
+            }
+
+            if (depth < 128 && key.testBit(127 - depth)) {
+                if (depth < 64) {
+                    pathHi |= 1L << (63 - depth);
+                } else {
+                    pathLo |= 1L << (127 - depth);
+                }
+                node = rights[node];
+            } else {
+                node = lefts[node];
+            }
+            depth++;
+        }
+
+        entry.network.hi = networkHi;
+        entry.network.lo = networkLo;
+        entry.prefixLength = prefixLength;
+        entry.value = value;
+        entry.depth = depth;
+        return value;
+    }
+
+    /**
+     * Same walk as {@link #selectValue(BigInteger)} that also records the traversal into
+     * metrics, used by {@link IPv6MeteredTree} so that the plain walk stays free of
+     * instrumentation.
+     *
+     * @param key     IPv6 address to look up
+     * @param metrics metrics to record the lookup into
+     * @return value at most specific IPv6 network in a tree for a given IPv6
+     * address
+     */
+    BigInteger selectValue(BigInteger key, LookupMetrics metrics) {
+        BigInteger bit = IPV6_START_VALUE;
+        BigInteger value = NO_VALUE;
+        int node = ROOT_PTR;
+        int depth = 0;
+        int prefixLength = -1;
+
+        while (node != NULL_PTR && values[node]!=null) {
+            if (values[node].compareTo(NO_VALUE)!=0 ) {
+                value = values[node];
+                prefixLength = depth;
+            }
+
+            node = (key.and(bit)).compareTo(ZERO_VALUE)!=0  ? rights[node] : lefts[node];
+            bit=bit.shiftRight(1);
+            depth++;
+        }
+
+        metrics.recordLookup(depth, prefixLength);
+        return value;
+    }
+
+    /**
+     * Selects values for a batch of IPv6 addresses, as if by calling
+     * {@link #selectValue(BigInteger)} for every key.
+     *
+     * @param keys IPv6 addresses to look up
+     * @param out  array receiving the value of each key at the same index, at least as long as keys
+     */
+    public void selectValues(BigInteger[] keys, BigInteger[] out) {
+        selectValues(keys, 0, keys.length, out);
+    }
+
+    /**
+     * Selects values for a range of a batch of IPv6 addresses, as if by calling
+     * {@link #selectValue(BigInteger)} for every key.
+     * <p>
+     * Keys are walked down the tree in groups of four in lock-step, so the node reads of
+     * different keys are independent and their cache misses overlap. Bits are tested with
+     * {@link BigInteger#testBit(int)}, so nothing is allocated.
+     *
+     * @param keys   IPv6 addresses to look up
+     * @param offset index of the first key
+     * @param length number of keys
+     * @param out    array receiving the value of each key at the same index
+     */
+    public void selectValues(BigInteger[] keys, int offset, int length, BigInteger[] out) {
+        int i = offset;
+        int end = offset + length;
+
+        for (; i + BATCH_WIDTH <= end; i += BATCH_WIDTH) {
+            BigInteger k0 = keys[i];
+            BigInteger k1 = keys[i + 1];
+            BigInteger k2 = keys[i + 2];
+            BigInteger k3 = keys[i + 3];
+            BigInteger v0 = NO_VALUE;
+            BigInteger v1 = NO_VALUE;
+            BigInteger v2 = NO_VALUE;
+            BigInteger v3 = NO_VALUE;
+            int n0 = ROOT_PTR;
+            int n1 = ROOT_PTR;
+            int n2 = ROOT_PTR;
+            int n3 = ROOT_PTR;
+            int bit = CIDR_MAX_LENGTH - 1;
+
+            // Node indexes are non-negative, so the AND is NULL_PTR only once every lane is done
+            while ((n0 & n1 & n2 & n3) != NULL_PTR) {
+                if (n0 != NULL_PTR) {
+                    if (values[n0] == null) {
+                        n0 = NULL_PTR;
+                    } else {
+                        if (values[n0].compareTo(NO_VALUE) != 0) {
+                            v0 = values[n0];
+                        }
+                        n0 = bit >= 0 && k0.testBit(bit) ? rights[n0] : lefts[n0];
+                    }
+                }
+                if (n1 != NULL_PTR) {
+                    if (values[n1] == null) {
+                        n1 = NULL_PTR;
+                    } else {
+                        if (values[n1].compareTo(NO_VALUE) != 0) {
+                            v1 = values[n1];
+                        }
+                        n1 = bit >= 0 && k1.testBit(bit) ? rights[n1] : lefts[n1];
+                    }
+                }
+                if (n2 != NULL_PTR) {
+                    if (values[n2] == null) {
+                        n2 = NULL_PTR;
+                    } else {
+                        if (values[n2].compareTo(NO_VALUE) != 0) {
+                            v2 = values[n2];
+                        }
+                        n2 = bit >= 0 && k2.testBit(bit) ? rights[n2] : lefts[n2];
+                    }
+                }
+                if (n3 != NULL_PTR) {
+                    if (values[n3] == null) {
+                        n3 = NULL_PTR;
+                    } else {
+                        if (values[n3].compareTo(NO_VALUE) != 0) {
+                            v3 = values[n3];
+                        }
+                        n3 = bit >= 0 && k3.testBit(bit) ? rights[n3] : lefts[n3];
+                    }
+                }
+                bit--;
+            }
+
+            out[i] = v0;
+            out[i + 1] = v1;
+            out[i + 2] = v2;
+            out[i + 3] = v3;
+        }
+
+        for (; i < end; i++) {
+            out[i] = selectValue(keys[i]);
+        }
+    }
+
     /**
      * Puts a key-value pair in a tree, using a string representation of IPv6 prefix.
      *
@@ -254,7 +480,20 @@ public class IPv6RadixBigIntegerTree {
         BigInteger ip = IpConvert.stringToBigInt(ipStr);
 
         String netMaskStr = ipNet.substring(pos + 1);
+        BigInteger netMask = netMask(netMaskStr);
+        logger.debug("Put       ip           is "+ipNet+" and the bigInteger of ip  is  {}",ip);
+        logger.debug("This      netMaskStr   is {} .",netMaskStr);
+        logger.debug("This      new  netMask is {} .",netMask);
+        put(ip, netMask, value);
+    }
 
+    /**
+     * Converts a netmask in CIDR notation to a netmask in networked byte order format.
+     *
+     * @param netMaskStr netmask in CIDR notation, i.e. "64"
+     * @return netmask
+     */
+    private static BigInteger netMask(String netMaskStr) {
         int cidr = 0;
         try {
             cidr = Integer.parseInt(netMaskStr.trim());
@@ -262,13 +501,207 @@ public class IPv6RadixBigIntegerTree {
             logger.error("Parse the net mask occur a error: {}" , netMaskStr);
         }
 
+        return netMask(cidr);
+    }
+
+    /**
+     * Converts a prefix length to a netmask.
+     *
+     * @param cidr prefix length, from 0 to 128
+     * @return netmask
+     */
+    private static BigInteger netMask(int cidr) {
         BigInteger temp=(new BigInteger("1").shiftLeft(CIDR_MAX_LENGTH - cidr)).subtract(new BigInteger("1"));
 
-        BigInteger netMask = temp.xor(IPV6_END_VALUE);
-        logger.debug("Put       ip           is "+ipNet+" and the bigInteger of ip  is  {}",ip);
-        logger.debug("This      netMaskStr   is {} .",netMaskStr);
-        logger.debug("This      new  netMask is {} .",netMask);
-        put(ip, netMask, value);
+        return temp.xor(IPV6_END_VALUE);
+    }
+
+    /**
+     * Removes the value stored under a given key. Nodes left without value and without
+     * children are detached from the tree and reused by later puts, see also {@link #compact()}.
+     *
+     * @param key  IPv6 network prefix
+     * @param mask IPv6 netmask in networked byte order format
+     * @return true if a value was stored under that key
+     */
+    public boolean remove(BigInteger key, BigInteger mask) {
+        int[] path = new int[CIDR_MAX_LENGTH + 1];
+        int depth = 0;
+        BigInteger bit = IPV6_START_VALUE;
+        int node = ROOT_PTR;
+        path[0] = node;
+
+        while ((bit.and(mask)).compareTo(ZERO_VALUE)!=0) {
+            node = (key.and(bit)).compareTo(ZERO_VALUE)!=0 ? rights[node] : lefts[node];
+            if (node == NULL_PTR) {
+                return false;
+            }
+            path[++depth] = node;
+            bit=bit.shiftRight(1);
+        }
+
+        if (isEmpty(values[node])) {
+            return false;
+        }
+        values[node] = NO_VALUE;
+        modCount++;
+
+        // Prune empty leaves up to the first node still in use, the root always stays
+        while (depth > 0 && isEmpty(values[node])
+                && lefts[node] == NULL_PTR && rights[node] == NULL_PTR) {
+            int parent = path[--depth];
+            if (lefts[parent] == node) {
+                lefts[parent] = NULL_PTR;
+            } else {
+                rights[parent] = NULL_PTR;
+            }
+            release(node);
+            node = parent;
+        }
+        return true;
+    }
+
+    /**
+     * Tells whether a node value stands for no value: {@link #NO_VALUE}, or null as put by
+     * {@code put(key, mask, null)}.
+     *
+     * @param value node value
+     * @return true if there is no value
+     */
+    private static boolean isEmpty(BigInteger value) {
+        return value == null || value.compareTo(NO_VALUE) == 0;
+    }
+
+    /**
+     * Removes the value stored under a given key, using a string representation of IPv6 prefix.
+     *
+     * @param ipNet IPv6 network as a string in form of "a:b:c:d:e:f:g:h/i"
+     * @return true if a value was stored under that key
+     * @throws NumberFormatException if ipNet is not an IPv6 network with a prefix length
+     */
+    public boolean remove(String ipNet) {
+        int pos = ipNet.indexOf('/');
+        return remove(address(ipNet, pos), strictNetMask(ipNet, pos));
+    }
+
+    /**
+     * Parses the address part of a network in string form.
+     *
+     * @param ipNet IPv6 network as a string in form of "a:b:c:d:e:f:g:h/i"
+     * @param pos   position of the '/' separator, negative if there is none
+     * @return IPv6 network prefix
+     * @throws NumberFormatException if the address part is not an IPv6 literal
+     */
+    private static BigInteger address(String ipNet, int pos) {
+        IPv6Address address = new IPv6Address();
+        if (pos < 0 || !IpParser.parseIpv6(ipNet, 0, pos, address)) {
+            throw new NumberFormatException("Invalid IPv6 network: " + ipNet);
+        }
+        return address.toBigInteger();
+    }
+
+    /**
+     * Parses the prefix length part of a network in string form, strictly unlike
+     * {@link #netMask(String)}.
+     *
+     * @param ipNet IPv6 network as a string in form of "a:b:c:d:e:f:g:h/i"
+     * @param pos   position of the '/' separator
+     * @return netmask
+     * @throws NumberFormatException if the prefix length is not a number from 0 to 128
+     */
+    private static BigInteger strictNetMask(String ipNet, int pos) {
+        int cidr;
+        try {
+            cidr = Integer.parseInt(ipNet.substring(pos + 1).trim());
+        } catch (NumberFormatException e) {
+            cidr = -1;
+        }
+        if (cidr < 0 || cidr > CIDR_MAX_LENGTH) {
+            throw new NumberFormatException("Invalid IPv6 network: " + ipNet);
+        }
+        return netMask(cidr);
+    }
+
+    /**
+     * Returns an independent copy of this tree, for example to apply a delta to while the
+     * original keeps serving lookups.
+     *
+     * @return a copy of current tree
+     */
+    public IPv6RadixBigIntegerTree copy() {
+        IPv6RadixBigIntegerTree tr = new IPv6RadixBigIntegerTree(allocatedSize);
+        System.arraycopy(lefts, 0, tr.lefts, 0, size);
+        System.arraycopy(rights, 0, tr.rights, 0, size);
+        System.arraycopy(values, 0, tr.values, 0, size);
+        tr.size = size;
+        tr.freeHead = freeHead;
+        tr.freeCount = freeCount;
+        return tr;
+    }
+
+    /**
+     * Moves all nodes to the front of the arrays, in breadth-first order, and shrinks the
+     * arrays to the number of nodes. Frees the memory held by removed nodes after heavy
+     * churn. Not safe to run while other threads read the tree; compact a {@link #copy()}
+     * instead.
+     */
+    public void compact() {
+        IPv6RadixBigIntegerTree tr = compacted();
+        rights = tr.rights;
+        lefts = tr.lefts;
+        values = tr.values;
+        allocatedSize = tr.allocatedSize;
+        size = tr.size;
+        freeHead = NULL_PTR;
+        freeCount = 0;
+    }
+
+    /**
+     * Tells whether this tree can be saved as it is: no removed nodes and every child
+     * after its parent, which loading checks. Reused nodes break the order.
+     *
+     * @return true if no compaction is needed
+     */
+    private boolean ordered() {
+        if (freeCount != 0) {
+            return false;
+        }
+        for (int node = 0; node < size; node++) {
+            if ((lefts[node] != NULL_PTR && lefts[node] <= node)
+                    || (rights[node] != NULL_PTR && rights[node] <= node)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a copy of this tree without removed nodes.
+     *
+     * @return a compacted copy of current tree
+     */
+    private IPv6RadixBigIntegerTree compacted() {
+        int live = size();
+        IPv6RadixBigIntegerTree tr = new IPv6RadixBigIntegerTree(live);
+        int[] order = new int[live];
+        int tail = 0;
+        order[tail++] = ROOT_PTR;
+        for (int i = 0; i < tail; i++) {
+            int node = order[i];
+            tr.values[i] = values[node];
+            tr.lefts[i] = NULL_PTR;
+            tr.rights[i] = NULL_PTR;
+            if (lefts[node] != NULL_PTR) {
+                tr.lefts[i] = tail;
+                order[tail++] = lefts[node];
+            }
+            if (rights[node] != NULL_PTR) {
+                tr.rights[i] = tail;
+                order[tail++] = rights[node];
+            }
+        }
+        tr.size = tail;
+        return tr;
     }
 
     /**
@@ -284,13 +717,54 @@ public class IPv6RadixBigIntegerTree {
         return selectValue(IpConvert.stringToBigInt(ipStr));
     }
 
+    /**
+     * Returns the left branch pointer of a given node, or {@code NULL_PTR}.
+     * Used by the compiled lookup structures built from this tree.
+     *
+     * @param node node index
+     * @return left child index
+     */
+    int leftOf(int node) {
+        return lefts[node];
+    }
+
+    /**
+     * Returns the right branch pointer of a given node, or {@code NULL_PTR}.
+     *
+     * @param node node index
+     * @return right child index
+     */
+    int rightOf(int node) {
+        return rights[node];
+    }
+
+    /**
+     * Returns the value stored in a given node, or {@link #NO_VALUE}.
+     *
+     * @param node node index
+     * @return node value
+     */
+    BigInteger valueOf(int node) {
+        return values[node];
+    }
+
     /**
      * Returns a size of tree in number of nodes (not number of prefixes stored).
      *
      * @return a number of nodes in current tree
      */
     public int size() {
-        return size;
+        return size - freeCount;
+    }
+
+    /**
+     * Returns a counter bumped by every put and remove, so that a lookup cache can tell its
+     * entries are stale.
+     *
+     * @return modification count
+     */
+    int modCount() {
+        return modCount;
     }
 
 
@@ -332,38 +806,33 @@ public class IPv6RadixBigIntegerTree {
      * @throws IOException
      */
     public static IPv6RadixBigIntegerTree loadFromLocalFile(String filename, boolean nginxFormat) throws Exception {
-        IPv6RadixBigIntegerTree tr = new IPv6RadixBigIntegerTree(countLinesInLocalFile(filename));
-        BufferedReader br = new BufferedReader(new FileReader(filename));
-        String l;
-        BigInteger value;
-        /*
-         line (cidr,nextId,ispId,regionId,regionlevel,regionType,networkType)
-         4501:DA8:0203:0:0:0:0:0/16	951728549285331151	2	34	3	2	0
-         */
-
-        while ((l = br.readLine()) != null) {
-            String[] c = l.split(LINE_SPLIT, -1);
-
-            if (nginxFormat) {
-                // strip ";" at EOL
-                int le=c[1].length() - 1;
-                // Put value
-                c[1] = c[1].substring(0,le);
-                // NB: This is to work around malicious "80000000" AS number
-                value = new BigInteger(c[1], NGINX_LENGTH);
-            } else {
-                // NB: You can adjust the use of int or long.
-                value = new BigInteger(c[1]);
-            }
+        return loadFromLocalFile(filename, nginxFormat, 0);
+    }
 
-            ////////////////////////////////////////////////////////
-            // Judge the text of the ip is legal!
-            String ip=c[0].split("/")[0];
-            if(RegexIpAddress.isIpv4OrIpv6(ip)==6){
-                logger.debug("File      ip           is {}",c[0]);
-                tr.put(c[0].trim(), value);
+    /**
+     * Helper function that reads IPv6 radix tree from a local file in tab-separated format:
+     * (IPv6 net => value), in a single pass over the memory-mapped file.
+     *
+     * @param filename    name of a local file to read
+     * @param nginxFormat if true, then file would be parsed as nginx web server configuration file
+     * @param sizeHint    expected number of nodes, or 0 to guess it from the file length
+     * @return a fully constructed IPv6 radix tree from that file
+     * @throws IOException if the file can't be read, or an IPv6 line has a malformed prefix length or value
+     */
+    public static IPv6RadixBigIntegerTree loadFromLocalFile(String filename, boolean nginxFormat, int sizeHint)
+            throws Exception {
+        int allocatedSize = sizeHint > 0 ? sizeHint : estimateSize(new File(filename).length());
+        IPv6RadixBigIntegerTree tr = new IPv6RadixBigIntegerTree(allocatedSize);
+        IPv6Address address = new IPv6Address();
+        RegionFileReader r = RegionFileReader.open(filename);
+        try {
+            while (r.next()) {
+                if (r.ipv6(address)) {
+                    tr.put(address.toBigInteger(), netMask(r.ipv6Cidr()), r.bigValue(nginxFormat));
+                }
             }
-
+        } finally {
+            r.close();
         }
 
         return tr;
@@ -378,35 +847,305 @@ public class IPv6RadixBigIntegerTree {
      * @throws IOException
      */
     public static IPv6RadixBigIntegerTree loadFromHdfs(String filePath, boolean nginxFormat) throws Exception {
-        IPv6RadixBigIntegerTree tr = new IPv6RadixBigIntegerTree(countLinesInHdfds(filePath));
-        BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(new Path(filePath)), "UTF-8"));
+        return loadFromHdfs(filePath, nginxFormat, 0);
+    }
+
+    /**
+     * Read region file from hadoop distribute file system in a single pass.
+     *
+     * @param filePath    filePath
+     * @param nginxFormat format
+     * @param sizeHint    expected number of nodes, or 0 to guess it from the file length
+     * @return IPv6RadixBigIntegerTree
+     * @throws IOException
+     */
+    public static IPv6RadixBigIntegerTree loadFromHdfs(String filePath, boolean nginxFormat, int sizeHint)
+            throws Exception {
+        Path path = new Path(filePath);
+        int allocatedSize = sizeHint > 0 ? sizeHint : estimateSize(fs.getFileStatus(path).getLen());
+        return loadFromReader(new BufferedReader(new InputStreamReader(fs.open(path), "UTF-8")),
+                nginxFormat, allocatedSize);
+    }
+
+    /**
+     * Reads region file lines into a new tree, skipping IPv4 networks. The tree starts at a
+     * given capacity and doubles when it runs out. The reader is closed.
+     *
+     * @param br            region file reader
+     * @param nginxFormat   if true, values are hex and followed by ";"
+     * @param allocatedSize initial capacity to allocate
+     * @return IPv6RadixBigIntegerTree
+     * @throws IOException
+     */
+    private static IPv6RadixBigIntegerTree loadFromReader(BufferedReader br, boolean nginxFormat,
+                                                          int allocatedSize) throws Exception {
+        IPv6RadixBigIntegerTree tr = new IPv6RadixBigIntegerTree(allocatedSize);
         String l;
         BigInteger value;
         /*
          line (cidr,nextId,ispId,regionId,regionlevel,regionType,networkType)
          4501:DA8:0203:0:0:0:0:0/16	951728549285331151	2	34	3	2	0
          */
-        while ((l = br.readLine()) != null) {
-            String[] c = l.split(LINE_SPLIT, -1);
+        try {
+            while ((l = br.readLine()) != null) {
+                String[] c = l.split(LINE_SPLIT, -1);
 
-            if (nginxFormat) {
-                // strip ";" at EOL
-                c[1] = c[1].substring(0, c[1].length() - 1);
+                if (nginxFormat) {
+                    // strip ";" at EOL
+                    c[1] = c[1].substring(0, c[1].length() - 1);
 
-                // NB: this is to work around malicious "80000000" AS number
-                value = new BigInteger(c[1], NGINX_LENGTH);
-            } else {
-                value = new BigInteger(c[1]);
+                    // NB: This is to work around malicious "80000000" AS number
+                    value = new BigInteger(c[1], NGINX_LENGTH);
+                } else {
+                    // NB: You can adjust the use of int or long.
+                    value = new BigInteger(c[1]);
+                }
+
+                ////////////////////////////////////////////////////////
+                // Judge the text of the ip is legal!
+                if (IpParser.version(c[0]) == 6) {
+                    logger.debug("File      ip           is {}", c[0]);
+                    tr.put(c[0].trim(), value);
+                }
             }
+        } finally {
+            br.close();
+        }
+
+        return tr;
+    }
 
-            ////////////////////////////////////////////
-            // Judge the text of the ip is legal or not!
-            String ip=c[0].split("/")[0];
-            if(RegexIpAddress.isIpv4OrIpv6(ip)==6){
-                tr.put(c[0].trim(), value);
+    /**
+     * Writes this tree to a stream as a binary image: a versioned header, the node arrays
+     * and a CRC32 checksum. Values are stored as their two's-complement bytes, one after
+     * another, with the end offset of each node's value kept in a node array; an empty
+     * value stands for {@link #NO_VALUE}. Removed nodes are left out of the image, and nodes
+     * are renumbered if reused nodes left a child before its parent. The stream is flushed
+     * but not closed.
+     *
+     * @param out stream to write to
+     * @throws IOException
+     */
+    public void save(OutputStream out) throws IOException {
+        IPv6RadixBigIntegerTree tr = ordered() ? this : compacted();
+        int size = tr.size;
+        BigInteger[] values = tr.values;
+        int[] ends = new int[size];
+        byte[][] bytes = new byte[size][];
+        int total = 0;
+        for (int i = 0; i < size; i++) {
+            if (values[i] != null && values[i].compareTo(NO_VALUE) != 0) {
+                bytes[i] = values[i].toByteArray();
+                total += bytes[i].length;
             }
+            ends[i] = total;
+        }
+        byte[] blob = new byte[total];
+        for (int i = 0; i < size; i++) {
+            if (bytes[i] != null) {
+                System.arraycopy(bytes[i], 0, blob, ends[i] - bytes[i].length, bytes[i].length);
+            }
+        }
+
+        TreeImage image = TreeImage.writer(out);
+        image.writeHeader(TreeImage.KIND_IPV6, size);
+        image.writeInts(tr.lefts, size);
+        image.writeInts(tr.rights, size);
+        image.writeInts(ends, size);
+        image.writeInt(total);
+        image.writeBytes(blob, total);
+        image.finish();
+    }
 
+    /**
+     * Writes this tree to a local file as a binary image.
+     *
+     * @param filename name of a local file to write
+     * @throws IOException
+     */
+    public void save(String filename) throws IOException {
+        try (OutputStream out = new FileOutputStream(filename)) {
+            save(out);
         }
+    }
+
+    /**
+     * Reads an IPv6 radix tree from a binary image written by {@link #save(OutputStream)}.
+     * The stream is not closed.
+     *
+     * @param in stream to read from
+     * @return a fully constructed IPv6 radix tree from that image
+     * @throws IOException if the image is truncated, corrupted or of another kind or version
+     */
+    public static IPv6RadixBigIntegerTree load(InputStream in) throws IOException {
+        TreeImage image = TreeImage.reader(in);
+        int size = image.readHeader(TreeImage.KIND_IPV6, IMAGE_NODE_LENGTH);
+        IPv6RadixBigIntegerTree tr = new IPv6RadixBigIntegerTree(size);
+        int[] ends = new int[size];
+        image.readInts(tr.lefts, size);
+        image.readInts(tr.rights, size);
+        image.readInts(ends, size);
+        int total = image.readInt();
+        if (total < 0) {
+            throw new IOException("Invalid value block length " + total);
+        }
+        byte[] blob = new byte[total];
+        image.readBytes(blob, total);
+        image.verify();
+        TreeImage.checkLinks(IntBuffer.wrap(tr.lefts), IntBuffer.wrap(tr.rights), size);
+
+        int start = 0;
+        for (int i = 0; i < size; i++) {
+            if (ends[i] < start || ends[i] > total) {
+                throw new IOException("Invalid value offset " + ends[i] + " at node " + i);
+            }
+            if (ends[i] == start) {
+                tr.values[i] = NO_VALUE;
+            } else {
+                tr.values[i] = new BigInteger(Arrays.copyOfRange(blob, start, ends[i]));
+            }
+            start = ends[i];
+        }
+        tr.size = size;
         return tr;
     }
+
+    /**
+     * Reads an IPv6 radix tree from a local binary image file.
+     *
+     * @param filename name of a local file to read
+     * @return a fully constructed IPv6 radix tree from that image
+     * @throws IOException
+     */
+    public static IPv6RadixBigIntegerTree load(String filename) throws IOException {
+        try (InputStream in = new FileInputStream(filename)) {
+            return load(in);
+        }
+    }
+
+    /**
+     * Reads an IPv6 radix tree from a binary image file on hadoop distribute file system.
+     *
+     * @param filePath image path
+     * @return a fully constructed IPv6 radix tree from that image
+     * @throws IOException
+     */
+    public static IPv6RadixBigIntegerTree loadFromHdfsImage(String filePath) throws IOException {
+        try (InputStream in = fs.open(new Path(filePath))) {
+            return load(in);
+        }
+    }
+
+    /**
+     * Applies a local delta file to this tree, see {@link #applyDelta(BufferedReader)}.
+     *
+     * @param filename name of a local delta file
+     * @return number of operations that changed the tree
+     * @throws IOException
+     */
+    public int applyDeltaFromLocalFile(String filename) throws IOException {
+        return applyDelta(new BufferedReader(new FileReader(filename)));
+    }
+
+    /**
+     * Applies a delta file from hadoop distribute file system to this tree.
+     *
+     * @param filePath delta file path
+     * @return number of operations that changed the tree
+     * @throws IOException
+     */
+    public int applyDeltaFromHdfs(String filePath) throws IOException {
+        return applyDelta(new BufferedReader(new InputStreamReader(fs.open(new Path(filePath)), "UTF-8")));
+    }
+
+    /**
+     * Applies a delta to this tree, at a cost proportional to the number of delta lines.
+     * Each line is an operation followed by a line in the region file format:
+     * <pre>
+     * add     bbbb:dd:0:0:0:0:0:0/26   951745140559446016  2  8  3  2  0
+     * change  1:0:0:0:0:0:10:0/38      951745140559446099  2  8  3  2  0
+     * delete  bbbb:0:0:0:0:0:10:0/127
+     * </pre>
+     * "add" and "change" store the value, "delete" removes the prefix. Blank lines, lines
+     * starting with '#' and IPv4 prefixes are skipped. The reader is closed.
+     * <p>
+     * Every line is parsed before the first change, so a malformed delta leaves the tree as
+     * it was.
+     *
+     * @param br delta reader
+     * @return number of operations that changed the tree
+     * @throws IOException if a line holds an unknown operation or is malformed, the message
+     *                     names the line
+     */
+    public int applyDelta(BufferedReader br) throws IOException {
+        List<DeltaOperation> operations = new ArrayList<DeltaOperation>();
+        String l;
+        int lineNumber = 0;
+        try {
+            while ((l = br.readLine()) != null) {
+                lineNumber++;
+                l = l.trim();
+                if (l.isEmpty() || l.charAt(0) == DELTA_COMMENT) {
+                    continue;
+                }
+                String[] c = l.split(LINE_SPLIT, -1);
+                if (c.length < 2) {
+                    throw new IOException("Malformed delta line #" + lineNumber);
+                }
+
+                if (IpParser.version(c[1]) != 6) {
+                    continue;
+                }
+
+                boolean delete = DELTA_DELETE.equals(c[0]);
+                if (!delete && !DELTA_ADD.equals(c[0]) && !DELTA_CHANGE.equals(c[0])) {
+                    throw new IOException("Unknown delta operation '" + c[0] + "' in line #" + lineNumber);
+                }
+                if (!delete && c.length < 3) {
+                    throw new IOException("Malformed delta line #" + lineNumber);
+                }
+                try {
+                    int pos = c[1].indexOf('/');
+                    BigInteger key = address(c[1], pos);
+                    BigInteger mask = strictNetMask(c[1], pos);
+                    BigInteger value = delete ? NO_VALUE : new BigInteger(c[2]);
+                    operations.add(new DeltaOperation(delete, key, mask, value));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed delta line #" + lineNumber, e);
+                }
+            }
+        } finally {
+            br.close();
+        }
+
+        int applied = 0;
+        for (DeltaOperation op : operations) {
+            if (op.delete) {
+                if (remove(op.key, op.mask)) {
+                    applied++;
+                }
+            } else {
+                put(op.key, op.mask, op.value);
+                applied++;
+            }
+        }
+        return applied;
+    }
+
+    /**
+     * Parsed delta line.
+     */
+    private static final class DeltaOperation {
+        private final boolean delete;
+        private final BigInteger key;
+        private final BigInteger mask;
+        private final BigInteger value;
+
+        DeltaOperation(boolean delete, BigInteger key, BigInteger mask, BigInteger value) {
+            this.delete = delete;
+            this.key = key;
+            this.mask = mask;
+            this.value = value;
+        }
+    }
 }
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import com.openstat.utils.IPv6Address;
+import com.openstat.utils.IpParser;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.Arrays;
+
+
+/**
+ * Traversal core shared by the IPv6 radix trees keyed by two longs ({@link IPv6RadixTree},
+ * {@link IPv6RadixLongTree}).
+ * <p>
+ * A 128-bit address is handled as its upper and lower 64-bit halves, and bits are tested
+ * with shifts on those halves, so neither inserts nor lookups allocate. The core owns the
+ * child pointers and a bitmap of the nodes holding a value; each tree only keeps a value
+ * array indexed by node.
+ */
+abstract class IPv6RadixCore {
+    static final int NULL_PTR = -1;
+    static final int ROOT_PTR = 0;
+
+    // Bits per address half
+    static final int HALF_BITS = 64;
+
+    // Split char
+    private static final String LINE_SPLIT = "\\s+";
+    private static final char NET_MASK_SPLIT = '/';
+
+    // cidr max
+    private static final int CIDR_MAX_LENGTH = 128;
+
+    private int[] rights;
+    private int[] lefts;
+    // One bit per node, set if the node holds a value
+    private long[] valued;
+    private int allocatedSize;
+    private int size;
+
+    // Scratch holder for parsing networks on insert, writes are single-threaded
+    private final IPv6Address parsed = new IPv6Address();
+
+    IPv6RadixCore(int allocatedSize) {
+        this.allocatedSize = allocatedSize;
+
+        rights = new int[allocatedSize];
+        lefts = new int[allocatedSize];
+        valued = new long[(allocatedSize + 63) >>> 6];
+
+        size = 1;
+        lefts[0] = NULL_PTR;
+        rights[0] = NULL_PTR;
+    }
+
+    /**
+     * Resizes the value array of the tree.
+     *
+     * @param allocatedSize new capacity in number of nodes
+     */
+    abstract void resizeValues(int allocatedSize);
+
+    /**
+     * Parses a value and puts it under a given network, used by the loader.
+     *
+     * @param ipNet IPv6 network as a string in form of "a:b:c:d:e:f:g:h/i"
+     * @param value value column
+     */
+    abstract void put(String ipNet, String value);
+
+    /**
+     * Returns the upper half of an IPv6 netmask of a given length.
+     *
+     * @param cidr netmask length, from 0 to 128
+     * @return upper 64 bits of the netmask
+     */
+    static long maskHi(int cidr) {
+        return cidr == 0 ? 0 : cidr >= HALF_BITS ? -1L : -1L << (HALF_BITS - cidr);
+    }
+
+    /**
+     * Returns the lower half of an IPv6 netmask of a given length.
+     *
+     * @param cidr netmask length, from 0 to 128
+     * @return lower 64 bits of the netmask
+     */
+    static long maskLo(int cidr) {
+        return cidr <= HALF_BITS ? 0 : -1L << (CIDR_MAX_LENGTH - cidr);
+    }
+
+    /**
+     * Finds the node for a given key, creating missing nodes on the way, and marks it as
+     * holding a value. The caller stores the value at the returned index, reading its value
+     * array only after this call since growing the tree replaces it.
+     *
+     * @param hi     upper 64 bits of the IPv6 network prefix
+     * @param lo     lower 64 bits of the IPv6 network prefix
+     * @param maskHi upper 64 bits of the netmask
+     * @param maskLo lower 64 bits of the netmask
+     * @return node index
+     */
+    final int insert(long hi, long lo, long maskHi, long maskLo) {
+        int node = ROOT_PTR;
+        long k = hi;
+        long m = maskHi;
+
+        for (int depth = 0; depth < CIDR_MAX_LENGTH; depth++) {
+            if (depth == HALF_BITS) {
+                k = lo;
+                m = maskLo;
+            }
+            if (m >= 0) {
+                break;
+            }
+            int next = k < 0 ? rights[node] : lefts[node];
+            if (next == NULL_PTR) {
+                if (size == allocatedSize) {
+                    expandAllocatedSize();
+                }
+                next = size++;
+                rights[next] = NULL_PTR;
+                lefts[next] = NULL_PTR;
+                if (k < 0) {
+                    rights[node] = next;
+                } else {
+                    lefts[node] = next;
+                }
+            }
+            node = next;
+            k <<= 1;
+            m <<= 1;
+        }
+
+        valued[node >>> 6] |= 1L << node;
+        return node;
+    }
+
+    /**
+     * Marks a node as holding no value, so that lookups fall back to a less specific network.
+     *
+     * @param node node index returned by insert
+     */
+    final void clearValue(int node) {
+        valued[node >>> 6] &= ~(1L << node);
+    }
+
+    /**
+     * Finds the node for a given network in string form, see {@link #insert(long, long, long, long)}.
+     *
+     * @param ipNet IPv6 network as a string in form of "a:b:c:d:e:f:g:h/i"
+     * @return node index
+     * @throws NumberFormatException if ipNet is not an IPv6 network with a prefix length
+     *                               from 0 to 128
+     */
+    final int insert(String ipNet) {
+        int pos = ipNet.indexOf(NET_MASK_SPLIT);
+        if (pos < 0 || !IpParser.parseIpv6(ipNet, 0, pos, parsed)) {
+            throw new NumberFormatException("Invalid IPv6 network: " + ipNet);
+        }
+
+        int cidr;
+        try {
+            cidr = Integer.parseInt(ipNet.substring(pos + 1).trim());
+        } catch (NumberFormatException e) {
+            cidr = -1;
+        }
+        if (cidr < 0 || cidr > CIDR_MAX_LENGTH) {
+            throw new NumberFormatException("Invalid IPv6 network: " + ipNet);
+        }
+
+        return insert(parsed.hi, parsed.lo, maskHi(cidr), maskLo(cidr));
+    }
+
+    private void expandAllocatedSize() {
+        allocatedSize *= 2;
+        lefts = Arrays.copyOf(lefts, allocatedSize);
+        rights = Arrays.copyOf(rights, allocatedSize);
+        valued = Arrays.copyOf(valued, (allocatedSize + 63) >>> 6);
+        resizeValues(allocatedSize);
+    }
+
+    /**
+     * Finds the most specific node holding a value for a given IPv6 address.
+     *
+     * @param hi upper 64 bits of the IPv6 address
+     * @param lo lower 64 bits of the IPv6 address
+     * @return node index, or NULL_PTR if no network holds that address
+     */
+    final int find(long hi, long lo) {
+        int best = NULL_PTR;
+        int node = ROOT_PTR;
+        long k = hi;
+
+        for (int depth = 0; node != NULL_PTR; depth++) {
+            if ((valued[node >>> 6] & (1L << node)) != 0) {
+                best = node;
+            }
+            if (depth == HALF_BITS) {
+                k = lo;
+            }
+            node = k < 0 ? rights[node] : lefts[node];
+            k <<= 1;
+        }
+
+        return best;
+    }
+
+    /**
+     * Returns a size of tree in number of nodes (not number of prefixes stored).
+     *
+     * @return a number of nodes in current tree
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Reads region file lines into a tree, taking values from a given column and skipping
+     * IPv4 networks. The reader is closed.
+     *
+     * @param br     region file reader
+     * @param column index of the value column, 1 for the id
+     * @param tr     tree to fill
+     * @throws IOException
+     */
+    static void load(BufferedReader br, int column, IPv6RadixCore tr) throws IOException {
+        String l;
+        try {
+            while ((l = br.readLine()) != null) {
+                String[] c = l.split(LINE_SPLIT, -1);
+
+                if (IpParser.version(c[0]) == 6) {
+                    tr.put(c[0].trim(), c[column]);
+                }
+            }
+        } finally {
+            br.close();
+        }
+    }
+}
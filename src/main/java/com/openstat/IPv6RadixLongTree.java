@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import com.openstat.utils.IPv6Address;
+import com.openstat.utils.IpParser;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+
+/**
+ * IPv6 radix tree with long values, keyed by the two 64-bit halves of the address.
+ * <p>
+ * {@link IPv6RadixBigIntegerTree} keeps a BigInteger reference in every node, intermediate
+ * ones included, and each stored id is a separate object of 40 bytes or more. Ids from the
+ * region files fit in a long, so this tree keeps them in a {@code long[]}: a node costs
+ * about 16 bytes, the same as {@link IPv4RadixIntTree}, and the values put no load on the
+ * garbage collector.
+ * <p>
+ * Lookups return {@link #NO_VALUE} for unmatched addresses, so -1 can't be stored: putting
+ * it clears the value of that network instead.
+ */
+public class IPv6RadixLongTree extends IPv6RadixCore {
+    /**
+     * Special value that designates that there are no value stored in the key so far.
+     * One can't use store value in a tree.
+     */
+    public static final long NO_VALUE = -1;
+
+    private long[] values;
+
+    /**
+     * Initializes IPv6 radix tree with default capacity of 1024 nodes. It should be sufficient for small databases.
+     */
+    public IPv6RadixLongTree() {
+        this(1024);
+    }
+
+    /**
+     * Initializes IPv6 radix tree with a given capacity.
+     *
+     * @param allocatedSize initial capacity to allocate
+     */
+    public IPv6RadixLongTree(int allocatedSize) {
+        super(allocatedSize);
+        values = new long[allocatedSize];
+    }
+
+    void resizeValues(int allocatedSize) {
+        values = Arrays.copyOf(values, allocatedSize);
+    }
+
+    /**
+     * Puts a key-value pair in a tree.
+     *
+     * @param hi     upper 64 bits of the IPv6 network prefix
+     * @param lo     lower 64 bits of the IPv6 network prefix
+     * @param maskHi upper 64 bits of the netmask
+     * @param maskLo lower 64 bits of the netmask
+     * @param value  an arbitrary value that would be stored under a given key,
+     *               {@link #NO_VALUE} clears the value of that network
+     */
+    public void put(long hi, long lo, long maskHi, long maskLo, long value) {
+        store(insert(hi, lo, maskHi, maskLo), value);
+    }
+
+    /**
+     * Puts a key-value pair in a tree.
+     *
+     * @param key   IPv6 network prefix
+     * @param mask  IPv6 netmask in networked byte order format
+     * @param value an arbitrary value that would be stored under a given key,
+     *              {@link #NO_VALUE} clears the value of that network
+     */
+    public void put(BigInteger key, BigInteger mask, long value) {
+        put(key.shiftRight(HALF_BITS).longValue(), key.longValue(),
+                mask.shiftRight(HALF_BITS).longValue(), mask.longValue(), value);
+    }
+
+    /**
+     * Puts a key-value pair in a tree, using a string representation of IPv6 prefix.
+     *
+     * @param ipNet IPv6 network as a string in form of "a:b:c:d:e:f:g:h/i"
+     * @param value an arbitrary value that would be stored under a given key,
+     *              {@link #NO_VALUE} clears the value of that network
+     */
+    public void put(String ipNet, long value) {
+        store(insert(ipNet), value);
+    }
+
+    private void store(int node, long value) {
+        values[node] = value;
+        if (value == NO_VALUE) {
+            clearValue(node);
+        }
+    }
+
+    void put(String ipNet, String value) {
+        put(ipNet, Long.parseLong(value));
+    }
+
+    /**
+     * Selects a value for a given IPv6 address given as two 64-bit halves, choosing most
+     * specific value available for a given address.
+     *
+     * @param hi upper 64 bits of the IPv6 address
+     * @param lo lower 64 bits of the IPv6 address
+     * @return value at most specific IPv6 network for a given IPv6 address, or {@link #NO_VALUE}
+     */
+    public long selectValue(long hi, long lo) {
+        int node = find(hi, lo);
+        return node == NULL_PTR ? NO_VALUE : values[node];
+    }
+
+    /**
+     * Selects a value for a given IPv6 address, choosing most specific value available
+     * for a given address.
+     *
+     * @param key IPv6 address to look up
+     * @return value at most specific IPv6 network for a given IPv6 address, or {@link #NO_VALUE}
+     */
+    public long selectValue(BigInteger key) {
+        return selectValue(key.shiftRight(HALF_BITS).longValue(), key.longValue());
+    }
+
+    /**
+     * Selects a value for a given IPv6 address, choosing most specific value available
+     * for a given address.
+     *
+     * @param ipStr IPv6 address to look up, in string form
+     * @return value at most specific IPv6 network for a given IPv6 address, or {@link #NO_VALUE}
+     */
+    public long selectValue(String ipStr) {
+        IPv6Address address = new IPv6Address();
+        if (!IpParser.parseIpv6(ipStr, address)) {
+            throw new NumberFormatException("Invalid IPv6 address: " + ipStr);
+        }
+        return selectValue(address.hi, address.lo);
+    }
+
+    /**
+     * Helper function that reads IPv6 radix tree from a local file in tab-separated format:
+     * (IPv6 net => value), skipping IPv4 networks.
+     *
+     * @param filename name of a local file to read
+     * @return a fully constructed IPv6 radix tree from that file
+     * @throws IOException
+     */
+    public static IPv6RadixLongTree loadFromLocalFile(String filename) throws IOException {
+        IPv6RadixLongTree tr = new IPv6RadixLongTree();
+        load(new BufferedReader(new FileReader(filename)), 1, tr);
+        return tr;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import com.openstat.utils.IPv6Address;
+import com.openstat.utils.IpParser;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+
+/**
+ * IPv6 radix tree keyed by the two 64-bit halves of the address instead of BigInteger.
+ * <p>
+ * {@link IPv6RadixBigIntegerTree} creates BigIntegers at every level through {@code and},
+ * {@code shiftRight} and {@code compareTo}, up to 256 temporary objects per lookup. This
+ * tree tests bits with shifts on two longs, so {@link #selectValue(long, long)} and
+ * {@link #put(long, long, long, long, BigInteger)} allocate nothing. The BigInteger and
+ * string overloads convert their argument once and are drop-in replacements for the
+ * methods of {@link IPv6RadixBigIntegerTree}, with the same values and the same
+ * {@link #NO_VALUE}.
+ */
+public class IPv6RadixTree extends IPv6RadixCore {
+    /**
+     * Special value that designates that there are no value stored in the key so far.
+     */
+    public static final BigInteger NO_VALUE = IPv6RadixBigIntegerTree.NO_VALUE;
+
+    private BigInteger[] values;
+
+    /**
+     * Initializes IPv6 radix tree with default capacity of 1024 nodes. It should be sufficient for small databases.
+     */
+    public IPv6RadixTree() {
+        this(1024);
+    }
+
+    /**
+     * Initializes IPv6 radix tree with a given capacity.
+     *
+     * @param allocatedSize initial capacity to allocate
+     */
+    public IPv6RadixTree(int allocatedSize) {
+        super(allocatedSize);
+        values = new BigInteger[allocatedSize];
+    }
+
+    void resizeValues(int allocatedSize) {
+        values = Arrays.copyOf(values, allocatedSize);
+    }
+
+    /**
+     * Puts a key-value pair in a tree.
+     *
+     * @param hi     upper 64 bits of the IPv6 network prefix
+     * @param lo     lower 64 bits of the IPv6 network prefix
+     * @param maskHi upper 64 bits of the netmask
+     * @param maskLo lower 64 bits of the netmask
+     * @param value  an arbitrary value that would be stored under a given key,
+     *               {@link #NO_VALUE} clears the value of that network
+     */
+    public void put(long hi, long lo, long maskHi, long maskLo, BigInteger value) {
+        store(insert(hi, lo, maskHi, maskLo), value);
+    }
+
+    /**
+     * Puts a key-value pair in a tree.
+     *
+     * @param key   IPv6 network prefix
+     * @param mask  IPv6 netmask in networked byte order format
+     * @param value an arbitrary value that would be stored under a given key,
+     *              {@link #NO_VALUE} clears the value of that network
+     */
+    public void put(BigInteger key, BigInteger mask, BigInteger value) {
+        put(key.shiftRight(HALF_BITS).longValue(), key.longValue(),
+                mask.shiftRight(HALF_BITS).longValue(), mask.longValue(), value);
+    }
+
+    /**
+     * Puts a key-value pair in a tree, using a string representation of IPv6 prefix.
+     *
+     * @param ipNet IPv6 network as a string in form of "a:b:c:d:e:f:g:h/i"
+     * @param value an arbitrary value that would be stored under a given key,
+     *              {@link #NO_VALUE} clears the value of that network
+     */
+    public void put(String ipNet, BigInteger value) {
+        store(insert(ipNet), value);
+    }
+
+    private void store(int node, BigInteger value) {
+        values[node] = value;
+        if (value != null && value.compareTo(NO_VALUE) == 0) {
+            clearValue(node);
+        }
+    }
+
+    void put(String ipNet, String value) {
+        put(ipNet, new BigInteger(value));
+    }
+
+    /**
+     * Selects a value for a given IPv6 address given as two 64-bit halves, choosing most
+     * specific value available for a given address.
+     *
+     * @param hi upper 64 bits of the IPv6 address
+     * @param lo lower 64 bits of the IPv6 address
+     * @return value at most specific IPv6 network for a given IPv6 address, or {@link #NO_VALUE}
+     */
+    public BigInteger selectValue(long hi, long lo) {
+        int node = find(hi, lo);
+        return node == NULL_PTR ? NO_VALUE : values[node];
+    }
+
+    /**
+     * Selects a value for a given IPv6 address, choosing most specific value available
+     * for a given address.
+     *
+     * @param key IPv6 address to look up
+     * @return value at most specific IPv6 network for a given IPv6 address, or {@link #NO_VALUE}
+     */
+    public BigInteger selectValue(BigInteger key) {
+        return selectValue(key.shiftRight(HALF_BITS).longValue(), key.longValue());
+    }
+
+    /**
+     * Selects a value for a given IPv6 address, choosing most specific value available
+     * for a given address.
+     *
+     * @param ipStr IPv6 address to look up, in string form
+     * @return value at most specific IPv6 network for a given IPv6 address, or {@link #NO_VALUE}
+     */
+    public BigInteger selectValue(String ipStr) {
+        IPv6Address address = new IPv6Address();
+        if (!IpParser.parseIpv6(ipStr, address)) {
+            throw new NumberFormatException("Invalid IPv6 address: " + ipStr);
+        }
+        return selectValue(address.hi, address.lo);
+    }
+
+    /**
+     * Helper function that reads IPv6 radix tree from a local file in tab-separated format:
+     * (IPv6 net => value), skipping IPv4 networks.
+     *
+     * @param filename name of a local file to read
+     * @return a fully constructed IPv6 radix tree from that file
+     * @throws IOException
+     */
+    public static IPv6RadixTree loadFromLocalFile(String filename) throws IOException {
+        IPv6RadixTree tr = new IPv6RadixTree();
+        load(new BufferedReader(new FileReader(filename)), 1, tr);
+        return tr;
+    }
+}
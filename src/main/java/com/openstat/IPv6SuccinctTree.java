@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import com.openstat.utils.IpConvert;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+
+/**
+ * A read-only succinct (LOUDS) encoding of {@link IPv6RadixBigIntegerTree}, see
+ * {@link IPv4SuccinctTree} for the layout.
+ * <p>
+ * A node costs about 3.4 bits including the rank directories instead of two ints and a
+ * reference, and values are kept only for the nodes carrying one. Lookups walk the two
+ * 64-bit halves of the address instead of doing BigInteger arithmetic.
+ * <p>
+ * Lookups return the same values as the source tree, including
+ * {@link IPv6RadixBigIntegerTree#NO_VALUE} for unmatched addresses. Later changes to the
+ * source tree are not reflected; build a new instance instead.
+ */
+public class IPv6SuccinctTree {
+    private static final int HALF_BITS = 64;
+
+    private final RankBitVector children;
+    private final RankBitVector valued;
+    private final BigInteger[] values;
+
+    /**
+     * Builds a succinct copy of a given tree.
+     *
+     * @param tree source tree
+     */
+    public IPv6SuccinctTree(IPv6RadixBigIntegerTree tree) {
+        int capacity = tree.size();
+        children = new RankBitVector(capacity * 2);
+        valued = new RankBitVector(capacity);
+        BigInteger[] v = new BigInteger[capacity];
+        int count = 0;
+
+        int[] order = new int[capacity];
+        int tail = 0;
+        order[tail++] = IPv6RadixBigIntegerTree.ROOT_PTR;
+        for (int i = 0; i < tail; i++) {
+            int node = order[i];
+            int left = tree.leftOf(node);
+            int right = tree.rightOf(node);
+            children.add(left != IPv6RadixBigIntegerTree.NULL_PTR);
+            children.add(right != IPv6RadixBigIntegerTree.NULL_PTR);
+            if (left != IPv6RadixBigIntegerTree.NULL_PTR) {
+                order[tail++] = left;
+            }
+            if (right != IPv6RadixBigIntegerTree.NULL_PTR) {
+                order[tail++] = right;
+            }
+
+            BigInteger value = tree.valueOf(node);
+            boolean hasValue = value != null && value.compareTo(IPv6RadixBigIntegerTree.NO_VALUE) != 0;
+            valued.add(hasValue);
+            if (hasValue) {
+                v[count++] = value;
+            }
+        }
+        children.seal();
+        valued.seal();
+        values = Arrays.copyOf(v, count);
+    }
+
+    /**
+     * Selects a value for a given IPv6 address given as two 64-bit halves, choosing most
+     * specific value available for a given address.
+     *
+     * @param hi upper 64 bits of the IPv6 address
+     * @param lo lower 64 bits of the IPv6 address
+     * @return value at most specific IPv6 network for a given IPv6 address
+     */
+    public BigInteger selectValue(long hi, long lo) {
+        int best = -1;
+        int node = 0;
+
+        for (int depth = 0; ; depth++) {
+            if (valued.get(node)) {
+                best = node;
+            }
+            if (depth == 2 * HALF_BITS) {
+                break;
+            }
+            long half = depth < HALF_BITS ? hi : lo;
+            int pos = 2 * node + (int) ((half >>> (HALF_BITS - 1 - (depth & (HALF_BITS - 1)))) & 1);
+            if (!children.get(pos)) {
+                break;
+            }
+            node = children.rank(pos + 1);
+        }
+
+        return best < 0 ? IPv6RadixBigIntegerTree.NO_VALUE : values[valued.rank(best)];
+    }
+
+    /**
+     * Selects a value for a given IPv6 address, choosing most specific value available
+     * for a given address.
+     *
+     * @param key IPv6 address to look up
+     * @return value at most specific IPv6 network for a given IPv6 address
+     */
+    public BigInteger selectValue(BigInteger key) {
+        return selectValue(key.shiftRight(HALF_BITS).longValue(), key.longValue());
+    }
+
+    /**
+     * Selects a value for a given IPv6 address, choosing most specific value available
+     * for a given address.
+     *
+     * @param ipStr IPv6 address to look up, in string form
+     * @return value at most specific IPv6 network for a given IPv6 address
+     */
+    public BigInteger selectValue(String ipStr) {
+        return selectValue(IpConvert.stringToBigInt(ipStr));
+    }
+
+    /**
+     * Returns a size of tree in number of nodes (not number of prefixes stored).
+     *
+     * @return a number of nodes in current tree
+     */
+    public int size() {
+        return valued.length();
+    }
+
+    /**
+     * Returns the memory held by the encoded tree, not counting the value objects.
+     *
+     * @return a size in bytes
+     */
+    public long sizeInBytes() {
+        return children.sizeInBytes() + valued.sizeInBytes() + values.length * 4L;
+    }
+}
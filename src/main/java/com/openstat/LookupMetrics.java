@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Counters and histograms of tree lookups and puts, filled by {@link IPv4MeteredTree} and
+ * {@link IPv6MeteredTree}. Instrumentation is opt-in: a tree used directly records nothing
+ * and runs no extra code, only the metered wrappers walk the tree through an instrumented
+ * copy of the lookup.
+ * <p>
+ * Counters are striped ({@link LongAdder}), so threads looking up concurrently don't contend
+ * on a cache line. Every lookup records its traversal depth (nodes visited) and, when a value
+ * is found, the length of the matched prefix. Latencies are timed for one operation in
+ * {@code sampleRate} and kept in a histogram of power of two buckets: bucket i counts
+ * latencies from 2^i to 2^(i+1) - 1 nanoseconds.
+ * <p>
+ * {@link #snapshot()} copies the current values into an immutable {@link Snapshot}.
+ */
+public class LookupMetrics {
+    // Latency buckets, the last one takes everything from about 9 minutes on
+    private static final int LATENCY_BUCKETS = 40;
+
+    private final int maxPrefixLength;
+    private final int sampleRate;
+
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder puts = new LongAdder();
+    private final LongAdder[] depths;
+    private final LongAdder[] prefixLengths;
+    private final LongAdder[] lookupLatencies;
+    private final LongAdder[] putLatencies;
+
+    /**
+     * Initializes empty metrics.
+     *
+     * @param maxPrefixLength 32 for IPv4, 128 for IPv6
+     * @param sampleRate      time one operation in that many, 1 to time all of them
+     */
+    public LookupMetrics(int maxPrefixLength, int sampleRate) {
+        if (sampleRate < 1) {
+            throw new IllegalArgumentException("Sample rate " + sampleRate + " is less than 1");
+        }
+        this.maxPrefixLength = maxPrefixLength;
+        this.sampleRate = sampleRate;
+        // A lookup visits the root and at most one node per prefix bit
+        depths = adders(maxPrefixLength + 2);
+        prefixLengths = adders(maxPrefixLength + 1);
+        lookupLatencies = adders(LATENCY_BUCKETS);
+        putLatencies = adders(LATENCY_BUCKETS);
+    }
+
+    private static LongAdder[] adders(int n) {
+        LongAdder[] adders = new LongAdder[n];
+        for (int i = 0; i < n; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * Tells whether the current operation should be timed.
+     *
+     * @return true for about one call in {@code sampleRate}
+     */
+    boolean sample() {
+        return sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0;
+    }
+
+    /**
+     * Records a lookup.
+     *
+     * @param depth        number of nodes visited
+     * @param prefixLength length of the matched prefix, or -1 if no value was found
+     */
+    void recordLookup(int depth, int prefixLength) {
+        lookups.increment();
+        depths[depth].increment();
+        if (prefixLength < 0) {
+            misses.increment();
+        } else {
+            hits.increment();
+            prefixLengths[prefixLength].increment();
+        }
+    }
+
+    void recordLookupLatency(long nanos) {
+        lookupLatencies[bucket(nanos)].increment();
+    }
+
+    void recordPut() {
+        puts.increment();
+    }
+
+    void recordPutLatency(long nanos) {
+        putLatencies[bucket(nanos)].increment();
+    }
+
+    private static int bucket(long nanos) {
+        int bucket = Long.SIZE - 1 - Long.numberOfLeadingZeros(Math.max(1, nanos));
+        return Math.min(bucket, LATENCY_BUCKETS - 1);
+    }
+
+    /**
+     * Copies the current values. Counters updated during the copy may be caught in either
+     * state, so totals of a snapshot taken under load can differ by a few operations.
+     *
+     * @return immutable copy of the metrics
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    private static long[] sums(LongAdder[] adders) {
+        long[] sums = new long[adders.length];
+        for (int i = 0; i < adders.length; i++) {
+            sums[i] = adders[i].sum();
+        }
+        return sums;
+    }
+
+    /**
+     * Immutable copy of lookup metrics.
+     */
+    public static final class Snapshot {
+        private final int maxPrefixLength;
+        private final int sampleRate;
+        private final long lookups;
+        private final long hits;
+        private final long misses;
+        private final long puts;
+        private final long[] depths;
+        private final long[] prefixLengths;
+        private final long[] lookupLatencies;
+        private final long[] putLatencies;
+
+        private Snapshot(LookupMetrics m) {
+            maxPrefixLength = m.maxPrefixLength;
+            sampleRate = m.sampleRate;
+            lookups = m.lookups.sum();
+            hits = m.hits.sum();
+            misses = m.misses.sum();
+            puts = m.puts.sum();
+            depths = sums(m.depths);
+            prefixLengths = sums(m.prefixLengths);
+            lookupLatencies = sums(m.lookupLatencies);
+            putLatencies = sums(m.putLatencies);
+        }
+
+        public int getMaxPrefixLength() {
+            return maxPrefixLength;
+        }
+
+        public int getSampleRate() {
+            return sampleRate;
+        }
+
+        public long getLookups() {
+            return lookups;
+        }
+
+        /**
+         * Returns the number of lookups that found a value.
+         *
+         * @return a number of lookups
+         */
+        public long getHits() {
+            return hits;
+        }
+
+        /**
+         * Returns the number of lookups that found no value and returned NO_VALUE.
+         *
+         * @return a number of lookups
+         */
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getPuts() {
+            return puts;
+        }
+
+        /**
+         * Returns the histogram of traversal depths: element i counts lookups that visited
+         * i nodes.
+         *
+         * @return a copy of the histogram
+         */
+        public long[] getDepths() {
+            return depths.clone();
+        }
+
+        /**
+         * Returns the histogram of matched prefix lengths: element i counts lookups that
+         * matched a /i network.
+         *
+         * @return a copy of the histogram
+         */
+        public long[] getPrefixLengths() {
+            return prefixLengths.clone();
+        }
+
+        /**
+         * Returns the histogram of sampled lookup latencies: element i counts lookups that
+         * took from 2^i to 2^(i+1) - 1 nanoseconds.
+         *
+         * @return a copy of the histogram
+         */
+        public long[] getLookupLatencies() {
+            return lookupLatencies.clone();
+        }
+
+        /**
+         * Returns the histogram of sampled put latencies, see {@link #getLookupLatencies()}.
+         *
+         * @return a copy of the histogram
+         */
+        public long[] getPutLatencies() {
+            return putLatencies.clone();
+        }
+
+        /**
+         * Estimates a lookup latency percentile from the sampled histogram.
+         *
+         * @param percentile from 0 to 100
+         * @return upper bound of the bucket holding the percentile in nanoseconds, or 0 if
+         *         no lookup was sampled
+         */
+        public long getLookupLatencyPercentile(double percentile) {
+            long total = 0;
+            for (long count : lookupLatencies) {
+                total += count;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < lookupLatencies.length; i++) {
+                seen += lookupLatencies[i];
+                if (seen >= rank && seen > 0) {
+                    return (2L << i) - 1;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return "lookups " + lookups + ", hits " + hits + ", misses " + misses + ", puts " + puts
+                    + ", depths " + Arrays.toString(depths)
+                    + ", prefix lengths " + Arrays.toString(prefixLengths)
+                    + ", lookup p50 " + getLookupLatencyPercentile(50) + " ns"
+                    + ", lookup p99 " + getLookupLatencyPercentile(99) + " ns";
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import java.util.Arrays;
+
+
+/**
+ * Multibit-stride trie with popcount-indexed children and leaves (Poptrie), compiled from
+ * a one-bit-per-level binary trie. Shared by {@link IPv4Poptrie} and {@link IPv6Poptrie}.
+ * <p>
+ * Every internal node consumes a 6-bit chunk of the key and has 64 slots. A slot is either
+ * an internal child or a leaf. {@code vectors} has a bit set for every internal child slot,
+ * children are stored contiguously from {@code base1}, so the child index is the number of
+ * set bits up to the slot. Runs of neighbouring leaf slots with the same value are stored
+ * once: {@code leafVectors} has a bit set where a new run starts and runs are stored
+ * contiguously from {@code base0}.
+ * <p>
+ * Leaves hold the index of the source node carrying the most specific value, or
+ * {@code NULL_PTR}; the wrapping class maps them to values.
+ */
+final class Poptrie {
+    static final int NULL_PTR = -1;
+
+    // Bits per stride and slots per node
+    static final int STRIDE = 6;
+    private static final int SLOTS = 1 << STRIDE;
+
+    /**
+     * Read access to the binary trie the Poptrie is compiled from.
+     */
+    abstract static class Source {
+        abstract int left(int node);
+
+        abstract int right(int node);
+
+        abstract boolean hasValue(int node);
+    }
+
+    long[] vectors;
+    long[] leafVectors;
+    int[] base0;
+    int[] base1;
+    int[] leaves;
+    private int size;
+    private int leafCount;
+
+    /**
+     * Compiles a binary trie.
+     *
+     * @param source binary trie
+     * @param root   root node index of the binary trie
+     */
+    Poptrie(Source source, int root) {
+        vectors = new long[16];
+        leafVectors = new long[16];
+        base0 = new int[16];
+        base1 = new int[16];
+        leaves = new int[64];
+        size = 1;
+        leafCount = 0;
+
+        build(source, 0, root, source.hasValue(root) ? root : NULL_PTR);
+
+        vectors = Arrays.copyOf(vectors, size);
+        leafVectors = Arrays.copyOf(leafVectors, size);
+        base0 = Arrays.copyOf(base0, size);
+        base1 = Arrays.copyOf(base1, size);
+        leaves = Arrays.copyOf(leaves, leafCount);
+    }
+
+    /**
+     * Fills a Poptrie node from a binary trie node and compiles its children.
+     *
+     * @param source binary trie
+     * @param index  Poptrie node index
+     * @param node   binary trie node at the start of the stride
+     * @param best   binary trie node holding the most specific value so far, or NULL_PTR
+     */
+    private void build(Source source, int index, int node, int best) {
+        int[] children = new int[SLOTS];
+        int[] bests = new int[SLOTS];
+        long vector = 0;
+        int childCount = 0;
+
+        for (int slot = 0; slot < SLOTS; slot++) {
+            int n = node;
+            int b = best;
+            for (int k = STRIDE - 1; k >= 0 && n != NULL_PTR; k--) {
+                n = ((slot >>> k) & 1) != 0 ? source.right(n) : source.left(n);
+                if (n != NULL_PTR && source.hasValue(n)) {
+                    b = n;
+                }
+            }
+            bests[slot] = b;
+            if (n != NULL_PTR && (source.left(n) != NULL_PTR || source.right(n) != NULL_PTR)) {
+                children[slot] = n;
+                vector |= 1L << slot;
+                childCount++;
+            } else {
+                children[slot] = NULL_PTR;
+            }
+        }
+
+        long leafVector = 0;
+        int first = leafCount;
+        boolean started = false;
+        int previous = NULL_PTR;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (children[slot] != NULL_PTR) {
+                continue;
+            }
+            if (!started || bests[slot] != previous) {
+                if (leafCount == leaves.length) {
+                    leaves = Arrays.copyOf(leaves, leafCount * 2);
+                }
+                leaves[leafCount++] = bests[slot];
+                leafVector |= 1L << slot;
+                previous = bests[slot];
+                started = true;
+            }
+        }
+
+        int firstChild = size;
+        ensureCapacity(size + childCount);
+        size += childCount;
+
+        vectors[index] = vector;
+        leafVectors[index] = leafVector;
+        base0[index] = first;
+        base1[index] = firstChild;
+
+        int child = firstChild;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (children[slot] != NULL_PTR) {
+                build(source, child++, children[slot], bests[slot]);
+            }
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > vectors.length) {
+            int allocatedSize = Math.max(capacity, vectors.length * 2);
+            vectors = Arrays.copyOf(vectors, allocatedSize);
+            leafVectors = Arrays.copyOf(leafVectors, allocatedSize);
+            base0 = Arrays.copyOf(base0, allocatedSize);
+            base1 = Arrays.copyOf(base1, allocatedSize);
+        }
+    }
+
+    /**
+     * Returns the leaf reached from a node by a chunk whose slot is not an internal child.
+     *
+     * @param index Poptrie node index
+     * @param chunk 6-bit key chunk for this node
+     * @return index into {@code leaves}
+     */
+    int leaf(int index, int chunk) {
+        return base0[index] + Long.bitCount(leafVectors[index] & ((2L << chunk) - 1)) - 1;
+    }
+
+    /**
+     * Returns the child node index for a chunk, or -1 if the slot is a leaf.
+     *
+     * @param index Poptrie node index
+     * @param chunk 6-bit key chunk for this node
+     * @return child Poptrie node index or -1
+     */
+    int child(int index, int chunk) {
+        long vector = vectors[index];
+        if ((vector & (1L << chunk)) == 0) {
+            return -1;
+        }
+        return base1[index] + Long.bitCount(vector & ((2L << chunk) - 1)) - 1;
+    }
+
+    /**
+     * Returns a size of the Poptrie in number of internal nodes.
+     *
+     * @return a number of internal nodes
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of stored leaf runs.
+     *
+     * @return a number of leaves
+     */
+    int leafCount() {
+        return leafCount;
+    }
+}
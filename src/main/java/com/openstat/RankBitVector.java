@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import java.util.Arrays;
+
+
+/**
+ * Bit vector with a rank directory, used by the succinct trees.
+ * <p>
+ * Bits are appended while building and the directory is computed by {@link #seal()}.
+ * The directory holds the number of set bits before every block of 4 words (256 bits),
+ * 1/8 of the vector, so a rank costs one directory read and at most four popcounts.
+ */
+final class RankBitVector {
+    // Words per rank directory block
+    private static final int BLOCK_SHIFT = 2;
+    private static final int BLOCK_WORDS = 1 << BLOCK_SHIFT;
+
+    private long[] words;
+    private int[] ranks;
+    private int length;
+
+    RankBitVector(int capacity) {
+        words = new long[Math.max(1, (capacity + 63) >>> 6)];
+    }
+
+    /**
+     * Appends a bit.
+     *
+     * @param bit bit value
+     */
+    void add(boolean bit) {
+        if ((length >>> 6) == words.length) {
+            words = Arrays.copyOf(words, words.length * 2);
+        }
+        if (bit) {
+            words[length >>> 6] |= 1L << length;
+        }
+        length++;
+    }
+
+    /**
+     * Trims the vector and computes the rank directory. No bits can be added afterwards.
+     */
+    void seal() {
+        words = Arrays.copyOf(words, Math.max(1, (length + 63) >>> 6));
+        // One more block so that rank(length()) stays in bounds
+        ranks = new int[(words.length >>> BLOCK_SHIFT) + 1];
+        int count = 0;
+        for (int i = 0; i <= words.length; i++) {
+            if ((i & (BLOCK_WORDS - 1)) == 0) {
+                ranks[i >>> BLOCK_SHIFT] = count;
+            }
+            if (i < words.length) {
+                count += Long.bitCount(words[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns a bit.
+     *
+     * @param pos bit position
+     * @return true if the bit is set
+     */
+    boolean get(int pos) {
+        return (words[pos >>> 6] & (1L << pos)) != 0;
+    }
+
+    /**
+     * Returns the number of set bits before a position.
+     *
+     * @param pos bit position, up to the vector length
+     * @return number of set bits in [0, pos)
+     */
+    int rank(int pos) {
+        int word = pos >>> 6;
+        int count = ranks[word >>> BLOCK_SHIFT];
+        for (int i = word & ~(BLOCK_WORDS - 1); i < word; i++) {
+            count += Long.bitCount(words[i]);
+        }
+        if ((pos & 63) != 0) {
+            count += Long.bitCount(words[word] & (-1L >>> (64 - (pos & 63))));
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of bits.
+     *
+     * @return vector length
+     */
+    int length() {
+        return length;
+    }
+
+    /**
+     * Returns the memory held by the vector and its directory.
+     *
+     * @return a size in bytes
+     */
+    long sizeInBytes() {
+        return words.length * 8L + ranks.length * 4L;
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import com.openstat.utils.IPv6Address;
+import com.openstat.utils.IpParser;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+
+/**
+ * Reads the first two columns of region file lines straight from a memory-mapped file:
+ * <pre>
+ * 112.60.0.0/18	951728549285331151	2	34	3	2	0
+ * 24.224.0.0/17	5553;
+ * </pre>
+ * Columns are separated by tabs or spaces. Each line is copied into a reusable buffer and
+ * parsed there, so reading a line creates no String, String[] or regex object:
+ * <pre>
+ * RegionFileReader r = RegionFileReader.open(filename);
+ * while (r.next()) {
+ *     long ip = r.ipv4();
+ *     if (ip != IpParser.INVALID) {
+ *         tree.put(ip, r.ipv4Mask(), r.longValue(false));
+ *     }
+ * }
+ * r.close();
+ * </pre>
+ * Files larger than a mapping window are mapped one window at a time. The byte level
+ * helpers are shared with {@link IPv4ParallelLoader}.
+ */
+final class RegionFileReader {
+    // Largest part of the file mapped at once
+    private static final int WINDOW_SIZE = 1 << 30;
+
+    // cidr max
+    private static final int IPV4_CIDR_MAX_LENGTH = 32;
+    private static final int IPV6_CIDR_MAX_LENGTH = 128;
+    // 11111111111111111111111111111111 --> 32 bit
+    private static final long END_IPV4_BIT = 0xffffffffL;
+
+    // Nginx value radix
+    private static final int NGINX_RADIX = 16;
+
+    // Digits that always fit in a long
+    private static final int SAFE_DECIMAL_DIGITS = 18;
+    private static final int SAFE_HEX_DIGITS = 15;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long length;
+    private final int windowSize;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    // Current line, copied out of the window
+    private byte[] line = new byte[256];
+    private int lineLength;
+    private long lineNumber;
+    private int netEnd;
+    private int slash;
+    private int valueStart;
+    private int valueEnd;
+
+    private RegionFileReader(RandomAccessFile file, int windowSize) throws IOException {
+        this.file = file;
+        this.channel = file.getChannel();
+        this.length = channel.size();
+        this.windowSize = windowSize;
+        map(0);
+    }
+
+    /**
+     * Opens a local region file.
+     *
+     * @param filename name of a local file to read
+     * @return reader positioned before the first line
+     * @throws IOException
+     */
+    static RegionFileReader open(String filename) throws IOException {
+        return open(filename, WINDOW_SIZE);
+    }
+
+    static RegionFileReader open(String filename, int windowSize) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+        try {
+            return new RegionFileReader(file, windowSize);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private void map(long start) throws IOException {
+        windowStart = start;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, length - start));
+    }
+
+    /**
+     * Moves to the next line.
+     *
+     * @return false at the end of the file
+     * @throws IOException if a line does not fit in a mapping window
+     */
+    boolean next() throws IOException {
+        if (windowStart + window.position() >= length) {
+            return false;
+        }
+
+        int start = window.position();
+        int end = start;
+        int limit = window.limit();
+        while (true) {
+            while (end < limit && window.get(end) != '\n') {
+                end++;
+            }
+            if (end < limit || windowStart + limit == length) {
+                break;
+            }
+            // The line goes on past the window, map again from its start
+            if (start == 0) {
+                throw new IOException("Line #" + (lineNumber + 1) + " is longer than " + windowSize + " bytes");
+            }
+            map(windowStart + start);
+            end -= start;
+            start = 0;
+            limit = window.limit();
+        }
+
+        lineLength = end - start;
+        if (lineLength > line.length) {
+            line = Arrays.copyOf(line, Math.max(lineLength, line.length * 2));
+        }
+        window.get(line, 0, lineLength);
+        // Skip the line end, unless the file ends without one
+        window.position(end < limit ? end + 1 : end);
+        lineNumber++;
+
+        netEnd = skipToken(line, 0, lineLength);
+        slash = 0;
+        while (slash < netEnd && line[slash] != '/') {
+            slash++;
+        }
+        valueStart = skipSpaces(line, netEnd, lineLength);
+        valueEnd = skipToken(line, valueStart, lineLength);
+        return true;
+    }
+
+    /**
+     * Returns the IPv4 network prefix of the current line.
+     *
+     * @return IPv4 network prefix, or {@link IpParser#INVALID} if the first column is not
+     *         an IPv4 network
+     */
+    long ipv4() {
+        return IpParser.parseIpv4(line, 0, slash);
+    }
+
+    /**
+     * Returns the IPv4 netmask of the current line.
+     *
+     * @return IPv4 netmask in networked byte order format
+     * @throws IOException if the prefix length is missing or out of range
+     */
+    long ipv4Mask() throws IOException {
+        return ipv4Mask(cidr(IPV4_CIDR_MAX_LENGTH));
+    }
+
+    /**
+     * Parses the IPv6 network prefix of the current line.
+     *
+     * @param out holder receiving the network prefix
+     * @return false if the first column is not an IPv6 network
+     */
+    boolean ipv6(IPv6Address out) {
+        return IpParser.parseIpv6(line, 0, slash, out);
+    }
+
+    /**
+     * Returns the IPv6 prefix length of the current line.
+     *
+     * @return prefix length
+     * @throws IOException if the prefix length is missing or out of range
+     */
+    int ipv6Cidr() throws IOException {
+        return cidr(IPV6_CIDR_MAX_LENGTH);
+    }
+
+    private int cidr(int max) throws IOException {
+        int cidr = parseCidr(line, slash + 1, netEnd, max);
+        if (cidr < 0) {
+            throw malformed();
+        }
+        return cidr;
+    }
+
+    /**
+     * Returns the value in the second column of the current line.
+     *
+     * @param nginxFormat if true, the value is hex and followed by ";"
+     * @return value
+     * @throws IOException if the value is missing or malformed
+     */
+    long longValue(boolean nginxFormat) throws IOException {
+        try {
+            return parseValue(line, valueStart, valueEnd, nginxFormat);
+        } catch (NumberFormatException e) {
+            throw malformed();
+        }
+    }
+
+    /**
+     * Returns the value in the second column of the current line, of any size.
+     *
+     * @param nginxFormat if true, the value is hex and followed by ";"
+     * @return value
+     * @throws IOException if the value is missing or malformed
+     */
+    BigInteger bigValue(boolean nginxFormat) throws IOException {
+        int end = nginxFormat ? valueEnd - 1 : valueEnd;
+        int digits = end - valueStart;
+        if (digits <= (nginxFormat ? SAFE_HEX_DIGITS : SAFE_DECIMAL_DIGITS)) {
+            return BigInteger.valueOf(longValue(nginxFormat));
+        }
+        try {
+            return new BigInteger(new String(line, valueStart, digits, StandardCharsets.US_ASCII),
+                    nginxFormat ? NGINX_RADIX : 10);
+        } catch (NumberFormatException e) {
+            throw malformed();
+        }
+    }
+
+    /**
+     * Returns the number of the current line, starting at 1.
+     *
+     * @return line number
+     */
+    long lineNumber() {
+        return lineNumber;
+    }
+
+    private IOException malformed() {
+        return new IOException("Malformed line #" + lineNumber);
+    }
+
+    /**
+     * Closes the file. The mapping itself is released once the reader is garbage collected.
+     *
+     * @throws IOException
+     */
+    void close() throws IOException {
+        file.close();
+    }
+
+    static boolean isSpace(byte c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\f' || c == 0x0b;
+    }
+
+    /**
+     * Returns the end of the token starting at a given index.
+     */
+    static int skipToken(byte[] b, int i, int end) {
+        while (i < end && !isSpace(b[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Returns the start of the token following a given index.
+     */
+    static int skipSpaces(byte[] b, int i, int end) {
+        while (i < end && isSpace(b[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Parses a prefix length.
+     *
+     * @return prefix length, or -1 if malformed
+     */
+    static int parseCidr(byte[] b, int start, int end, int max) {
+        if (start >= end || end - start > 3) {
+            return -1;
+        }
+        int cidr = 0;
+        for (int i = start; i < end; i++) {
+            if (b[i] < '0' || b[i] > '9') {
+                return -1;
+            }
+            cidr = cidr * 10 + (b[i] - '0');
+        }
+        return cidr <= max ? cidr : -1;
+    }
+
+    /**
+     * Converts an IPv4 prefix length to a netmask.
+     */
+    static long ipv4Mask(int cidr) {
+        return ((1L << (IPV4_CIDR_MAX_LENGTH - cidr)) - 1L) ^ END_IPV4_BIT;
+    }
+
+    /**
+     * Parses a decimal value, or a hex one followed by ";" in nginx format, falling back to
+     * {@link Long#parseLong(String, int)} for signs and numbers that may overflow.
+     *
+     * @throws NumberFormatException if the value is missing or malformed
+     */
+    static long parseValue(byte[] b, int start, int end, boolean nginxFormat) {
+        int radix = 10;
+        int safe = SAFE_DECIMAL_DIGITS;
+        if (nginxFormat) {
+            // strip ";" at EOL
+            end--;
+            radix = NGINX_RADIX;
+            safe = SAFE_HEX_DIGITS;
+        }
+        if (start >= end) {
+            throw new NumberFormatException("Missing value");
+        }
+
+        if (end - start <= safe) {
+            long value = 0;
+            int i = start;
+            for (; i < end; i++) {
+                int digit = Character.digit(b[i], radix);
+                if (digit < 0) {
+                    break;
+                }
+                value = value * radix + digit;
+            }
+            if (i == end) {
+                return value;
+            }
+        }
+        return Long.parseLong(new String(b, start, end - start, StandardCharsets.US_ASCII), radix);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * Publishes immutable tree snapshots to concurrent readers and replaces them on reload,
+ * read-copy-update style.
+ * <p>
+ * Readers call {@link #get()}, which is a single volatile read, and keep using the returned
+ * snapshot for the duration of their work; they never block and never see a partially built
+ * tree, as a new snapshot is fully built before it is published. Reloads are serialized with
+ * each other but never wait for readers. A snapshot must not be modified once published: use
+ * {@link IPv4RadixIntTree#freeze()} or stop calling {@code put} on it.
+ * <p>
+ * Example:
+ * <pre>
+ * TreeHolder&lt;IPv4Lookup&gt; holder = new TreeHolder&lt;IPv4Lookup&gt;(IPv4RadixIntTree.loadFromLocalFile(path));
+ * long v = holder.get().selectValue(ip);
+ * holder.reloadAsync(loader, executor);
+ * </pre>
+ *
+ * @param <T> snapshot type
+ */
+public class TreeHolder<T> {
+    private static Logger logger = LoggerFactory.getLogger(TreeHolder.class);
+
+    private final AtomicReference<T> current;
+    private final Object reloadLock = new Object();
+
+    private volatile long lastReloadNanos;
+    private volatile long lastSwapNanos;
+    private volatile long lastReloadTime;
+    private volatile int reloadCount;
+
+    /**
+     * Creates a holder publishing a given initial snapshot.
+     *
+     * @param initial initial snapshot
+     */
+    public TreeHolder(T initial) {
+        if (initial == null) {
+            throw new IllegalArgumentException("Initial snapshot is null");
+        }
+        current = new AtomicReference<T>(initial);
+    }
+
+    /**
+     * Returns the current snapshot.
+     *
+     * @return current snapshot
+     */
+    public T get() {
+        return current.get();
+    }
+
+    /**
+     * Publishes a new snapshot.
+     *
+     * @param next new snapshot
+     * @return the snapshot it replaces
+     */
+    public T swap(T next) {
+        if (next == null) {
+            throw new IllegalArgumentException("Snapshot is null");
+        }
+        long start = System.nanoTime();
+        T previous = current.getAndSet(next);
+        lastSwapNanos = System.nanoTime() - start;
+        return previous;
+    }
+
+    /**
+     * Builds a new snapshot on the calling thread and publishes it. Readers keep using the
+     * previous snapshot until it is published. If the loader fails, the previous snapshot
+     * stays in place.
+     *
+     * @param loader builds the new snapshot, for example by calling {@code loadFromLocalFile}
+     * @return the snapshot that was replaced
+     * @throws Exception thrown by the loader
+     */
+    public T reload(Callable<? extends T> loader) throws Exception {
+        synchronized (reloadLock) {
+            long start = System.nanoTime();
+            T next = loader.call();
+            long built = System.nanoTime();
+            T previous = swap(next);
+
+            lastReloadNanos = built - start;
+            lastReloadTime = System.currentTimeMillis();
+            reloadCount++;
+            logger.info("Tree reloaded in {} ms, swapped in {} ns .", lastReloadNanos / 1000000, lastSwapNanos);
+            return previous;
+        }
+    }
+
+    /**
+     * Builds a new snapshot on a given executor and publishes it, see {@link #reload(Callable)}.
+     *
+     * @param loader   builds the new snapshot
+     * @param executor executor running the reload
+     * @return future of the snapshot that was replaced, failing if the loader fails
+     */
+    public Future<T> reloadAsync(final Callable<? extends T> loader, ExecutorService executor) {
+        return executor.submit(new Callable<T>() {
+            public T call() throws Exception {
+                try {
+                    return reload(loader);
+                } catch (Exception e) {
+                    logger.error("Tree reload failed, keeping the previous tree: {}", e.toString());
+                    throw e;
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns how long the last successful reload took to build its snapshot.
+     *
+     * @return build duration in nanoseconds, 0 before the first reload
+     */
+    public long getLastReloadNanos() {
+        return lastReloadNanos;
+    }
+
+    /**
+     * Returns how long the last snapshot swap took.
+     *
+     * @return swap duration in nanoseconds, 0 before the first swap
+     */
+    public long getLastSwapNanos() {
+        return lastSwapNanos;
+    }
+
+    /**
+     * Returns when the last successful reload finished.
+     *
+     * @return time in milliseconds since the epoch, 0 before the first reload
+     */
+    public long getLastReloadTime() {
+        return lastReloadTime;
+    }
+
+    /**
+     * Returns the number of successful reloads.
+     *
+     * @return number of reloads
+     */
+    public int getReloadCount() {
+        return reloadCount;
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+
+/**
+ * Reads and writes the binary tree image used by {@code save}/{@code load} of
+ * {@link IPv4RadixIntTree} and {@link IPv6RadixBigIntegerTree}.
+ * <p>
+ * Layout (big-endian): magic "IPRT", format version, tree kind (4 or 6), node count,
+ * then the node arrays as written by the tree, then a CRC32 of everything before it.
+ * Arrays are converted in 64 kilobyte chunks, so loading is a sequence of bulk reads
+ * instead of one parse per text line. Arrays start at 4-byte offsets, and IPv4 values at
+ * 8-byte offsets, so an image can also be used in place through a memory mapping.
+ * <p>
+ * The node count of the header is checked before any array is sized from it, against
+ * {@link #MAX_NODE_COUNT} and, when the image length is known, against the number of nodes
+ * that length can hold. A corrupted count thus fails with an {@link IOException} instead
+ * of an {@link OutOfMemoryError} before the checksum is reached. Child pointers always
+ * point past their own node, which {@link #checkLinks(IntBuffer, IntBuffer, int)} checks
+ * after loading, so a corrupted or stale image can't send a lookup out of the arrays or
+ * round a cycle.
+ */
+final class TreeImage {
+    static final int MAGIC = 0x49505254;
+    static final int VERSION = 1;
+    static final int KIND_IPV4 = 4;
+    static final int KIND_IPV6 = 6;
+    static final int HEADER_LENGTH = 16;
+    static final int CHECKSUM_LENGTH = 8;
+
+    // Largest node count accepted, about 2 gigabytes of IPv4 nodes
+    static final int MAX_NODE_COUNT = 1 << 27;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+    private final CRC32 crc = new CRC32();
+    private final InputStream in;
+    private final OutputStream out;
+
+    private TreeImage(InputStream in, OutputStream out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    static TreeImage reader(InputStream in) {
+        return new TreeImage(in, null);
+    }
+
+    static TreeImage writer(OutputStream out) {
+        return new TreeImage(null, out);
+    }
+
+    /**
+     * Writes the image header.
+     *
+     * @param kind tree kind
+     * @param size number of nodes
+     * @throws IOException
+     */
+    void writeHeader(int kind, int size) throws IOException {
+        writeInt(MAGIC);
+        writeInt(VERSION);
+        writeInt(kind);
+        writeInt(size);
+    }
+
+    /**
+     * Reads and validates the image header.
+     *
+     * @param kind       expected tree kind
+     * @param nodeLength smallest number of image bytes per node
+     * @return number of nodes
+     * @throws IOException if the stream is not a tree image of the expected kind and version,
+     *                     or its node count cannot be right
+     */
+    int readHeader(int kind, int nodeLength) throws IOException {
+        long length = remaining(in);
+        int magic = readInt();
+        int version = readInt();
+        int actualKind = readInt();
+        return checkHeader(magic, version, actualKind, readInt(), kind, nodeLength, length);
+    }
+
+    /**
+     * Returns the number of bytes left in a stream when it can be told without reading it:
+     * for a local file or a byte array.
+     *
+     * @param in stream
+     * @return number of bytes left, or -1 if unknown
+     * @throws IOException
+     */
+    private static long remaining(InputStream in) throws IOException {
+        if (in instanceof FileInputStream) {
+            FileChannel channel = ((FileInputStream) in).getChannel();
+            return channel.size() - channel.position();
+        }
+        if (in instanceof ByteArrayInputStream) {
+            return in.available();
+        }
+        return -1;
+    }
+
+    /**
+     * Validates the header of a memory-mapped image and its checksum if requested.
+     *
+     * @param image      whole image
+     * @param kind       expected tree kind
+     * @param nodeLength smallest number of image bytes per node
+     * @param verify     whether to compute and compare the checksum, which reads the whole image
+     * @return number of nodes
+     * @throws IOException if the image is not a valid tree image of the expected kind and version
+     */
+    static int checkMapped(ByteBuffer image, int kind, int nodeLength, boolean verify) throws IOException {
+        if (image.limit() < HEADER_LENGTH + CHECKSUM_LENGTH) {
+            throw new EOFException("Truncated tree image");
+        }
+        int size = checkHeader(image.getInt(0), image.getInt(4), image.getInt(8), image.getInt(12), kind,
+                nodeLength, image.limit());
+        if (verify) {
+            CRC32 crc = new CRC32();
+            ByteBuffer body = image.duplicate();
+            body.position(0);
+            body.limit(image.limit() - CHECKSUM_LENGTH);
+            crc.update(body);
+            if (image.getLong(image.limit() - CHECKSUM_LENGTH) != crc.getValue()) {
+                throw new IOException("Tree image checksum mismatch");
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns a view of a region of a memory-mapped image.
+     *
+     * @param image  whole image
+     * @param offset region offset
+     * @param length region length
+     * @return view sharing the image content
+     */
+    static ByteBuffer slice(ByteBuffer image, int offset, int length) {
+        ByteBuffer b = image.duplicate();
+        b.position(offset);
+        b.limit(offset + length);
+        return b.slice();
+    }
+
+    /**
+     * Checks that every child pointer is either {@code NULL_PTR} or points to a node after
+     * its parent and within the image.
+     *
+     * @param lefts  left child pointers
+     * @param rights right child pointers
+     * @param size   number of nodes
+     * @throws IOException if a pointer is out of range
+     */
+    static void checkLinks(IntBuffer lefts, IntBuffer rights, int size) throws IOException {
+        for (int node = 0; node < size; node++) {
+            checkLink(node, lefts.get(node), size);
+            checkLink(node, rights.get(node), size);
+        }
+    }
+
+    private static void checkLink(int node, int child, int size) throws IOException {
+        if (child != IPv4RadixIntTree.NULL_PTR && (child <= node || child >= size)) {
+            throw new IOException("Corrupt image");
+        }
+    }
+
+    private static int checkHeader(int magic, int version, int actualKind, int size, int kind,
+                                   int nodeLength, long length) throws IOException {
+        if (magic != MAGIC) {
+            throw new IOException("Not a tree image");
+        }
+        if (version != VERSION) {
+            throw new IOException("Unsupported tree image version " + version);
+        }
+        if (actualKind != kind) {
+            throw new IOException("Tree image holds an IPv" + actualKind + " tree, expected IPv" + kind);
+        }
+        if (size < 1 || size > MAX_NODE_COUNT) {
+            throw new IOException("Invalid node count " + size);
+        }
+        if (length >= 0 && (long) size * nodeLength > length - HEADER_LENGTH - CHECKSUM_LENGTH) {
+            throw new IOException("Tree image of " + length + " bytes cannot hold " + size + " nodes");
+        }
+        return size;
+    }
+
+    void writeInt(int v) throws IOException {
+        byteBuffer.clear();
+        byteBuffer.putInt(v);
+        write(4);
+    }
+
+    int readInt() throws IOException {
+        read(4);
+        return byteBuffer.getInt(0);
+    }
+
+    void writeInts(int[] a, int length) throws IOException {
+        for (int off = 0; off < length; ) {
+            int n = Math.min(length - off, BUFFER_SIZE / 4);
+            byteBuffer.clear();
+            byteBuffer.asIntBuffer().put(a, off, n);
+            write(n * 4);
+            off += n;
+        }
+    }
+
+    void readInts(int[] a, int length) throws IOException {
+        for (int off = 0; off < length; ) {
+            int n = Math.min(length - off, BUFFER_SIZE / 4);
+            read(n * 4);
+            byteBuffer.clear();
+            byteBuffer.asIntBuffer().get(a, off, n);
+            off += n;
+        }
+    }
+
+    void writeLongs(long[] a, int length) throws IOException {
+        for (int off = 0; off < length; ) {
+            int n = Math.min(length - off, BUFFER_SIZE / 8);
+            byteBuffer.clear();
+            byteBuffer.asLongBuffer().put(a, off, n);
+            write(n * 8);
+            off += n;
+        }
+    }
+
+    void readLongs(long[] a, int length) throws IOException {
+        for (int off = 0; off < length; ) {
+            int n = Math.min(length - off, BUFFER_SIZE / 8);
+            read(n * 8);
+            byteBuffer.clear();
+            byteBuffer.asLongBuffer().get(a, off, n);
+            off += n;
+        }
+    }
+
+    void writeBytes(byte[] a, int length) throws IOException {
+        out.write(a, 0, length);
+        crc.update(a, 0, length);
+    }
+
+    void readBytes(byte[] a, int length) throws IOException {
+        readFully(a, length);
+        crc.update(a, 0, length);
+    }
+
+    /**
+     * Writes the checksum of everything written so far and flushes the stream.
+     *
+     * @throws IOException
+     */
+    void finish() throws IOException {
+        long checksum = crc.getValue();
+        byteBuffer.clear();
+        byteBuffer.putLong(checksum);
+        out.write(buffer, 0, 8);
+        out.flush();
+    }
+
+    /**
+     * Reads the trailing checksum and compares it to everything read so far.
+     *
+     * @throws IOException if the image is corrupted
+     */
+    void verify() throws IOException {
+        long checksum = crc.getValue();
+        readFully(buffer, 8);
+        if (byteBuffer.getLong(0) != checksum) {
+            throw new IOException("Tree image checksum mismatch");
+        }
+    }
+
+    private void write(int length) throws IOException {
+        out.write(buffer, 0, length);
+        crc.update(buffer, 0, length);
+    }
+
+    private void read(int length) throws IOException {
+        readFully(buffer, length);
+        crc.update(buffer, 0, length);
+    }
+
+    private void readFully(byte[] a, int length) throws IOException {
+        int off = 0;
+        while (off < length) {
+            int n = in.read(a, off, length - off);
+            if (n < 0) {
+                throw new EOFException("Truncated tree image");
+            }
+            off += n;
+        }
+    }
+}
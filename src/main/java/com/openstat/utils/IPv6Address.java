@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat.utils;
+
+import java.math.BigInteger;
+
+/**
+ * Mutable holder of a 128-bit IPv6 address as two 64-bit halves, filled by
+ * {@link IpParser}. One instance can be reused for any number of parses.
+ */
+public final class IPv6Address {
+    /**
+     * Upper 64 bits of the address.
+     */
+    public long hi;
+
+    /**
+     * Lower 64 bits of the address.
+     */
+    public long lo;
+
+    /**
+     * Returns the address as a non-negative BigInteger.
+     *
+     * @return BigInteger
+     */
+    public BigInteger toBigInteger() {
+        byte[] bytes = new byte[17];
+        for (int i = 0; i < 8; i++) {
+            bytes[1 + i] = (byte) (hi >>> (56 - 8 * i));
+            bytes[9 + i] = (byte) (lo >>> (56 - 8 * i));
+        }
+        return new BigInteger(bytes);
+    }
+}
@@ -3,7 +3,6 @@ package com.openstat.utils;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -39,13 +38,21 @@ public class IpConvert {
      * @return BigInteger
      */
     public static BigInteger stringToBigInt(String ipInString) {
-        ipInString = ipInString.replace(" ", "");
-        byte[] bytes;
-        if (ipInString.contains(":"))
-            bytes = ipv6ToBytes(ipInString);
-        else
-            bytes = ipv4ToBytes(ipInString);
-        return new BigInteger(bytes);
+        if (ipInString.indexOf(' ') >= 0) {
+            ipInString = ipInString.replace(" ", "");
+        }
+        if (ipInString.indexOf(':') >= 0) {
+            IPv6Address address = new IPv6Address();
+            if (!IpParser.parseIpv6(ipInString, address)) {
+                throw new NumberFormatException("Invalid IPv6 address: " + ipInString);
+            }
+            return address.toBigInteger();
+        }
+        long ip = IpParser.parseIpv4(ipInString);
+        if (ip == IpParser.INVALID) {
+            throw new NumberFormatException("Invalid IPv4 address: " + ipInString);
+        }
+        return BigInteger.valueOf(ip);
     }
 
     /**
@@ -70,63 +77,6 @@ public class IpConvert {
         }
     }
 
-    /**
-     * ipv6 address turn to symbol byte[17]
-     */
-    private static byte[] ipv6ToBytes(String ipv6) {
-        byte[] ret = new byte[17];
-        ret[0] = 0;
-        int ib = 16;
-        boolean comFlag = false;   // ipv4 mixed mode flag
-        if (ipv6.startsWith(":"))  // Remove the opening colon
-            ipv6 = ipv6.substring(1);
-        String groups[] = ipv6.split(":");
-        for (int ig = groups.length - 1; ig > -1; ig--) {// Reverse scan
-            if (groups[ig].contains(".")) {
-                // Ipv4 mixed mode appears
-                byte[] temp = ipv4ToBytes(groups[ig]);
-                ret[ib--] = temp[4];
-                ret[ib--] = temp[3];
-                ret[ib--] = temp[2];
-                ret[ib--] = temp[1];
-                comFlag = true;
-            } else if ("".equals(groups[ig])) {
-                // Zero-length compression occurs and the number of missing groups is calculated
-                int zlg = 9 - (groups.length + (comFlag ? 1 : 0));
-                while (zlg-- > 0) {// Set these groups to 0
-                    ret[ib--] = 0;
-                    ret[ib--] = 0;
-                }
-            } else {
-                int temp = Integer.parseInt(groups[ig], 16);
-                ret[ib--] = (byte) temp;
-                ret[ib--] = (byte) (temp >> 8);
-            }
-        }
-        return ret;
-    }
-
-    /**
-     * ipv4  address change to byte[5] symbol
-     */
-    private static byte[] ipv4ToBytes(String ipv4) {
-        byte[] ret = new byte[5];
-        ret[0] = 0;
-        // First find the location of the midpoint of the IP address string
-        int position1 = ipv4.indexOf(".");
-        int position2 = ipv4.indexOf(".", position1 + 1);
-        int position3 = ipv4.indexOf(".", position2 + 1);
-        // Convert a string between each point to an integer
-        ret[1] = (byte) Integer.parseInt(ipv4.substring(0, position1));
-        ret[2] = (byte) Integer.parseInt(ipv4.substring(position1 + 1,
-                position2));
-        ret[3] = (byte) Integer.parseInt(ipv4.substring(position2 + 1,
-                position3));
-        ret[4] = (byte) Integer.parseInt(ipv4.substring(position3 + 1));
-        return ret;
-    }
-
-
     /**
      * Ipv6 to BigInteger
      * @param address ipv6
@@ -141,17 +91,17 @@ public class IpConvert {
     }
 
     /**
-     * Ipv4 to long .
+     * Ipv4 to long . Host names are not resolved.
      * @param ipStr ipv4 str
      * @return Long
-     * @throws UnknownHostException
+     * @throws UnknownHostException if ipStr is not an IPv4 literal
      */
     public static long ipv4ToLong(String ipStr) throws UnknownHostException {
-        ByteBuffer bb = ByteBuffer.allocate(8);
-        bb.putInt(0);
-        bb.put(InetAddress.getByName(ipStr).getAddress());
-        bb.rewind();
-        return bb.getLong();
+        long ip = IpParser.parseIpv4(ipStr);
+        if (ip == IpParser.INVALID) {
+            throw new UnknownHostException(ipStr + ": not an IPv4 address");
+        }
+        return ip;
     }
 
 }
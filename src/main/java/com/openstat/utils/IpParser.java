@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2012 Openstat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.openstat.utils;
+
+/**
+ * Validating IPv4 and IPv6 literal parsers that read directly from a {@link CharSequence}
+ * or a range of a {@code byte[]} (ASCII), without creating any object and without
+ * resolving host names.
+ * <p>
+ * IPv4 addresses are dotted quads of decimal numbers from 0 to 255. IPv6 addresses are
+ * eight groups of one to four hex digits, with at most one "::" and an optional dotted
+ * quad in place of the last two groups. Zone ids and surrounding spaces are rejected.
+ */
+public final class IpParser {
+    /**
+     * Returned by the IPv4 parsers for invalid input.
+     */
+    public static final long INVALID = -1L;
+
+    private static final int IPV4_PARTS = 4;
+    private static final int IPV6_GROUPS = 8;
+    private static final int GROUP_BITS = 16;
+
+    /**
+     * Prevent from being instantiated.
+     */
+    private IpParser() {
+    }
+
+    /**
+     * Parses an IPv4 address.
+     *
+     * @param s address, i.e. "a.b.c.d"
+     * @return address as an unsigned 32-bit value, or {@link #INVALID}
+     */
+    public static long parseIpv4(CharSequence s) {
+        return parseIpv4(s, null, 0, s.length());
+    }
+
+    /**
+     * Parses an IPv4 address from a range of characters.
+     *
+     * @param s     characters
+     * @param start index of the first character
+     * @param end   index after the last character
+     * @return address as an unsigned 32-bit value, or {@link #INVALID}
+     */
+    public static long parseIpv4(CharSequence s, int start, int end) {
+        return parseIpv4(s, null, start, end);
+    }
+
+    /**
+     * Parses an IPv4 address from a range of ASCII bytes.
+     *
+     * @param b   bytes
+     * @param off index of the first byte
+     * @param len number of bytes
+     * @return address as an unsigned 32-bit value, or {@link #INVALID}
+     */
+    public static long parseIpv4(byte[] b, int off, int len) {
+        return parseIpv4(null, b, off, off + len);
+    }
+
+    /**
+     * Parses an IPv6 address.
+     *
+     * @param s   address, i.e. "a:b:c:d:e:f:g:h", "a::h" or "::ffff:a.b.c.d"
+     * @param out holder receiving the address, or null to validate only
+     * @return true if the address is valid, otherwise {@code out} is left in an undefined state
+     */
+    public static boolean parseIpv6(CharSequence s, IPv6Address out) {
+        return parseIpv6(s, null, 0, s.length(), out);
+    }
+
+    /**
+     * Parses an IPv6 address from a range of characters.
+     *
+     * @param s     characters
+     * @param start index of the first character
+     * @param end   index after the last character
+     * @param out   holder receiving the address, or null to validate only
+     * @return true if the address is valid
+     */
+    public static boolean parseIpv6(CharSequence s, int start, int end, IPv6Address out) {
+        return parseIpv6(s, null, start, end, out);
+    }
+
+    /**
+     * Parses an IPv6 address from a range of ASCII bytes.
+     *
+     * @param b   bytes
+     * @param off index of the first byte
+     * @param len number of bytes
+     * @param out holder receiving the address, or null to validate only
+     * @return true if the address is valid
+     */
+    public static boolean parseIpv6(byte[] b, int off, int len, IPv6Address out) {
+        return parseIpv6(null, b, off, off + len, out);
+    }
+
+    /**
+     * Tells whether an address, or the address part of a network in "address/length"
+     * form, is an IPv4 or an IPv6 literal. Replaces {@link RegexIpAddress#isIpv4OrIpv6(String)}
+     * on hot paths.
+     *
+     * @param s address or network
+     * @return ipv4=4, ipv6=6, other=0
+     */
+    public static int version(CharSequence s) {
+        int end = s.length();
+        for (int i = 0; i < end; i++) {
+            if (s.charAt(i) == '/') {
+                end = i;
+                break;
+            }
+        }
+        if (parseIpv4(s, null, 0, end) != INVALID) {
+            return 4;
+        }
+        if (parseIpv6(s, null, 0, end, null)) {
+            return 6;
+        }
+        return 0;
+    }
+
+    /**
+     * Reads a character either from a CharSequence or, if it is null, from a byte array,
+     * so that one parser serves both sources.
+     */
+    private static int at(CharSequence s, byte[] b, int i) {
+        return s != null ? s.charAt(i) : b[i] & 0xff;
+    }
+
+    private static int hexValue(int c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    private static long parseIpv4(CharSequence s, byte[] b, int start, int end) {
+        long ip = 0;
+        int i = start;
+        for (int part = 0; part < IPV4_PARTS; part++) {
+            if (part > 0) {
+                if (i >= end || at(s, b, i) != '.') {
+                    return INVALID;
+                }
+                i++;
+            }
+            int value = 0;
+            int digits = 0;
+            while (i < end && digits < 4) {
+                int c = at(s, b, i);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                value = value * 10 + (c - '0');
+                digits++;
+                i++;
+            }
+            if (digits == 0 || digits > 3 || value > 255) {
+                return INVALID;
+            }
+            ip = (ip << 8) | value;
+        }
+        return i == end ? ip : INVALID;
+    }
+
+    private static boolean parseIpv6(CharSequence s, byte[] b, int start, int end, IPv6Address out) {
+        // Groups before "::" are placed directly, groups after it are accumulated as a
+        // 128-bit number, which puts them at the right place once the input ends
+        long hi = 0;
+        long lo = 0;
+        long tailHi = 0;
+        long tailLo = 0;
+        int groups = 0;
+        int compressed = -1;
+        int i = start;
+
+        if (end - start >= 2 && at(s, b, i) == ':') {
+            if (at(s, b, i + 1) != ':') {
+                return false;
+            }
+            compressed = 0;
+            i += 2;
+        } else if (i == end) {
+            return false;
+        }
+
+        while (i < end) {
+            int groupStart = i;
+            int value = 0;
+            int digits = 0;
+            int h;
+            while (i < end && digits < 5 && (h = hexValue(at(s, b, i))) >= 0) {
+                value = (value << 4) | h;
+                digits++;
+                i++;
+            }
+
+            int count = 1;
+            if (i < end && at(s, b, i) == '.') {
+                // Dotted quad in place of the last two groups
+                long v4 = parseIpv4(s, b, groupStart, end);
+                if (v4 == INVALID) {
+                    return false;
+                }
+                value = (int) v4;
+                count = 2;
+                i = end;
+            } else if (digits == 0 || digits > 4) {
+                return false;
+            }
+
+            if (groups + count > IPV6_GROUPS) {
+                return false;
+            }
+            long v = count == 2 ? value & 0xffffffffL : value;
+            int bits = count * GROUP_BITS;
+            if (compressed < 0) {
+                int shift = (IPV6_GROUPS - groups - count) * GROUP_BITS;
+                if (shift >= 64) {
+                    hi |= v << (shift - 64);
+                } else {
+                    lo |= v << shift;
+                    if (shift + bits > 64) {
+                        hi |= v >>> (64 - shift);
+                    }
+                }
+            } else {
+                tailHi = (tailHi << bits) | (tailLo >>> (64 - bits));
+                tailLo = (tailLo << bits) | v;
+            }
+            groups += count;
+
+            if (i == end) {
+                break;
+            }
+            if (at(s, b, i) != ':') {
+                return false;
+            }
+            i++;
+            if (i < end && at(s, b, i) == ':') {
+                if (compressed >= 0) {
+                    return false;
+                }
+                compressed = groups;
+                i++;
+            } else if (i == end) {
+                return false;
+            }
+        }
+
+        if (compressed < 0 ? groups != IPV6_GROUPS : groups >= IPV6_GROUPS) {
+            return false;
+        }
+        if (out != null) {
+            out.hi = hi | tailHi;
+            out.lo = lo | tailLo;
+        }
+        return true;
+    }
+}